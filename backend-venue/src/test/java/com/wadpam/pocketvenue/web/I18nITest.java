@@ -0,0 +1,147 @@
+package com.wadpam.pocketvenue.web;
+
+import com.wadpam.pocketvenue.json.JTag;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Integration tests for translations.
+ * @author mattiaslevin
+ */
+public class I18nITest extends AbstractITest {
+    static final Logger LOG = LoggerFactory.getLogger(I18nITest.class);
+
+    @Override
+    protected String getBaseUrl() {
+        return "http://localhost:8234/api/test/";
+    }
+
+    @Test
+    public void getBundle() throws IOException {
+
+        String tagId = createTag("Tag8");
+        addTranslation(tagId, "fi", "Tagi8");
+
+        // Uncompressed
+        ResponseEntity<byte[]> identity = getBundle("fi", null, null);
+        assertEquals("Http response 200", HttpStatus.OK, identity.getStatusCode());
+        String json = new String(identity.getBody(), "UTF-8");
+        assertTrue("Translation in bundle", json.contains("Tagi8"));
+        String identityETag = identity.getHeaders().getETag();
+        assertNotNull("ETag", identityETag);
+
+        // Compressed, same document with another ETag
+        ResponseEntity<byte[]> compressed = getBundle("fi", "gzip", null);
+        assertEquals("Http response 200", HttpStatus.OK, compressed.getStatusCode());
+        assertEquals("Content encoding", "gzip", compressed.getHeaders().getFirst("Content-Encoding"));
+        assertEquals("Same document", json, new String(gunzip(compressed.getBody()), "UTF-8"));
+        String gzipETag = compressed.getHeaders().getETag();
+        assertNotNull("ETag", gzipETag);
+        assertFalse("ETag per encoding", identityETag.equals(gzipETag));
+
+        // Not modified
+        assertEquals("Http response 304", HttpStatus.NOT_MODIFIED, getBundle("fi", null, identityETag).getStatusCode());
+        assertEquals("Http response 304", HttpStatus.NOT_MODIFIED, getBundle("fi", "gzip", gzipETag).getStatusCode());
+
+        // The ETag of the other encoding does not match
+        assertEquals("Http response 200", HttpStatus.OK, getBundle("fi", "gzip", identityETag).getStatusCode());
+        assertEquals("Http response 200", HttpStatus.OK, getBundle("fi", null, gzipETag).getStatusCode());
+    }
+
+    @Test
+    public void getBundleAfterChange() throws IOException {
+
+        String tagId = createTag("Tag9");
+        addTranslation(tagId, "da", "Maerke9");
+        ResponseEntity<byte[]> bundle = getBundle("da", null, null);
+        String etag = bundle.getHeaders().getETag();
+
+        // A new translation changes the bundle
+        String otherTagId = createTag("Tag10");
+        addTranslation(otherTagId, "da", "Maerke10");
+        bundle = getBundle("da", null, etag);
+        assertEquals("Http response 200", HttpStatus.OK, bundle.getStatusCode());
+        assertFalse("New ETag", etag.equals(bundle.getHeaders().getETag()));
+        String json = new String(bundle.getBody(), "UTF-8");
+        assertTrue("Old translation in bundle", json.contains("Maerke9"));
+        assertTrue("New translation in bundle", json.contains("Maerke10"));
+
+        // A deleted translation is removed from the bundle
+        template.delete(BASE_URL + "i18n?parent={parent}&locale=da", otherTagId);
+        json = new String(getBundle("da", null, null).getBody(), "UTF-8");
+        assertFalse("Deleted translation not in bundle", json.contains("Maerke10"));
+    }
+
+    @Test
+    public void getTranslationsForParents() {
+
+        String firstId = createTag("Tag11");
+        addTranslation(firstId, "nb", "Merke11");
+        addTranslation(firstId, "de", "Etikett11");
+        String secondId = createTag("Tag12");
+        addTranslation(secondId, "nb", "Merke12");
+        String untranslatedId = createTag("Tag13");
+
+        // All locales of every parent, the queries run concurrently
+        ResponseEntity<Map> entity = template.getForEntity(BASE_URL + "i18n?parents={first}&parents={second}&parents={third}",
+                Map.class, firstId, secondId, untranslatedId);
+        assertEquals("Http response 200", HttpStatus.OK, entity.getStatusCode());
+        assertEquals("Translations of first parent", 2, ((Collection) entity.getBody().get(firstId)).size());
+        assertEquals("Translations of second parent", 1, ((Collection) entity.getBody().get(secondId)).size());
+        Collection untranslated = (Collection) entity.getBody().get(untranslatedId);
+        assertTrue("No translations", null == untranslated || untranslated.isEmpty());
+    }
+
+    private String createTag(String name) {
+        MultiValueMap<String, Object> map = new LinkedMultiValueMap<String, Object>();
+        map.set("name", name);
+        map.set("type", "TypeD");
+        ResponseEntity<JTag> entity = template.postForEntity(BASE_URL + "tag?return=representation", map, JTag.class);
+        assertEquals("Http response 201", HttpStatus.CREATED, entity.getStatusCode());
+        return entity.getBody().getId();
+    }
+
+    private void addTranslation(String parentId, String locale, String string) {
+        MultiValueMap<String, Object> map = new LinkedMultiValueMap<String, Object>();
+        map.set("parent", parentId);
+        map.set("locale", locale);
+        map.set("string", string);
+        template.postForEntity(BASE_URL + "i18n", map, String.class);
+    }
+
+    private ResponseEntity<byte[]> getBundle(String locale, String acceptEncoding, String etag) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("Accept-Encoding", null != acceptEncoding ? acceptEncoding : "identity");
+        if (null != etag)
+            headers.setIfNoneMatch(etag);
+        return template.exchange(BASE_URL + "i18n/bundle/{locale}", HttpMethod.GET,
+                new HttpEntity<Void>(headers), byte[].class, locale);
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+            out.write(buffer, 0, read);
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -5,6 +5,7 @@ import com.wadpam.server.json.JRestError;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.LinkedMultiValueMap;
@@ -41,6 +42,20 @@ public class TagITest extends AbstractITest {
         assertTrue("Type", entity.getBody().getType().equals("TypeA"));
     }
 
+    @Test
+    public void createTagWithRepresentation() {
+
+        // Create new tag and get it in the response
+        final MultiValueMap<String, Object> map = new LinkedMultiValueMap<String, Object>();
+        map.set("name", "Tag4");
+        map.set("type", "TypeA");
+
+        ResponseEntity<JTag> entity = template.postForEntity(BASE_URL + "tag?return=representation", map, JTag.class);
+        assertEquals("Http response 201", HttpStatus.CREATED, entity.getStatusCode());
+        assertNotNull("Location", entity.getHeaders().getLocation());
+        assertTrue("Name", entity.getBody().getName().equals("Tag4"));
+    }
+
     @Test
     public void updateTag() throws MalformedURLException {
 
@@ -86,6 +101,37 @@ public class TagITest extends AbstractITest {
         assertEquals("Http response 404", HttpStatus.NOT_FOUND, restError.getStatusCode());
     }
 
+    @Test
+    public void deleteTagSubtree() {
+
+        // Tag with a child and a grandchild
+        String parentId = createTag("Tag10 level 1", "TypeE", null);
+        String childId = createTag("Tag11 level 2", "TypeE", parentId);
+        String grandchildId = createTag("Tag12 level 3", "TypeE", childId);
+        String siblingId = createTag("Tag13 level 1", "TypeE", null);
+
+        // The subtree is deleted at once, the removal from venues is a background job
+        ResponseEntity<String> deleted = template.exchange(BASE_URL + "tag/{id}", HttpMethod.DELETE, null,
+                String.class, parentId);
+        assertEquals("Http response 202", HttpStatus.ACCEPTED, deleted.getStatusCode());
+        assertNotNull("Removal job", deleted.getHeaders().getLocation());
+
+        for (String id : new String[] {parentId, childId, grandchildId}) {
+            ResponseEntity<JRestError> restError = template.getForEntity(BASE_URL + "tag/{id}", JRestError.class, id);
+            assertEquals("Http response 404", HttpStatus.NOT_FOUND, restError.getStatusCode());
+        }
+        ResponseEntity<JTag> sibling = template.getForEntity(BASE_URL + "tag/{id}", JTag.class, siblingId);
+        assertEquals("Sibling kept", HttpStatus.OK, sibling.getStatusCode());
+    }
+
+    @Test
+    public void getUnknownTagRemovalJob() {
+
+        // Removal jobs are created when deleting a tag, an unknown job must not be found
+        ResponseEntity<JRestError> restError = template.getForEntity(BASE_URL + "tag/removal/123456789", JRestError.class);
+        assertEquals("Http response 404", HttpStatus.NOT_FOUND, restError.getStatusCode());
+    }
+
     @Test
     public void getTagsOfType() throws MalformedURLException {
 
@@ -148,4 +194,64 @@ public class TagITest extends AbstractITest {
                 assertNull("No children", child.getChildren());
         }
     }
+
+    @Test
+    public void getTagsOfTypeAfterUpdate() throws MalformedURLException {
+
+        // Create new tag
+        MultiValueMap<String, Object> map = new LinkedMultiValueMap<String, Object>();
+        map.set("name", "Tag9");
+        map.set("type", "TypeC");
+        ResponseEntity<JTag> entity = postAndFollowRedirect(BASE_URL + "tag", map, JTag.class);
+        String urlString = BASE_URL + "tag/" + entity.getBody().getId();
+
+        // Get hierarchy, now cached
+        ResponseEntity<JTag[]> tags = template.getForEntity(BASE_URL + "tag/type/TypeC", JTag[].class);
+        assertEquals("Name", "Tag9", tags.getBody()[0].getName());
+
+        // Update tag, the cached hierarchy is invalidated
+        map = new LinkedMultiValueMap<String, Object>();
+        map.set("name", "Tag9 updated");
+        map.set("type", "TypeC");
+        postAndFollowRedirect(urlString, map, JTag.class);
+
+        tags = template.getForEntity(BASE_URL + "tag/type/TypeC", JTag[].class);
+        assertEquals("Updated name", "Tag9 updated", tags.getBody()[0].getName());
+    }
+
+    @Test
+    public void getLocalizedTagHierarchy() {
+
+        // Create a tag with a Swedish translation
+        MultiValueMap<String, Object> map = new LinkedMultiValueMap<String, Object>();
+        map.set("name", "Tag7");
+        map.set("type", "TypeC");
+        ResponseEntity<JTag> entity = template.postForEntity(BASE_URL + "tag?return=representation", map, JTag.class);
+        String tagId = entity.getBody().getId();
+
+        map = new LinkedMultiValueMap<String, Object>();
+        map.set("parent", tagId);
+        map.set("locale", "sv");
+        map.set("string", "Tagg7");
+        template.postForEntity(BASE_URL + "i18n", map, String.class);
+
+        // sv-SE falls back to sv
+        ResponseEntity<JTag[]> tags = template.getForEntity(BASE_URL + "tag/type/TypeC?locale=sv-SE", JTag[].class);
+        assertEquals("Localized name", "Tagg7", tags.getBody()[0].getName());
+
+        // No translation in English, the tag name is kept
+        tags = template.getForEntity(BASE_URL + "tag/type/TypeC?locale=en", JTag[].class);
+        assertEquals("Default name", "Tag7", tags.getBody()[0].getName());
+    }
+
+    private String createTag(String name, String type, String parentId) {
+        MultiValueMap<String, Object> map = new LinkedMultiValueMap<String, Object>();
+        map.set("name", name);
+        map.set("type", type);
+        if (null != parentId)
+            map.set("parentId", parentId);
+        ResponseEntity<JTag> entity = template.postForEntity(BASE_URL + "tag?return=representation", map, JTag.class);
+        assertEquals("Http response 201", HttpStatus.CREATED, entity.getStatusCode());
+        return entity.getBody().getId();
+    }
 }
@@ -1,16 +1,28 @@
 package com.wadpam.pocketvenue.web;
 
+import com.wadpam.pocketvenue.json.JBulkItemResult;
 import com.wadpam.pocketvenue.json.JVenue;
 import com.wadpam.server.json.JRestError;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 
@@ -292,7 +304,193 @@ public class VenueITest extends AbstractITest {
         // Must be deployed to test
     }
 
+    @Test
+    public void getUnknownCsvImportJob() {
+
+        // Import jobs are created by the blobstore upload callback, an unknown job must not be found
+        ResponseEntity<JRestError> restError = template.getForEntity(BASE_URL + "venue/csv/123456789", JRestError.class);
+        assertEquals("Http response 404", HttpStatus.NOT_FOUND, restError.getStatusCode());
+    }
+
+    @Test
+    public void bulkWriteVenues() {
+
+        // One valid venue and one without a name
+        JVenue valid = new JVenue();
+        valid.setName("BulkVenue1");
+        JVenue invalid = new JVenue();
+
+        ResponseEntity<JBulkItemResult[]> entity = template.postForEntity(BASE_URL + "venue/bulk",
+                new JVenue[] {valid, invalid}, JBulkItemResult[].class);
+        assertEquals("Http response 200", HttpStatus.OK, entity.getStatusCode());
+        assertEquals("Number of results", 2, entity.getBody().length);
+        assertEquals("Created", Integer.valueOf(201), entity.getBody()[0].getStatus());
+        assertNotNull("Venue id", entity.getBody()[0].getId());
+        assertEquals("Invalid", Integer.valueOf(400), entity.getBody()[1].getStatus());
+    }
+
+    @Test
+    public void getVenuesByIds() {
+
+        JVenue first = new JVenue();
+        first.setName("BatchGetVenue1");
+        JVenue second = new JVenue();
+        second.setName("BatchGetVenue2");
+        ResponseEntity<JBulkItemResult[]> created = template.postForEntity(BASE_URL + "venue/bulk",
+                new JVenue[] {first, second}, JBulkItemResult[].class);
+        String id = created.getBody()[0].getId();
+        String deletedId = created.getBody()[1].getId();
+        template.delete(BASE_URL + "venue/{id}", deletedId);
+
+        ResponseEntity<Map[]> entity = template.getForEntity(BASE_URL + "venue?ids={id}&ids={deleted}&fields=name",
+                Map[].class, id, deletedId);
+        assertEquals("Http response 200", HttpStatus.OK, entity.getStatusCode());
+        assertEquals("Number of items", 2, entity.getBody().length);
+        assertEquals("Found venue", "BatchGetVenue1", entity.getBody()[0].get("name"));
+        assertEquals("Deleted venue", 404, entity.getBody()[1].get("status"));
+    }
+
+    @Test
+    public void getVenueDetail() {
+
+        JVenue jVenue = new JVenue();
+        jVenue.setName("DetailVenue1");
+        ResponseEntity<JBulkItemResult[]> created = template.postForEntity(BASE_URL + "venue/bulk",
+                new JVenue[] {jVenue}, JBulkItemResult[].class);
+        String id = created.getBody()[0].getId();
+
+        ResponseEntity<Map> entity = template.getForEntity(BASE_URL + "venue/{id}?expand=tags,parents", Map.class, id);
+        assertEquals("Http response 200", HttpStatus.OK, entity.getStatusCode());
+        assertEquals("Venue", "DetailVenue1", ((Map) entity.getBody().get("venue")).get("name"));
+        assertTrue("No parents", ((Collection) entity.getBody().get("parents")).isEmpty());
+
+        // Translations are only read for a locale
+        ResponseEntity<JRestError> restError = template.getForEntity(BASE_URL + "venue/{id}?expand=i18n",
+                JRestError.class, id);
+        assertEquals("Http response 400", HttpStatus.BAD_REQUEST, restError.getStatusCode());
+    }
+
+    @Test
+    public void getUnknownReindexJob() {
+
+        ResponseEntity<JRestError> restError = template.getForEntity(BASE_URL + "venue/reindex/123456789", JRestError.class);
+        assertEquals("Http response 404", HttpStatus.NOT_FOUND, restError.getStatusCode());
+    }
+
+    @Test
+    public void getUnknownIndexCheckJob() {
+
+        ResponseEntity<JRestError> restError = template.getForEntity(BASE_URL + "venue/index/check/123456789", JRestError.class);
+        assertEquals("Http response 404", HttpStatus.NOT_FOUND, restError.getStatusCode());
+    }
+
+    @Test
+    public void adminEndpointsForbidden() {
+
+        // Not called by the task queue or an admin
+        ResponseEntity<JRestError> restError = template.postForEntity(BASE_URL + "venue/reindex",
+                new LinkedMultiValueMap<String, Object>(), JRestError.class);
+        assertEquals("Http response 403", HttpStatus.FORBIDDEN, restError.getStatusCode());
+
+        restError = template.postForEntity(BASE_URL + "venue/index/check",
+                new LinkedMultiValueMap<String, Object>(), JRestError.class);
+        assertEquals("Http response 403", HttpStatus.FORBIDDEN, restError.getStatusCode());
+    }
+
+    @Test
+    public void cachedSearchAfterUpdate() throws Exception {
+
+        MultiValueMap<String, Object> map = new LinkedMultiValueMap<String, Object>();
+        map.set("name", "Venue19 cached search");
+        map.set("city", "City4");
+        ResponseEntity<JVenue> entity = postAndFollowRedirect(BASE_URL + "venue", map, JVenue.class);
+        String id = entity.getBody().getId();
+        flushIndexQueue();
+
+        // Concurrent misses of the same search, one request loads while the others wait for the value
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<ResponseEntity<JVenueCursorPage>>> searches = new ArrayList<Future<ResponseEntity<JVenueCursorPage>>>();
+        for (int i = 0; i < 8; i++) {
+            searches.add(executor.submit(new Callable<ResponseEntity<JVenueCursorPage>>() {
+                @Override
+                public ResponseEntity<JVenueCursorPage> call() {
+                    return template.getForEntity(BASE_URL + "venue/search?text=City4", JVenueCursorPage.class);
+                }
+            }));
+        }
+        executor.shutdown();
+        for (Future<ResponseEntity<JVenueCursorPage>> search : searches) {
+            assertEquals("Http response 200", HttpStatus.OK, search.get().getStatusCode());
+            assertEquals("Same result", "Venue19 cached search",
+                    search.get().getBody().getItems().iterator().next().getName());
+        }
+
+        // The cached result is invalidated once the update committed
+        map = new LinkedMultiValueMap<String, Object>();
+        map.set("name", "Venue19 cached search updated");
+        map.set("city", "City4");
+        postAndFollowRedirect(BASE_URL + "venue/" + id, map, JVenue.class);
+
+        ResponseEntity<JVenueCursorPage> cursorEntity = template.getForEntity(BASE_URL + "venue/search?text=City4", JVenueCursorPage.class);
+        assertEquals("Updated name", "Venue19 cached search updated",
+                cursorEntity.getBody().getItems().iterator().next().getName());
+    }
+
+    @Test
+    public void searchAfterIndexFlush() throws MalformedURLException {
+
+        // Writes are indexed by the flush task, not by the request
+        MultiValueMap<String, Object> map = new LinkedMultiValueMap<String, Object>();
+        map.set("name", "Venue20 write-behind");
+        map.set("city", "City5");
+        postAndFollowRedirect(BASE_URL + "venue", map, JVenue.class);
+
+        assertTrue("Flushed tasks", flushIndexQueue() >= 0);
+        ResponseEntity<JVenueCursorPage> cursorEntity = template.getForEntity(BASE_URL + "venue/search?text=City5", JVenueCursorPage.class);
+        assertEquals("Http response 200", HttpStatus.OK, cursorEntity.getStatusCode());
+        assertEquals("Indexed", 1, cursorEntity.getBody().getItems().size());
+
+        // Only the task queue and admins can flush
+        ResponseEntity<JRestError> restError = template.postForEntity(BASE_URL + "venue/index/flush",
+                new LinkedMultiValueMap<String, Object>(), JRestError.class);
+        assertEquals("Http response 403", HttpStatus.FORBIDDEN, restError.getStatusCode());
+    }
+
+    @Test
+    public void getVenueWithFields() throws MalformedURLException {
+
+        MultiValueMap<String, Object> map = new LinkedMultiValueMap<String, Object>();
+        setDefaultVenueValues(map);
+        map.set("name", "Venue21 fields");
+        ResponseEntity<JVenue> entity = postAndFollowRedirect(BASE_URL + "venue", map, JVenue.class);
+        String id = entity.getBody().getId();
+
+        // Only the id and the selected fields are returned
+        entity = template.getForEntity(BASE_URL + "venue/{id}?fields=name,city", JVenue.class, id);
+        assertEquals("Http response 200", HttpStatus.OK, entity.getStatusCode());
+        assertEquals("Id", id, entity.getBody().getId());
+        assertEquals("Name", "Venue21 fields", entity.getBody().getName());
+        assertEquals("City", "City", entity.getBody().getCity());
+        assertNull("Not selected", entity.getBody().getDescription());
+        assertNull("Not selected", entity.getBody().getImageUrls());
+
+        ResponseEntity<JRestError> restError = template.getForEntity(BASE_URL + "venue/{id}?fields=name,unknown",
+                JRestError.class, id);
+        assertEquals("Http response 400", HttpStatus.BAD_REQUEST, restError.getStatusCode());
+    }
+
     // Helper methods
+
+    // Index the venues in the write-behind queue now, as the flush task does
+    private int flushIndexQueue() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-AppEngine-QueueName", "index-flush");
+        ResponseEntity<Map> entity = template.exchange(BASE_URL + "venue/index/flush", HttpMethod.POST,
+                new HttpEntity<Void>(headers), Map.class);
+        assertEquals("Http response 200", HttpStatus.OK, entity.getStatusCode());
+        return (Integer) entity.getBody().get("count");
+    }
+
     private void setDefaultVenueValues(MultiValueMap<String, Object> map) {
 
         map.set("shortDescription", "Short description");
@@ -0,0 +1,13 @@
+package com.wadpam.pocketvenue.dao;
+
+/**
+ * Business Methods interface for entity DIndexCheckJob.
+ * This interface is generated by mardao, but edited by developers.
+ * It is not overwritten by the generator once it exists.
+ *
+ * Generated on 2026-10-18T18:31:07.560+0700.
+ * @author mardao DAO generator (net.sf.mardao.plugin.ProcessDomainMojo)
+ */
+public interface DIndexCheckJobDao extends GeneratedDIndexCheckJobDao {
+
+}
@@ -4,8 +4,10 @@ import com.google.appengine.api.datastore.Key;
 import com.wadpam.pocketvenue.domain.DPlace;
 import net.sf.mardao.core.CursorPage;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Business Methods interface for entity DPlace.
@@ -24,9 +26,12 @@ public interface DPlaceDao extends GeneratedDPlaceDao {
      * @param pageSize The number of places to return
      * @param text the search text
      * @param tags an optional list of tag id
+     * @param summary true to return place summaries built from the search documents without reading the datastore,
+     *                only id, parent, name, city, tags and location are set
      * @return a page of places
      */
-    public CursorPage<DPlace, Long> searchInIndexForPlaces(String cursor, int pageSize, String text, Collection<String> tags);
+    public CursorPage<DPlace, Long> searchInIndexForPlaces(String cursor, int pageSize, String text,
+                                                           Collection<String> tags, boolean summary);
 
     /**
      * Get places nearby
@@ -36,16 +41,100 @@ public interface DPlaceDao extends GeneratedDPlaceDao {
      * @param longitude the longitude to search around
      * @param radius the radius to search within
      * @param tags A list of tags ids to match against
+     * @param summary true to return place summaries built from the search documents without reading the datastore,
+     *                only id, parent, name, city, tags and location are set
      * @return a new cursor that can be used to get the next products.
      */
     public CursorPage<DPlace, Long> searchInIndexForNearby(String cursor, int pageSize, Float latitude,
-                                                           Float longitude, int radius, Collection<String> tags);
+                                                           Float longitude, int radius, Collection<String> tags,
+                                                           boolean summary);
 
     /**
-     * Delete the tag id from all venues
-     * @param tagId the tag id to delete
+     * Remove deleted tag ids from the next chunk of venues having a tag.
+     * The venues are updated with one datastore put and one bulk index update.
+     * @param tagId the tag id to scan for
+     * @param tagIds all tag ids to remove from the found venues
+     * @param cursor the cursor returned by the previous chunk. If this is the first chunk, use null.
+     * @param chunkSize the max number of venues to update
+     * @return the ids of the updated venues and the cursor of the next chunk, null if there are no more venues
      */
-    public void deleteTag(String tagId);
+    public CursorPage<Long, Long> removeTags(String tagId, Collection<String> tagIds, String cursor, int chunkSize);
+
+    /**
+     * Index the venues waiting in the write-behind index queue of the current namespace.
+     * Repeated updates of a venue are indexed once. Failed documents are retried with a backoff.
+     * @param maxTasks the max number of queued tasks to process
+     * @return the number of processed tasks
+     */
+    public int flushIndexQueue(int maxTasks);
+
+    /**
+     * Build a snapshot of the located places in the current namespace and store it in memcache.
+     * Instances load their in-process spatial index from the latest snapshot, nearby searches use the
+     * search api until a snapshot exists.
+     * @return the number of places in the snapshot
+     * @throws IOException if the snapshot could not be serialized
+     */
+    public int buildSpatialSnapshot() throws IOException;
+
+    /**
+     * Get many places by key in batch gets of at most 1000 keys.
+     * @param keys the place keys, may have different parents. Keys of other kinds are ignored
+     * @return the found places by key, keys not found are missing
+     */
+    public Map<Key, DPlace> queryByKeys(Collection<Key> keys);
+
+    /**
+     * Get many places by key with one memcache get for all keys, and one batch get for the places not cached.
+     * Places read from the datastore are cached, writes through the dao evict them.
+     * @param keys the place keys, may have different parents. Keys of other kinds are ignored
+     * @return the found places by key, keys not found are missing
+     */
+    public Map<Key, DPlace> queryByKeysCached(Collection<Key> keys);
+
+    /**
+     * Split the venue key space in ranges of about the same number of venues.
+     * @param shards the number of ranges
+     * @return the sorted keys where each range starts, except the first. May be fewer than shards - 1 for small domains.
+     */
+    public List<Key> querySplitKeys(int shards);
+
+    /**
+     * Add the next chunk of venues in a key range to the search index with one bulk index call.
+     * @param startKey the first key of the range, null for no lower bound
+     * @param endKey the first key after the range, null for no upper bound
+     * @param cursor the cursor returned by the previous chunk. If this is the first chunk, use null.
+     * @param chunkSize the max number of venues to index
+     * @param indexVersion the index version to write to, null for all written versions
+     * @return the ids of the indexed venues and the cursor of the next chunk, null if the range is done
+     */
+    public CursorPage<Long, Long> reindexRange(Key startKey, Key endKey, String cursor, int chunkSize, Long indexVersion);
+
+    /**
+     * Reload the search index versions of the current domain on next use.
+     * Other instances reload them within the configured max age.
+     */
+    public void refreshIndexState();
+
+    /**
+     * Check a chunk of the searched index against the datastore, in document id order.
+     * Documents without a place are orphans.
+     * @param startId the id of the last document checked, null to start from the first document
+     * @param chunkSize the max number of documents to check
+     * @param repair true to remove orphans from the index
+     * @return the drift found and the id to continue from, null cursor if all documents are checked
+     */
+    public IndexCheckResult checkIndexDocuments(String startId, int chunkSize, boolean repair);
+
+    /**
+     * Check a chunk of places against the searched index, in key order.
+     * Places without a document are missing, places with a document built from other field values are stale.
+     * @param cursor the datastore cursor the chunk starts at, null to start from the first place
+     * @param chunkSize the max number of places to check
+     * @param repair true to re-index missing and stale places
+     * @return the drift found and the cursor of the next chunk, null cursor if all places are checked
+     */
+    public IndexCheckResult checkIndexPlaces(String cursor, int chunkSize, boolean repair);
 
     /**
      * Get place for parent key.
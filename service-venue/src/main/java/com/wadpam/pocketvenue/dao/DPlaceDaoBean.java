@@ -1,23 +1,46 @@
 package com.wadpam.pocketvenue.dao;
 
 
+import com.google.appengine.api.NamespaceManager;
 import com.google.appengine.api.datastore.*;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.search.*;
 import com.google.appengine.api.search.Index;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.wadpam.pocketvenue.domain.DIndexState;
 import com.wadpam.pocketvenue.domain.DPlace;
 import com.wadpam.pocketvenue.domain.DTag;
 import com.wadpam.server.exceptions.BadRequestException;
 import net.sf.mardao.core.CursorPage;
-import net.sf.mardao.core.Filter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of Business Methods related to entity DPlace.
@@ -36,6 +59,72 @@ public class DPlaceDaoBean
 
     static final String SEARCH_INDEX = "searchIndex";
 
+    // Max number of documents in one index add call
+    static final int INDEX_BATCH_SIZE = 200;
+
+    // Pull queue with the ids of places waiting to be indexed, and the push queue flushing it
+    static final String INDEX_PULL_QUEUE = "index-pull";
+    static final String INDEX_FLUSH_QUEUE = "index-flush";
+
+    // Bump when the indexed fields change to re-index all places on their next write
+    static final String INDEX_FINGERPRINT_VERSION = "4";
+
+    // Number of scatter samples per shard when splitting the key space
+    static final int SCATTER_OVERSAMPLING = 32;
+    static final String SCATTER_PROPERTY = "__scatter__";
+
+    // Document fields returned in summary searches
+    static final String[] SUMMARY_FIELDS = {"parent", "name", "city", "tags", "location"};
+
+    // Max number of ids in one index consistency check query, bounded by the max query length
+    static final int INDEX_CHECK_QUERY_SIZE = 50;
+
+    // Max number of keys in one datastore batch get
+    static final int MAX_BATCH_GET_SIZE = 1000;
+
+    // Places read by key are cached in memcache as datastore entities
+    static final String PLACE_CACHE_PREFIX = "DPlace.entity.";
+    // Cache fills are blocked for a while after a write evicts a place, so a concurrent read can not add it back stale
+    static final long PLACE_CACHE_NO_READD_MILLIS = 2000L;
+
+    // Memcache key of the latest spatial snapshot, holding its build time and number of chunks
+    static final String SPATIAL_SNAPSHOT_KEY = "spatialSnapshot";
+    static final String SPATIAL_SNAPSHOT_QUEUE = "spatial-snapshot";
+
+    // In-process spatial indexes, one per namespace
+    private final ConcurrentMap<String, LoadedSpatialIndex> spatialIndexes =
+            new ConcurrentHashMap<String, LoadedSpatialIndex>();
+    // Namespaces where a request is reading a spatial snapshot from memcache
+    private final ConcurrentMap<String, Boolean> spatialIndexLoading = new ConcurrentHashMap<String, Boolean>();
+
+    private boolean spatialIndexEnabled = false;
+    private double spatialIndexCellSize = 0.05;
+    // Snapshots older than this are not used, nearby searches go to the search api
+    private long spatialIndexMaxAge = 5L * 60L * 1000L;
+    // How often an instance looks for a newer snapshot in memcache
+    private long spatialIndexRefreshMillis = 10L * 1000L;
+    // Snapshots older than this are rebuilt by a task
+    private long spatialSnapshotMillis = 60L * 1000L;
+    // Url of the snapshot endpoint, %s is replaced by the namespace
+    private String spatialSnapshotUrl;
+
+    // Write-behind indexing, the search index is updated by a task shortly after the datastore write
+    private boolean indexQueueEnabled = false;
+    // Url of the flush endpoint, %s is replaced by the namespace
+    private String indexFlushUrl;
+    // Updates within this window are coalesced into one flush
+    private int indexFlushDelaySeconds = 5;
+    private long indexLeaseSeconds = 60L;
+    private int indexMaxBackoffSeconds = 60 * 60;
+
+    // Search index versions, one state per namespace reloaded from the datastore after indexStateMaxAge
+    private DIndexStateDao indexStateDao;
+    private long indexStateMaxAge = 10L * 1000L;
+    private final ConcurrentMap<String, LoadedIndexState> indexStates =
+            new ConcurrentHashMap<String, LoadedIndexState>();
+
+    private int placeCacheSeconds = 10 * 60;
+
     // Default constructor to enable caching by Mardao
     public DPlaceDaoBean() {
         this.memCacheEntities = true;
@@ -47,56 +136,591 @@ public class DPlaceDaoBean
     @Override
     public Long persist(DPlace dPlace) {
 
-        // Persist
+        // Persist, the fingerprint is written with the place in the same put
+        boolean indexChanged = updateIndexFingerprint(dPlace);
         Long placeId = super.persist(dPlace);
+        evictFromCache(Collections.singletonList(dPlace));
 
-        // Update the index
-        updateIndex(dPlace);
+        // Update the index, unless no indexed field changed
+        if (!indexChanged)
+            LOG.debug("Indexed fields of place:{} unchanged", placeId);
+        else
+            indexPlaces(Collections.singletonList(dPlace));
+        updateSpatialIndex(dPlace);
 
         return placeId;
     }
 
-    // Update the index
-    private void updateIndex(DPlace dPlace) {
+    // Set the fingerprint of the indexed fields before the put, true if it differs from when the place was last indexed.
+    // With the index queue the fingerprint is committed together with the durable index task. A synchronous index
+    // write that fails leaves a document with an older fingerprint, which the index check finds and repairs.
+    static boolean updateIndexFingerprint(DPlace dPlace) {
+        String fingerprint = indexFingerprint(dPlace);
+        if (fingerprint.equals(dPlace.getIndexFingerprint()))
+            return false;
+
+        dPlace.setIndexFingerprint(fingerprint);
+        return true;
+    }
+
+    // Hash of the fields added to the search document in buildDocument
+    static String indexFingerprint(DPlace dPlace) {
+        StringBuilder projection = new StringBuilder(INDEX_FINGERPRINT_VERSION);
+        projection.append('\n').append(null != dPlace.getParent() ? KeyFactory.keyToString((Key) dPlace.getParent()) : "");
+        projection.append('\n').append(dPlace.getName());
+        projection.append('\n').append(dPlace.getCity());
+        projection.append('\n').append(dPlace.getTags());
+        projection.append('\n');
+        if (null != dPlace.getLocation())
+            projection.append(dPlace.getLocation().getLatitude()).append(',').append(dPlace.getLocation().getLongitude());
+
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(projection.toString().getBytes("UTF-8"));
+            return new BigInteger(1, hash).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+
+    // Update the in-process spatial index if it has been loaded in this instance
+    private void updateSpatialIndex(DPlace dPlace) {
+        LoadedSpatialIndex loaded = spatialIndexes.get(currentNamespace());
+        if (null == loaded)
+            return;
+
+        putInSpatialIndex(loaded.index, dPlace);
+    }
+
+    private static void putInSpatialIndex(SpatialIndex index, DPlace dPlace) {
+        if (null != dPlace.getLocation())
+            index.put(placeKey(dPlace), dPlace.getLocation().getLatitude(),
+                    dPlace.getLocation().getLongitude(), dPlace.getTags());
+        else
+            index.remove(placeKey(dPlace));
+    }
+
+    // Get the spatial index for the current namespace, null until a snapshot has been built.
+    // User requests never query the datastore for the index, a task builds a snapshot into memcache.
+    // At most one request per namespace and refresh interval reads a newer snapshot from memcache and waits for it,
+    // other requests meanwhile use the old index or the search api.
+    private SpatialIndex getSpatialIndex() {
+        if (!spatialIndexEnabled)
+            return null;
+
+        final String namespace = currentNamespace();
+        LoadedSpatialIndex loaded = spatialIndexes.get(namespace);
+        long now = System.currentTimeMillis();
+        if ((null == loaded || now - loaded.checkedAt >= spatialIndexRefreshMillis)
+                && null == spatialIndexLoading.putIfAbsent(namespace, Boolean.TRUE)) {
+            try {
+                loaded = loadSpatialSnapshot(namespace, loaded, now);
+            } finally {
+                spatialIndexLoading.remove(namespace);
+            }
+        }
+
+        return null != loaded && now - loaded.builtAt < spatialIndexMaxAge ? loaded.index : null;
+    }
+
+    // Use the latest snapshot in memcache if newer than the loaded index, and schedule a rebuild if missing or old
+    private LoadedSpatialIndex loadSpatialSnapshot(String namespace, LoadedSpatialIndex loaded, long now) {
+        MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+        long[] head = (long[]) memcache.get(SPATIAL_SNAPSHOT_KEY);
+        if (null == head || now - head[0] >= spatialSnapshotMillis)
+            scheduleSpatialSnapshot();
+
+        if (null != head && (null == loaded || head[0] > loaded.builtAt)) {
+            SpatialSnapshot snapshot = readSpatialSnapshot(memcache, head[0], (int) head[1]);
+            if (null != snapshot) {
+                LOG.info("Load spatial index for namespace:{} with {} places", namespace, snapshot.size());
+                loaded = new LoadedSpatialIndex(snapshot.toIndex(spatialIndexCellSize), head[0]);
+                spatialIndexes.put(namespace, loaded);
+            } else
+                scheduleSpatialSnapshot();
+        }
+
+        if (null != loaded)
+            loaded.checkedAt = now;
+        return loaded;
+    }
+
+    // Read the chunks of a snapshot, null if any chunk was evicted
+    private static SpatialSnapshot readSpatialSnapshot(MemcacheService memcache, long builtAt, int chunkCount) {
+        List<String> chunkKeys = new ArrayList<String>(chunkCount);
+        for (int i = 0; i < chunkCount; i++)
+            chunkKeys.add(spatialSnapshotChunkKey(builtAt, i));
+
+        Map<String, Object> values = memcache.getAll(chunkKeys);
+        List<byte[]> chunks = new ArrayList<byte[]>(chunkCount);
+        for (String chunkKey : chunkKeys) {
+            byte[] chunk = (byte[]) values.get(chunkKey);
+            if (null == chunk) {
+                LOG.info("Spatial snapshot:{} evicted from memcache", builtAt);
+                return null;
+            }
+            chunks.add(chunk);
+        }
+
+        try {
+            return SpatialSnapshot.fromChunks(chunks);
+        } catch (IOException e) {
+            LOG.warn("Not possible to read spatial snapshot:{}, reason:{}", builtAt, e.getMessage());
+            return null;
+        }
+    }
+
+    // Chunks are keyed by the snapshot build time, a reader never mixes chunks of two snapshots
+    private static String spatialSnapshotChunkKey(long builtAt, int chunk) {
+        return String.format("%s:%d:%d", SPATIAL_SNAPSHOT_KEY, builtAt, chunk);
+    }
+
+    // Schedule a snapshot build, one named task per namespace and snapshot interval
+    private void scheduleSpatialSnapshot() {
+        if (null == spatialSnapshotUrl) {
+            LOG.warn("No spatialSnapshotUrl configured, nearby searches use the search api");
+            return;
+        }
+
+        long window = System.currentTimeMillis() / spatialSnapshotMillis;
+        String taskName = String.format("spatial-snapshot-%08x-%d", currentNamespace().hashCode(), window);
+        try {
+            QueueFactory.getQueue(SPATIAL_SNAPSHOT_QUEUE).add(TaskOptions.Builder
+                    .withUrl(String.format(spatialSnapshotUrl, currentNamespace()))
+                    .taskName(taskName));
+        } catch (TaskAlreadyExistsException e) {
+            LOG.debug("Spatial snapshot:{} already scheduled", taskName);
+        }
+    }
+
+    // Build a snapshot of all located places and store it in memcache, called from a task
+    @Override
+    public int buildSpatialSnapshot() throws IOException {
+        final String namespace = currentNamespace();
+        LOG.info("Build spatial snapshot for namespace:{}", namespace);
+
+        final long builtAt = System.currentTimeMillis();
+        SpatialSnapshot snapshot = new SpatialSnapshot();
+        Iterable<DPlace> dPlaceIterable = queryIterable(false, 0, -1, null, null, null, false, null, false);
+        for (DPlace dPlace : dPlaceIterable) {
+            if (null != dPlace.getLocation())
+                snapshot.add(placeKey(dPlace), dPlace.getLocation().getLatitude(),
+                        dPlace.getLocation().getLongitude(), dPlace.getTags());
+        }
+
+        // Chunks first, the head makes the snapshot visible
+        List<byte[]> chunks = snapshot.toChunks();
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < chunks.size(); i++)
+            values.put(spatialSnapshotChunkKey(builtAt, i), chunks.get(i));
+        MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+        memcache.putAll(values);
+        memcache.put(SPATIAL_SNAPSHOT_KEY, new long[] {builtAt, chunks.size()});
+        LOG.info("Spatial snapshot built with {} places in {} chunks", snapshot.size(), chunks.size());
+
+        return snapshot.size();
+    }
+
+    private static String currentNamespace() {
+        String namespace = NamespaceManager.get();
+        return null != namespace ? namespace : "";
+    }
+
+    @Override
+    public Map<Key, DPlace> queryByKeys(Collection<Key> keys) {
+
+        Map<Key, DPlace> places = new HashMap<Key, DPlace>();
+        for (Map.Entry<Key, Entity> entry : getEntities(keys).entrySet())
+            places.put(entry.getKey(), coreToDomain(entry.getValue()));
+        return places;
+    }
+
+    // Get place entities in batch gets of at most MAX_BATCH_GET_SIZE keys, keys of other kinds are skipped
+    private static Map<Key, Entity> getEntities(Collection<Key> keys) {
+
+        List<Key> placeKeys = new ArrayList<Key>(keys.size());
+        for (Key key : keys) {
+            if (DPlace.class.getSimpleName().equals(key.getKind()))
+                placeKeys.add(key);
+            else
+                LOG.debug("Skip key of other kind:{}", key);
+        }
+
+        Map<Key, Entity> entities = new HashMap<Key, Entity>();
+        final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        for (int from = 0; from < placeKeys.size(); from += MAX_BATCH_GET_SIZE)
+            entities.putAll(datastore.get(placeKeys.subList(from, Math.min(placeKeys.size(), from + MAX_BATCH_GET_SIZE))));
+        return entities;
+    }
+
+    // Get places by key with one memcache get for all keys, whatever their parent. Places not cached are read
+    // in one batch get and added to the cache. Every place write path evicts the written places.
+    @Override
+    public Map<Key, DPlace> queryByKeysCached(Collection<Key> keys) {
+
+        Map<Key, DPlace> places = new HashMap<Key, DPlace>();
+        if (keys.isEmpty())
+            return places;
+
+        final MemcacheService memCache = MemcacheServiceFactory.getMemcacheService();
+        Map<String, Key> cacheKeys = new HashMap<String, Key>();
+        for (Key key : keys)
+            cacheKeys.put(placeCacheKey(key), key);
+
+        Set<Key> missingKeys = new HashSet<Key>(keys);
+        for (Map.Entry<String, Object> entry : memCache.getAll(cacheKeys.keySet()).entrySet()) {
+            Key key = cacheKeys.get(entry.getKey());
+            places.put(key, coreToDomain((Entity) entry.getValue()));
+            missingKeys.remove(key);
+        }
+        LOG.debug("Found {} of {} places in cache", places.size(), cacheKeys.size());
+        if (missingKeys.isEmpty())
+            return places;
+
+        // Places not found in the datastore are not cached
+        Map<String, Entity> missingEntities = new HashMap<String, Entity>();
+        for (Map.Entry<Key, Entity> entry : getEntities(missingKeys).entrySet()) {
+            places.put(entry.getKey(), coreToDomain(entry.getValue()));
+            missingEntities.put(placeCacheKey(entry.getKey()), entry.getValue());
+        }
+        try {
+            memCache.putAll(missingEntities, Expiration.byDeltaSeconds(placeCacheSeconds),
+                    MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Places not cached in memcache, reason:{}", e.getMessage());
+        }
+
+        return places;
+    }
+
+    private static String placeCacheKey(Key key) {
+        return PLACE_CACHE_PREFIX + KeyFactory.keyToString(key);
+    }
+
+    // Remove written places from the cache
+    private void evictFromCache(Iterable<DPlace> dPlaces) {
+        Collection<String> cacheKeys = new ArrayList<String>();
+        for (DPlace dPlace : dPlaces)
+            cacheKeys.add(placeCacheKey(placeKey(dPlace)));
+        MemcacheServiceFactory.getMemcacheService().deleteAll(cacheKeys, PLACE_CACHE_NO_READD_MILLIS);
+    }
+
+    // The datastore key of a place, places can have a parent place
+    private static Key placeKey(DPlace dPlace) {
+        return KeyFactory.createKey((Key) dPlace.getParent(), DPlace.class.getSimpleName(), dPlace.getId());
+    }
+
+    // Persist a batch of places and update the index in bulk
+    @Override
+    public Collection<Long> persist(Iterable<DPlace> dPlaces) {
 
+        // Only places with changed indexed fields are re-indexed
+        Collection<DPlace> indexChanged = new ArrayList<DPlace>();
+        for (DPlace dPlace : dPlaces) {
+            if (updateIndexFingerprint(dPlace))
+                indexChanged.add(dPlace);
+        }
+
+        // Persist all places in one datastore put
+        Collection<Long> placeIds = super.persist(dPlaces);
+        evictFromCache(dPlaces);
+
+        // Update the index
+        for (DPlace dPlace : dPlaces)
+            updateSpatialIndex(dPlace);
+        indexPlaces(indexChanged);
+
+        return placeIds;
+    }
+
+    // Update the index for many places, in bulk or through the write-behind queue.
+    // The places are already written, a failed index update does not fail the write. Places not indexed are
+    // handed to the write-behind queue if a flush url is configured, otherwise the index check repairs them.
+    private void indexPlaces(Iterable<DPlace> dPlaces) {
+
+        if (indexQueueEnabled) {
+            Collection<Key> keys = new ArrayList<Key>();
+            for (DPlace dPlace : dPlaces)
+                keys.add(placeKey(dPlace));
+            enqueueForIndex(keys);
+            return;
+        }
+
+        Collection<Document> documents = new ArrayList<Document>();
+        for (DPlace dPlace : dPlaces)
+            documents.add(buildDocument(dPlace));
+        Set<String> failedIds = updateIndex(documents);
+        if (failedIds.isEmpty())
+            return;
+
+        // Documents are identified by place id, queue every place with a failed id
+        Collection<Key> failedKeys = new ArrayList<Key>();
+        for (DPlace dPlace : dPlaces) {
+            if (failedIds.contains(Long.toString(dPlace.getId())))
+                failedKeys.add(placeKey(dPlace));
+        }
+        if (null != indexFlushUrl) {
+            LOG.warn("Queue {} places not indexed for a later flush", failedKeys.size());
+            enqueueForIndex(failedKeys);
+        } else
+            LOG.error("Places:{} not indexed, run an index check with repair", failedKeys);
+    }
+
+    // Queue place keys for indexing, in the same transaction as the datastore write if there is one
+    private void enqueueForIndex(Collection<Key> keys) {
+        if (keys.isEmpty())
+            return;
+
+        TaskOptions task = TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                .tag(indexQueueTag())
+                .payload(indexQueuePayload(keys));
+
+        Transaction txn = DatastoreServiceFactory.getDatastoreService().getCurrentTransaction(null);
+        if (null != txn) {
+            // The task is only added if the transaction commits, so is its flush
+            QueueFactory.getQueue(INDEX_PULL_QUEUE).add(txn, task);
+            QueueFactory.getQueue(INDEX_FLUSH_QUEUE).add(txn, indexFlushTask()
+                    .countdownMillis(indexFlushDelaySeconds * 1000L));
+        } else {
+            QueueFactory.getQueue(INDEX_PULL_QUEUE).add(task);
+            scheduleIndexFlush();
+        }
+    }
+
+    // Schedule a flush, one named task per namespace and time window coalesces all writes in the window
+    private void scheduleIndexFlush() {
+        long window = System.currentTimeMillis() / (indexFlushDelaySeconds * 1000L);
+        String taskName = String.format("index-flush-%08x-%d", currentNamespace().hashCode(), window);
         try {
-            // Index the text search
-            Document.Builder searchBuilder = Document.newBuilder()
-                    .setId(Long.toString(dPlace.getId()));
-
-            // Name
-            if (null != dPlace.getName() && !dPlace.getName().isEmpty())
-                searchBuilder.addField(Field.newBuilder().setName("name").setText(dPlace.getName()));
-
-            // City
-            if (null != dPlace.getCity() && !dPlace.getCity().isEmpty())
-                searchBuilder.addField(Field.newBuilder().setName("city").setText(dPlace.getCity()));
-
-            // Tag ids
-            if (null != dPlace.getTags() && dPlace.getTags().size() > 0) {
-                String tagsString = buildTagsString(dPlace.getTags());
-                searchBuilder.addField(Field.newBuilder().setName("tags").setText(tagsString));
+            QueueFactory.getQueue(INDEX_FLUSH_QUEUE).add(indexFlushTask()
+                    .taskName(taskName)
+                    .countdownMillis(indexFlushDelaySeconds * 1000L));
+        } catch (TaskAlreadyExistsException e) {
+            LOG.debug("Index flush:{} already scheduled", taskName);
+        }
+    }
+
+    // A flush task for the current namespace
+    private TaskOptions indexFlushTask() {
+        if (null == indexFlushUrl)
+            throw new IllegalStateException("No indexFlushUrl configured for the index queue");
+        return TaskOptions.Builder.withUrl(String.format(indexFlushUrl, currentNamespace()));
+    }
+
+    // The pull queue is shared by all namespaces, tasks are tagged with their namespace
+    private static String indexQueueTag() {
+        return "namespace:" + currentNamespace();
+    }
+
+    // Index the places queued in the current namespace
+    @Override
+    public int flushIndexQueue(int maxTasks) {
+
+        Queue pullQueue = QueueFactory.getQueue(INDEX_PULL_QUEUE);
+        List<TaskHandle> tasks = pullQueue.leaseTasksByTag(indexLeaseSeconds, TimeUnit.SECONDS, maxTasks, indexQueueTag());
+        LOG.debug("Leased {} index tasks", tasks.size());
+        if (tasks.isEmpty())
+            return 0;
+
+        // Coalesce, a place updated many times is indexed once with its current state
+        Map<Key, Collection<TaskHandle>> tasksByKey = new HashMap<Key, Collection<TaskHandle>>();
+        for (TaskHandle task : tasks) {
+            for (Key key : parseIndexQueuePayload(task.getPayload())) {
+                Collection<TaskHandle> placeTasks = tasksByKey.get(key);
+                if (null == placeTasks) {
+                    placeTasks = new ArrayList<TaskHandle>();
+                    tasksByKey.put(key, placeTasks);
+                }
+                placeTasks.add(task);
             }
+        }
 
-            // Index the geo location
-            if (null != dPlace.getLocation()) {
-                GeoPoint geoPoint = new GeoPoint(dPlace.getLocation().getLatitude(), dPlace.getLocation().getLongitude());
-                LOG.info("GeoPoint:{}", geoPoint);
-                searchBuilder.addField(Field.newBuilder().setName("location").setGeoPoint(geoPoint));
+        // Places not found are deleted and removed from the index.
+        // Document ids are place ids, places with different parents can share one, so failures
+        // are mapped back to the tasks through the place keys kept in the same order as the documents.
+        Map<Key, DPlace> dPlaces = queryByKeys(tasksByKey.keySet());
+        List<Document> documents = new ArrayList<Document>(dPlaces.size());
+        List<Key> documentKeys = new ArrayList<Key>(dPlaces.size());
+        for (Map.Entry<Key, DPlace> entry : dPlaces.entrySet()) {
+            documents.add(buildDocument(entry.getValue()));
+            documentKeys.add(entry.getKey());
+        }
+        List<String> removedDocumentIds = new ArrayList<String>();
+        List<Key> removedKeys = new ArrayList<Key>();
+        for (Key key : tasksByKey.keySet()) {
+            if (!dPlaces.containsKey(key)) {
+                removedDocumentIds.add(Long.toString(key.getId()));
+                removedKeys.add(key);
             }
+        }
 
-            getSearchIndex().add(searchBuilder.build());
+        Set<TaskHandle> failedTasks = new HashSet<TaskHandle>();
+        for (Index index : getWriteIndexes()) {
+            for (int from = 0; from < documents.size(); from += INDEX_BATCH_SIZE) {
+                List<Document> batch = documents.subList(from, Math.min(documents.size(), from + INDEX_BATCH_SIZE));
+                try {
+                    index.add(batch);
+                } catch (AddException e) {
+                    LOG.warn("Not possible to add {} documents to index, reason:{}", batch.size(), e.getMessage());
+                    List<OperationResult> results = e.getResults();
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (null == results || i >= results.size() || !StatusCode.OK.equals(results.get(i).getCode()))
+                            failedTasks.addAll(tasksByKey.get(documentKeys.get(from + i)));
+                    }
+                }
+            }
+
+            for (int from = 0; from < removedDocumentIds.size(); from += INDEX_BATCH_SIZE) {
+                List<String> batch = removedDocumentIds.subList(from, Math.min(removedDocumentIds.size(), from + INDEX_BATCH_SIZE));
+                try {
+                    index.remove(batch);
+                } catch (RemoveException e) {
+                    LOG.warn("Not possible to remove {} documents from index, reason:{}", batch.size(), e.getMessage());
+                    for (Key key : removedKeys.subList(from, from + batch.size()))
+                        failedTasks.addAll(tasksByKey.get(key));
+                }
+            }
+        }
 
+        // Done tasks are deleted, failed tasks stay leased with a backoff and are retried by a later flush
+        List<TaskHandle> doneTasks = new ArrayList<TaskHandle>(tasks.size());
+        int retryDelaySeconds = 0;
+        for (TaskHandle task : tasks) {
+            if (!failedTasks.contains(task)) {
+                doneTasks.add(task);
+                continue;
+            }
+            int retryCount = null != task.getRetryCount() ? task.getRetryCount() : 0;
+            int backoffSeconds = (int) Math.min(indexMaxBackoffSeconds, indexFlushDelaySeconds * (1L << Math.min(retryCount, 20)));
+            LOG.error("Indexing failed for task:{} retry:{}, retry in {}s", new Object[] {task.getName(), retryCount, backoffSeconds});
+            pullQueue.modifyTaskLease(task, backoffSeconds, TimeUnit.SECONDS);
+            retryDelaySeconds = Math.max(retryDelaySeconds, backoffSeconds);
+        }
+        if (!doneTasks.isEmpty())
+            pullQueue.deleteTask(doneTasks);
+
+        // More work waiting, or failed tasks to retry once their lease runs out
+        if (tasks.size() == maxTasks)
+            scheduleIndexFlush();
+        if (retryDelaySeconds > 0)
+            QueueFactory.getQueue(INDEX_FLUSH_QUEUE).add(indexFlushTask()
+                    .countdownMillis((retryDelaySeconds + 1) * 1000L));
+
+        return tasks.size();
+    }
+
+    // The payload of an index queue task.
+    // Full keys separated by ',', an id alone does not identify a place with a parent.
+    static String indexQueuePayload(Collection<Key> keys) {
+        StringBuilder payload = new StringBuilder();
+        for (Key key : keys) {
+            if (payload.length() > 0)
+                payload.append(',');
+            payload.append(KeyFactory.keyToString(key));
+        }
+        return payload.toString();
+    }
+
+    // The place keys of an index queue task, tasks queued before keys were queued hold the ids of places without parent
+    static List<Key> parseIndexQueuePayload(byte[] payload) {
+        List<Key> keys = new ArrayList<Key>();
+        for (String keyString : new String(payload).split(",")) {
+            try {
+                keys.add(KeyFactory.createKey(DPlace.class.getSimpleName(), Long.parseLong(keyString)));
+            } catch (NumberFormatException e) {
+                keys.add(KeyFactory.stringToKey(keyString));
+            }
+        }
+        return keys;
+    }
+
+    // Update the index with a batch of documents, split in calls of max INDEX_BATCH_SIZE documents.
+    // Returns the ids of the documents not added to every write index.
+    private Set<String> updateIndex(Collection<Document> documents) {
+
+        Set<String> failedIds = new HashSet<String>();
+        for (Index index : getWriteIndexes()) {
+            List<Document> batch = new ArrayList<Document>(INDEX_BATCH_SIZE);
+            for (Document document : documents) {
+                batch.add(document);
+                if (batch.size() == INDEX_BATCH_SIZE) {
+                    failedIds.addAll(addToIndex(index, batch));
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty())
+                failedIds.addAll(addToIndex(index, batch));
+        }
+
+        return failedIds;
+    }
+
+    // Add a batch of documents to the index in one call, failed documents are not retried on the request thread.
+    // Returns the ids of the documents that could not be added.
+    private List<String> addToIndex(Index index, List<Document> batch) {
+
+        List<String> failedIds = new ArrayList<String>();
+        try {
+            index.add(batch);
         } catch (AddException e) {
-            if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
-                LOG.error("Not possible to add document to index");
-                // TODO: Error handling missing
+            // The results are in document order, without results every document failed
+            List<OperationResult> results = e.getResults();
+            for (int i = 0; i < batch.size(); i++) {
+                if (null == results || i >= results.size() || !StatusCode.OK.equals(results.get(i).getCode()))
+                    failedIds.add(batch.get(i).getId());
             }
+        } catch (SearchException e) {
+            for (Document document : batch)
+                failedIds.add(document.getId());
         }
+
+        if (!failedIds.isEmpty())
+            LOG.warn("Not possible to add documents:{} to index:{}", failedIds, index.getName());
+        return failedIds;
+    }
+
+    // Build the search document for a place
+    static Document buildDocument(DPlace dPlace) {
+
+        // Index the text search
+        Document.Builder searchBuilder = Document.newBuilder()
+                .setId(Long.toString(dPlace.getId()));
+
+        // Id and fingerprint, needed to check the index against the datastore
+        searchBuilder.addField(Field.newBuilder().setName("id").setAtom(Long.toString(dPlace.getId())));
+        searchBuilder.addField(Field.newBuilder().setName("fingerprint").setAtom(indexFingerprint(dPlace)));
+
+        // Parent, needed to build the key of summaries
+        if (null != dPlace.getParent())
+            searchBuilder.addField(Field.newBuilder().setName("parent").setAtom(KeyFactory.keyToString((Key) dPlace.getParent())));
+
+        // Name
+        if (null != dPlace.getName() && !dPlace.getName().isEmpty())
+            searchBuilder.addField(Field.newBuilder().setName("name").setText(dPlace.getName()));
+
+        // City
+        if (null != dPlace.getCity() && !dPlace.getCity().isEmpty())
+            searchBuilder.addField(Field.newBuilder().setName("city").setText(dPlace.getCity()));
+
+        // Tag ids
+        if (null != dPlace.getTags() && dPlace.getTags().size() > 0) {
+            String tagsString = buildTagsString(dPlace.getTags());
+            searchBuilder.addField(Field.newBuilder().setName("tags").setText(tagsString));
+        }
+
+        // Index the geo location
+        if (null != dPlace.getLocation()) {
+            GeoPoint geoPoint = new GeoPoint(dPlace.getLocation().getLatitude(), dPlace.getLocation().getLongitude());
+            LOG.debug("GeoPoint:{}", geoPoint);
+            searchBuilder.addField(Field.newBuilder().setName("location").setGeoPoint(geoPoint));
+        }
+
+        return searchBuilder.build();
     }
 
     // Concatenate all tag ids into a string with " " (blank) in between
-    private String buildTagsString (Collection<String> tags) {
+    private static String buildTagsString (Collection<String> tags) {
         StringBuilder result = new StringBuilder();
         for(String tag : tags) {
             result.append(tag);
@@ -105,23 +729,70 @@ public class DPlaceDaoBean
         return result.length() > 0 ? result.substring(0, result.length() - 1) : "";
     }
 
-    // Build search index
+    // The search index searched in the current namespace
     private Index getSearchIndex() {
+        return getSearchIndex(getIndexState().getReadVersion());
+    }
+
+    // The search indexes written to in the current namespace, more than one during a migration
+    private List<Index> getWriteIndexes() {
+        List<Index> indexes = new ArrayList<Index>();
+        for (Long version : getIndexState().getWriteVersions())
+            indexes.add(getSearchIndex(version));
+        return indexes;
+    }
+
+    // Build search index, version 1 is the original unversioned index
+    private Index getSearchIndex(long version) {
         IndexSpec indexSpec = IndexSpec.newBuilder()
-                .setName(SEARCH_INDEX)
+                .setName(version <= 1 ? SEARCH_INDEX : SEARCH_INDEX + "-v" + version)
                 .setConsistency(Consistency.PER_DOCUMENT)
                 .build();
         return SearchServiceFactory.getSearchService().getIndex(indexSpec);
     }
 
+    // Get the index versions of the current namespace, reload them from the datastore if needed
+    private DIndexState getIndexState() {
+        final String namespace = currentNamespace();
+        LoadedIndexState loaded = indexStates.get(namespace);
+        if (null != loaded && System.currentTimeMillis() - loaded.loadedAt < indexStateMaxAge)
+            return loaded.state;
+
+        DIndexState state = null != indexStateDao ? indexStateDao.findByPrimaryKey(DIndexState.STATE_ID) : null;
+        if (null == state) {
+            state = new DIndexState();
+            state.setReadVersion(1L);
+        }
+        // The datastore does not store empty collections
+        if (null == state.getWriteVersions() || state.getWriteVersions().isEmpty())
+            state.setWriteVersions(Collections.singletonList(state.getReadVersion()));
+
+        indexStates.put(namespace, new LoadedIndexState(state, System.currentTimeMillis()));
+        return state;
+    }
+
+    @Override
+    public void refreshIndexState() {
+        indexStates.remove(currentNamespace());
+    }
+
     // Delete and update index
     public boolean delete(DPlace dPlace) {
 
         // Delete from data store
         boolean result =  super.delete(dPlace);
+        evictFromCache(Collections.singletonList(dPlace));
 
         // Remove from index
-        getSearchIndex().remove(Long.toString(dPlace.getId()));
+        if (indexQueueEnabled)
+            enqueueForIndex(Collections.singletonList(placeKey(dPlace)));
+        else {
+            for (Index index : getWriteIndexes())
+                index.remove(Long.toString(dPlace.getId()));
+        }
+        LoadedSpatialIndex loaded = spatialIndexes.get(currentNamespace());
+        if (null != loaded)
+            loaded.index.remove(placeKey(dPlace));
 
         return result;
     }
@@ -129,7 +800,8 @@ public class DPlaceDaoBean
 
     // Search in the index for matching places
     @Override
-    public CursorPage<DPlace, Long> searchInIndexForPlaces(String cursor, int pageSize, String text, Collection<String> tags) {
+    public CursorPage<DPlace, Long> searchInIndexForPlaces(String cursor, int pageSize, String text,
+                                                           Collection<String> tags, boolean summary) {
 
         // Build the query string
         StringBuilder queryString = new StringBuilder();
@@ -167,6 +839,8 @@ public class DPlaceDaoBean
         // Options
         QueryOptions.Builder builder = QueryOptions.newBuilder()
                 .setLimit(pageSize);
+        if (summary)
+            builder.setFieldsToReturn(SUMMARY_FIELDS);
 
         if (null == cursor)
             builder.setCursor(com.google.appengine.api.search.Cursor.newBuilder().build());
@@ -178,13 +852,21 @@ public class DPlaceDaoBean
                     .setOptions(builder.build())
                     .build(queryString.toString());
 
-        return searchInIndexWithQuery(query, getSearchIndex());
+        return searchInIndexWithQuery(query, getSearchIndex(), summary);
     }
 
     // Search for nearby places
     @Override
     public CursorPage<DPlace, Long> searchInIndexForNearby(String cursor, int pageSize, Float latitude,
-                                         Float longitude, int radius, Collection<String> tags) {
+                                         Float longitude, int radius, Collection<String> tags,
+                                         boolean summary) {
+
+        // Answer from the in-process index unless paging a search api result, summaries are read from the search api
+        if (!summary && null != latitude && null != longitude) {
+            SpatialIndex spatialIndex = getSpatialIndex();
+            if (null != spatialIndex && (null == cursor || spatialIndex.isCursor(cursor)))
+                return searchInSpatialIndex(spatialIndex, cursor, pageSize, latitude, longitude, radius, tags);
+        }
 
         StringBuilder queryString = new StringBuilder();
 
@@ -223,6 +905,8 @@ public class DPlaceDaoBean
         QueryOptions.Builder optionBuilder = QueryOptions.newBuilder()
                 .setSortOptions(SortOptions.newBuilder().addSortExpression(sortExpression))
                 .setLimit(pageSize);
+        if (summary)
+            optionBuilder.setFieldsToReturn(SUMMARY_FIELDS);
 
         if (null == cursor)
             optionBuilder.setCursor(com.google.appengine.api.search.Cursor.newBuilder().build());
@@ -234,11 +918,40 @@ public class DPlaceDaoBean
                 .setOptions(optionBuilder.build())
                 .build(queryString.toString());
 
-        return searchInIndexWithQuery(query, getSearchIndex());
+        return searchInIndexWithQuery(query, getSearchIndex(), summary);
+    }
+
+    // Search the in-process spatial index and fetch the places from the datastore
+    private CursorPage<DPlace, Long> searchInSpatialIndex(SpatialIndex spatialIndex, String cursor, int pageSize,
+                                                          Float latitude, Float longitude, int radius,
+                                                          Collection<String> tags) {
+
+        CursorPage<Key, Long> keyPage = spatialIndex.queryNearby(cursor, pageSize, latitude, longitude, radius, tags);
+        LOG.debug("Found {} nearby places in spatial index", keyPage.getItems().size());
+
+        CursorPage<DPlace, Long> cursorPage = new CursorPage<DPlace, Long>();
+        cursorPage.setCursorKey(keyPage.getCursorKey());
+        cursorPage.setItems(queryInOrder(keyPage.getItems()));
+
+        return cursorPage;
+    }
+
+    // Get places by full key in the order of the keys, places not found are left out
+    private Collection<DPlace> queryInOrder(Collection<Key> keys) {
+        Map<Key, DPlace> dPlaceMap = keys.isEmpty() ? Collections.<Key, DPlace>emptyMap() : queryByKeysCached(keys);
+
+        Collection<DPlace> dPlaces = new ArrayList<DPlace>(keys.size());
+        for (Key key : keys) {
+            DPlace dPlace = dPlaceMap.get(key);
+            if (null != dPlace)
+                dPlaces.add(dPlace);
+        }
+        return dPlaces;
     }
 
     // Search in index for a query
-    private CursorPage<DPlace, Long> searchInIndexWithQuery(com.google.appengine.api.search.Query query, Index index) {
+    private CursorPage<DPlace, Long> searchInIndexWithQuery(com.google.appengine.api.search.Query query, Index index,
+                                                            boolean summary) {
 
         try {
             // Query the index.
@@ -246,15 +959,20 @@ public class DPlaceDaoBean
             LOG.debug("Found {} hits in the index", results.getNumberFound());
             LOG.debug("Returned {} hits", results.getResults().size());
 
-            Collection<Long> ids = new ArrayList<Long>();
+            if (summary)
+                return buildSummaryPage(results);
+
+            Collection<Key> keys = new ArrayList<Key>();
             for (ScoredDocument document : results) {
-                // Collect all the primary keys
-                ids.add(Long.parseLong(document.getId()));
+                // Collect all the primary keys, the parent is indexed for child places
+                Field parent = getField(document, "parent");
+                Key parentKey = null != parent ? KeyFactory.stringToKey(parent.getAtom()) : null;
+                keys.add(KeyFactory.createKey(parentKey, DPlace.class.getSimpleName(), Long.parseLong(document.getId())));
             }
 
-            if (ids.size() > 0) {
+            if (keys.size() > 0) {
                 // We got results, get the places from datastore
-                Iterable<DPlace> dPlaceIterable = queryByPrimaryKeys(null, ids);
+                Collection<DPlace> dPlaces = queryInOrder(keys);
 
                 CursorPage<DPlace, Long> cursorPage = new CursorPage<DPlace, Long>();
 
@@ -264,13 +982,8 @@ public class DPlaceDaoBean
                     cursorPage.setCursorKey(results.getCursor().toWebSafeString());
                 }
 
-                Collection<DPlace> dPlaces = new ArrayList<DPlace>(ids.size());
                 cursorPage.setItems(dPlaces);
 
-                Iterator<DPlace> iterator = dPlaceIterable.iterator();
-                while (iterator.hasNext())
-                    dPlaces.add(iterator.next());
-
                 return cursorPage;
             } else {
                 // No results
@@ -285,32 +998,296 @@ public class DPlaceDaoBean
         }
     }
 
-    // Delete a tag id from all venues
-    public void deleteTag(String tagId) {
-        LOG.debug(String.format("Delete tag id:%s from all places", tagId));
+    // Remove tag ids from the next chunk of places with a tag, all removed tags are removed in the same update
+    @Override
+    public CursorPage<Long, Long> removeTags(String tagId, Collection<String> tagIds, String cursor, int chunkSize) {
+        LOG.debug("Remove {} tag ids from places with tag id:{}", tagIds.size(), tagId);
+
+        FetchOptions fetchOptions = FetchOptions.Builder.withLimit(chunkSize).chunkSize(chunkSize);
+        if (null != cursor)
+            fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+
+        // One equality query per tag, not an IN filter over all tag ids. The datastore runs an IN filter
+        // as one sub-query per value and merges them, and the merged query can not be resumed with a cursor.
+        Query query = new Query(DPlace.class.getSimpleName())
+                .addFilter(COLUMN_NAME_TAGS, Query.FilterOperator.EQUAL, tagId);
+        QueryResultList<Entity> entities = DatastoreServiceFactory.getDatastoreService()
+                .prepare(query).asQueryResultList(fetchOptions);
+
+        CursorPage<Long, Long> idPage = new CursorPage<Long, Long>();
+        Collection<Long> ids = new ArrayList<Long>(entities.size());
+        idPage.setItems(ids);
+        if (entities.size() == chunkSize)
+            idPage.setCursorKey(entities.getCursor().toWebSafeString());
+
+        Collection<DPlace> updatedTags = new ArrayList<DPlace>(entities.size());
+        for (Entity entity : entities) {
+            DPlace dPlace = coreToDomain(entity);
+            dPlace.getTags().removeAll(tagIds);
+            updateIndexFingerprint(dPlace);
+            updatedTags.add(dPlace);
+            ids.add(dPlace.getId());
+        }
+        if (updatedTags.isEmpty())
+            return idPage;
 
-        // Find all places with tag
-        final Filter filter = createEqualsFilter(COLUMN_NAME_TAGS, tagId);
-        Iterable<DPlace> dPlaceIterable = queryIterable(false, 0, -1, null, null, null, false, null, false, filter);
+        // Save to datastore in one batch
+        update(updatedTags);
+        evictFromCache(updatedTags);
 
-        Collection<DPlace> updatedTags = new ArrayList<DPlace>();
-        Iterator<DPlace> iterator = dPlaceIterable.iterator();
-        while (iterator.hasNext()) {
-            DPlace dPlace = iterator.next();
+        // Update the index in bulk
+        for (DPlace dPlace : updatedTags)
+            updateSpatialIndex(dPlace);
+        indexPlaces(updatedTags);
 
-            Collection<String> existingTagIds = dPlace.getTags();
-            if (null != existingTagIds) {
-                existingTagIds.remove(tagId);
-                updatedTags.add(dPlace);
+        return idPage;
+    }
+
+    // Split the key space using the scatter property, a random sample of the entities kept by the datastore
+    @Override
+    public List<Key> querySplitKeys(int shards) {
+
+        List<Key> keys = new ArrayList<Key>();
+        if (shards < 2)
+            return keys;
+
+        Query query = new Query(DPlace.class.getSimpleName())
+                .addSort(SCATTER_PROPERTY)
+                .setKeysOnly();
+        for (Entity entity : DatastoreServiceFactory.getDatastoreService().prepare(query)
+                .asIterable(FetchOptions.Builder.withLimit(shards * SCATTER_OVERSAMPLING)))
+            keys.add(entity.getKey());
+        Collections.sort(keys);
+        LOG.debug("Split key space with {} scatter samples", keys.size());
+
+        List<Key> splitKeys = new ArrayList<Key>(shards - 1);
+        for (int i = 1; i < shards && !keys.isEmpty(); i++) {
+            Key splitKey = keys.get(i * keys.size() / shards);
+            if (splitKeys.isEmpty() || !splitKeys.get(splitKeys.size() - 1).equals(splitKey))
+                splitKeys.add(splitKey);
+        }
+
+        return splitKeys;
+    }
+
+    // Index a chunk of a key range, index errors are thrown to let the task queue retry the chunk
+    @Override
+    public CursorPage<Long, Long> reindexRange(Key startKey, Key endKey, String cursor, int chunkSize, Long indexVersion) {
+
+        Query query = new Query(DPlace.class.getSimpleName());
+        if (null != startKey)
+            query.addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.GREATER_THAN_OR_EQUAL, startKey);
+        if (null != endKey)
+            query.addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.LESS_THAN, endKey);
+        query.addSort(Entity.KEY_RESERVED_PROPERTY);
+
+        FetchOptions fetchOptions = FetchOptions.Builder.withLimit(chunkSize).chunkSize(chunkSize);
+        if (null != cursor)
+            fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+        QueryResultList<Entity> entities = DatastoreServiceFactory.getDatastoreService()
+                .prepare(query).asQueryResultList(fetchOptions);
+
+        CursorPage<Long, Long> idPage = new CursorPage<Long, Long>();
+        Collection<Long> ids = new ArrayList<Long>(entities.size());
+        idPage.setItems(ids);
+        if (entities.size() == chunkSize)
+            idPage.setCursorKey(entities.getCursor().toWebSafeString());
+
+        List<Document> documents = new ArrayList<Document>(entities.size());
+        for (Entity entity : entities) {
+            DPlace dPlace = coreToDomain(entity);
+            documents.add(buildDocument(dPlace));
+            ids.add(dPlace.getId());
+        }
+
+        List<Index> indexes = null != indexVersion ?
+                Collections.singletonList(getSearchIndex(indexVersion)) : getWriteIndexes();
+        for (Index index : indexes) {
+            for (int from = 0; from < documents.size(); from += INDEX_BATCH_SIZE)
+                index.add(documents.subList(from, Math.min(documents.size(), from + INDEX_BATCH_SIZE)));
+        }
+
+        return idPage;
+    }
+
+    @Override
+    public IndexCheckResult checkIndexDocuments(String startId, int chunkSize, boolean repair) {
+
+        GetRequest.Builder request = GetRequest.newBuilder().setLimit(chunkSize);
+        if (null != startId)
+            request.setStartId(startId).setIncludeStart(false);
+        GetResponse<Document> documents = getSearchIndex().getRange(request);
+
+        // The datastore key of a document is built from its parent field and id
+        Map<Key, String> documentIds = new HashMap<Key, String>();
+        // Documents without fingerprint may be written before the parent field was indexed
+        Set<String> parentUnknownIds = new HashSet<String>();
+        List<String> orphanIds = new ArrayList<String>();
+        String lastId = null;
+        for (Document document : documents) {
+            lastId = document.getId();
+            try {
+                Field parent = getField(document, "parent");
+                Key parentKey = null != parent ? KeyFactory.stringToKey(parent.getAtom()) : null;
+                documentIds.put(KeyFactory.createKey(parentKey, DPlace.class.getSimpleName(),
+                        Long.parseLong(document.getId())), document.getId());
+                if (null == parent && null == getField(document, "fingerprint"))
+                    parentUnknownIds.add(document.getId());
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Document with id:{} does not identify a place", document.getId());
+                orphanIds.add(document.getId());
             }
         }
 
-        // Save to datastore
-        update(updatedTags);
+        // A document without a root place and without a known parent may belong to a child place, it is kept
+        int unknown = 0;
+        Map<Key, Entity> entities = DatastoreServiceFactory.getDatastoreService().get(documentIds.keySet());
+        for (Map.Entry<Key, String> entry : documentIds.entrySet()) {
+            if (entities.containsKey(entry.getKey()))
+                continue;
+            if (parentUnknownIds.contains(entry.getValue()))
+                unknown++;
+            else
+                orphanIds.add(entry.getValue());
+        }
 
-        // Update the index
-        for (DPlace dPlace : updatedTags)
-            updateIndex(dPlace);
+        if (repair && !orphanIds.isEmpty()) {
+            for (Index index : getWriteIndexes()) {
+                for (int from = 0; from < orphanIds.size(); from += INDEX_BATCH_SIZE)
+                    index.remove(orphanIds.subList(from, Math.min(orphanIds.size(), from + INDEX_BATCH_SIZE)));
+            }
+        }
+
+        IndexCheckResult result = new IndexCheckResult();
+        result.setChecked(documents.getResults().size());
+        result.setOrphaned(orphanIds.size());
+        result.setUnknown(unknown);
+        if (documents.getResults().size() == chunkSize)
+            result.setCursor(lastId);
+        return result;
+    }
+
+    @Override
+    public IndexCheckResult checkIndexPlaces(String cursor, int chunkSize, boolean repair) {
+
+        Query query = new Query(DPlace.class.getSimpleName());
+        query.addSort(Entity.KEY_RESERVED_PROPERTY);
+
+        FetchOptions fetchOptions = FetchOptions.Builder.withLimit(chunkSize).chunkSize(chunkSize);
+        if (null != cursor)
+            fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+        QueryResultList<Entity> entities = DatastoreServiceFactory.getDatastoreService()
+                .prepare(query).asQueryResultList(fetchOptions);
+
+        Map<String, DPlace> places = new HashMap<String, DPlace>();
+        for (Entity entity : entities) {
+            DPlace dPlace = coreToDomain(entity);
+            places.put(Long.toString(dPlace.getId()), dPlace);
+        }
+
+        // Look up the documents of the places by id, a few ids per query
+        Map<String, String> fingerprints = new HashMap<String, String>();
+        List<String> ids = new ArrayList<String>(places.keySet());
+        Index index = getSearchIndex();
+        for (int from = 0; from < ids.size(); from += INDEX_CHECK_QUERY_SIZE) {
+            List<String> batch = ids.subList(from, Math.min(ids.size(), from + INDEX_CHECK_QUERY_SIZE));
+
+            StringBuilder queryString = new StringBuilder("id:(");
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0)
+                    queryString.append(" OR ");
+                queryString.append(batch.get(i));
+            }
+            queryString.append(')');
+
+            QueryOptions options = QueryOptions.newBuilder()
+                    .setLimit(batch.size())
+                    .setFieldsToReturn("fingerprint")
+                    .build();
+            Results<ScoredDocument> results = index.search(com.google.appengine.api.search.Query.newBuilder()
+                    .setOptions(options)
+                    .build(queryString.toString()));
+            for (ScoredDocument document : results) {
+                Field fingerprint = getField(document, "fingerprint");
+                fingerprints.put(document.getId(), null != fingerprint ? fingerprint.getAtom() : "");
+            }
+        }
+
+        // Documents missing or built from an older version of the place are re-indexed
+        IndexCheckResult result = new IndexCheckResult();
+        List<Document> documents = new ArrayList<Document>();
+        for (Map.Entry<String, DPlace> entry : places.entrySet()) {
+            String fingerprint = fingerprints.get(entry.getKey());
+            if (null == fingerprint)
+                result.setMissing(result.getMissing() + 1);
+            else if (!fingerprint.equals(indexFingerprint(entry.getValue())))
+                result.setStale(result.getStale() + 1);
+            else
+                continue;
+            documents.add(buildDocument(entry.getValue()));
+        }
+
+        if (repair && !documents.isEmpty()) {
+            for (Index writeIndex : getWriteIndexes()) {
+                for (int from = 0; from < documents.size(); from += INDEX_BATCH_SIZE)
+                    writeIndex.add(documents.subList(from, Math.min(documents.size(), from + INDEX_BATCH_SIZE)));
+            }
+        }
+
+        result.setChecked(places.size());
+        if (entities.size() == chunkSize)
+            result.setCursor(entities.getCursor().toWebSafeString());
+        return result;
+    }
+
+    // Build a page of place summaries from the returned document fields, in search order
+    private CursorPage<DPlace, Long> buildSummaryPage(Results<ScoredDocument> results) {
+
+        CursorPage<DPlace, Long> cursorPage = new CursorPage<DPlace, Long>();
+        if (null != results.getCursor())
+            cursorPage.setCursorKey(results.getCursor().toWebSafeString());
+
+        Collection<DPlace> dPlaces = new ArrayList<DPlace>(results.getResults().size());
+        cursorPage.setItems(dPlaces);
+        for (ScoredDocument document : results)
+            dPlaces.add(buildSummary(document));
+
+        return cursorPage;
+    }
+
+    // A place summary with the fields of a search document
+    static DPlace buildSummary(Document document) {
+        DPlace dPlace = new DPlace();
+        dPlace.setId(Long.parseLong(document.getId()));
+
+        Field parent = getField(document, "parent");
+        if (null != parent)
+            dPlace.setParent(KeyFactory.stringToKey(parent.getAtom()));
+        Field name = getField(document, "name");
+        if (null != name)
+            dPlace.setName(name.getText());
+        Field city = getField(document, "city");
+        if (null != city)
+            dPlace.setCity(city.getText());
+        Field tags = getField(document, "tags");
+        if (null != tags && null != tags.getText() && !tags.getText().isEmpty())
+            dPlace.setTags(new ArrayList<String>(Arrays.asList(tags.getText().split(" "))));
+        Field location = getField(document, "location");
+        if (null != location && null != location.getGeoPoint())
+            dPlace.setLocation(new GeoPt((float) location.getGeoPoint().getLatitude(),
+                    (float) location.getGeoPoint().getLongitude()));
+
+        return dPlace;
+    }
+
+    // The first field with a name, null if the document does not have it
+    private static Field getField(Document document, String name) {
+        Iterable<Field> fields = document.getFields(name);
+        if (null == fields)
+            return null;
+
+        Iterator<Field> iterator = fields.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
     }
 
     // Get places for parent key
@@ -321,4 +1298,85 @@ public class DPlaceDaoBean
     }
 
 
+    // A spatial index, the build time of its snapshot and when memcache was last checked for a newer one
+    private static class LoadedSpatialIndex {
+        final SpatialIndex index;
+        final long builtAt;
+        volatile long checkedAt;
+
+        LoadedSpatialIndex(SpatialIndex index, long builtAt) {
+            this.index = index;
+            this.builtAt = builtAt;
+        }
+    }
+
+
+    // The index versions of a namespace and the time they were loaded from the datastore
+    private static class LoadedIndexState {
+        final DIndexState state;
+        final long loadedAt;
+
+        LoadedIndexState(DIndexState state, long loadedAt) {
+            this.state = state;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+
+    // Setters
+    public void setSpatialIndexEnabled(boolean spatialIndexEnabled) {
+        this.spatialIndexEnabled = spatialIndexEnabled;
+    }
+
+    public void setSpatialIndexCellSize(double spatialIndexCellSize) {
+        this.spatialIndexCellSize = spatialIndexCellSize;
+    }
+
+    public void setSpatialIndexMaxAge(long spatialIndexMaxAge) {
+        this.spatialIndexMaxAge = spatialIndexMaxAge;
+    }
+
+    public void setSpatialIndexRefreshMillis(long spatialIndexRefreshMillis) {
+        this.spatialIndexRefreshMillis = spatialIndexRefreshMillis;
+    }
+
+    public void setSpatialSnapshotMillis(long spatialSnapshotMillis) {
+        this.spatialSnapshotMillis = spatialSnapshotMillis;
+    }
+
+    public void setSpatialSnapshotUrl(String spatialSnapshotUrl) {
+        this.spatialSnapshotUrl = spatialSnapshotUrl;
+    }
+
+    public void setIndexQueueEnabled(boolean indexQueueEnabled) {
+        this.indexQueueEnabled = indexQueueEnabled;
+    }
+
+    public void setIndexFlushUrl(String indexFlushUrl) {
+        this.indexFlushUrl = indexFlushUrl;
+    }
+
+    public void setIndexFlushDelaySeconds(int indexFlushDelaySeconds) {
+        this.indexFlushDelaySeconds = indexFlushDelaySeconds;
+    }
+
+    public void setIndexLeaseSeconds(long indexLeaseSeconds) {
+        this.indexLeaseSeconds = indexLeaseSeconds;
+    }
+
+    public void setIndexMaxBackoffSeconds(int indexMaxBackoffSeconds) {
+        this.indexMaxBackoffSeconds = indexMaxBackoffSeconds;
+    }
+
+    public void setIndexStateDao(DIndexStateDao indexStateDao) {
+        this.indexStateDao = indexStateDao;
+    }
+
+    public void setIndexStateMaxAge(long indexStateMaxAge) {
+        this.indexStateMaxAge = indexStateMaxAge;
+    }
+
+    public void setPlaceCacheSeconds(int placeCacheSeconds) {
+        this.placeCacheSeconds = placeCacheSeconds;
+    }
 }
@@ -0,0 +1,16 @@
+package com.wadpam.pocketvenue.dao;
+
+/**
+ * Implementation of Business Methods related to entity DReindexJob.
+ * This (empty) class is generated by mardao, but edited by developers.
+ * It is not overwritten by the generator once it exists.
+ *
+ * Generated on 2026-10-18T16:21:09.804+0700.
+ * @author mardao DAO generator (net.sf.mardao.plugin.ProcessDomainMojo)
+ */
+public class DReindexJobDaoBean 
+	extends GeneratedDReindexJobDaoImpl
+		implements DReindexJobDao 
+{
+
+}
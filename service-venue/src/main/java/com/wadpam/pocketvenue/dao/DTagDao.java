@@ -3,6 +3,10 @@ package com.wadpam.pocketvenue.dao;
 import com.google.appengine.api.datastore.Key;
 import com.wadpam.pocketvenue.domain.DTag;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Future;
+
 /**
  * Business Methods interface for entity DTag.
  * This interface is generated by mardao, but edited by developers.
@@ -20,4 +24,25 @@ public interface DTagDao extends GeneratedDTagDao {
     */
     public int deleteIterable(Iterable<DTag> dTagIterable);
 
+    /**
+     * Get the keys of a tag and all its descendants with a single keys-only ancestor query.
+     * @param ancestorKey the root of the subtree
+     * @return the keys of all tags in the subtree, including the root
+     */
+    public Collection<Key> queryKeysInSubtree(Key ancestorKey);
+
+    /**
+     * Delete tags by key in one batch.
+     * @param keys the tag keys
+     * @return number of tags deleted
+     */
+    public int deleteByKeys(Collection<Key> keys);
+
+    /**
+     * Start a batch get of tags without waiting for the result.
+     * @param keys the tag keys
+     * @return the found tags by key when done, keys not found are missing
+     */
+    public Future<Map<Key, DTag>> queryByKeysAsync(Collection<Key> keys);
+
 }
@@ -1,11 +1,18 @@
 package com.wadpam.pocketvenue.dao;
 
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
 import com.wadpam.pocketvenue.domain.DPlace;
 import com.wadpam.pocketvenue.domain.DTag;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * Implementation of Business Methods related to entity DTag.
@@ -31,4 +38,43 @@ public class DTagDaoBean
     public int deleteIterable(Iterable<DTag> dTagIterable) {
         return this.delete(dTagIterable);
     }
+
+    // Tags keep their parent in the key, all descendants are found with one ancestor query
+    @Override
+    public Collection<Key> queryKeysInSubtree(Key ancestorKey) {
+        Query query = new Query(DTag.class.getSimpleName())
+                .setAncestor(ancestorKey)
+                .setKeysOnly();
+
+        Collection<Key> keys = new ArrayList<Key>();
+        for (Entity entity : DatastoreServiceFactory.getDatastoreService().prepare(query)
+                .asIterable(FetchOptions.Builder.withChunkSize(500)))
+            keys.add(entity.getKey());
+
+        return keys;
+    }
+
+    // Delete through mardao to also evict the cached entities
+    @Override
+    public int deleteByKeys(Collection<Key> keys) {
+        Collection<DTag> dTags = new ArrayList<DTag>(keys.size());
+        for (Key key : keys) {
+            DTag dTag = new DTag();
+            dTag.setId(key.getId());
+            dTag.setParent(key.getParent());
+            dTags.add(dTag);
+        }
+        return this.delete(dTags);
+    }
+
+    // The batch get runs while the caller starts other reads
+    @Override
+    public Future<Map<Key, DTag>> queryByKeysAsync(Collection<Key> keys) {
+        return new EntityMapFuture<DTag>(DatastoreServiceFactory.getAsyncDatastoreService().get(keys)) {
+            @Override
+            protected DTag convert(Entity entity) {
+                return coreToDomain(entity);
+            }
+        };
+    }
 }
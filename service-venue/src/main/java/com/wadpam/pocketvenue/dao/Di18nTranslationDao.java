@@ -1,7 +1,12 @@
 package com.wadpam.pocketvenue.dao;
 
+import com.google.appengine.api.datastore.Key;
 import com.wadpam.pocketvenue.domain.Di18nTranslation;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Future;
+
 /**
  * Business Methods interface for entity Di18nTranslation.
  * This interface is generated by mardao, but edited by developers.
@@ -19,5 +24,45 @@ public interface Di18nTranslationDao extends GeneratedDi18nTranslationDao {
      */
     public int delete(Iterable<Di18nTranslation> di18nIterable);
 
+    /**
+     * Build the primary key of a translation.
+     * @param parentKey the parent resource being translated
+     * @param locale the locale
+     * @return the translation key
+     */
+    public Key createTranslationKey(Key parentKey, String locale);
+
+    /**
+     * Get translations with datastore batch gets of at most 1000 keys.
+     * @param keys the translation keys, see {@link #createTranslationKey(Key, String)}
+     * @return the translations found, mapped by key. Missing translations are not in the map
+     */
+    public Map<Key, Di18nTranslation> findByPrimaryKeys(Collection<Key> keys);
+
+    /**
+     * Start a batch get of translations without waiting for the result.
+     * @param keys the translation keys, see {@link #createTranslationKey(Key, String)}
+     * @return the translations found by key when done, missing translations are not in the map
+     */
+    public Future<Map<Key, Di18nTranslation>> findByPrimaryKeysAsync(Collection<Key> keys);
+
+    /**
+     * Get all translations for a list of parents.
+     * The ancestor queries are run concurrently with the async datastore api.
+     * @param parentKeys the parent resources being translated
+     * @param maxInFlight the max number of queries running at the same time, at least 1
+     * @return the translations of each parent, in the same order as the parent keys
+     * @throws IllegalArgumentException if maxInFlight is less than 1
+     */
+    public Map<Key, Collection<Di18nTranslation>> queryByParentKeys(Collection<Key> parentKeys, int maxInFlight);
+
+    /**
+     * Get all translations in a locale, of any parent.
+     * The locale is the key name and can not be filtered on, the keys of all translations are scanned.
+     * @param locale the locale
+     * @return the translations in the locale
+     */
+    public Collection<Di18nTranslation> queryByLocale(String locale);
+
 
 }
@@ -1,8 +1,23 @@
 package com.wadpam.pocketvenue.dao;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
 import com.wadpam.pocketvenue.domain.Di18nTranslation;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
 /**
  * Implementation of Business Methods related to entity Di18nTranslation.
  * This (empty) class is generated by mardao, but edited by developers.
@@ -16,10 +31,117 @@ public class Di18nTranslationDaoBean
 		implements Di18nTranslationDao 
 {
 
+    // Max number of keys in one datastore batch get
+    static final int MAX_BATCH_GET_SIZE = 1000;
+
     // Delete all translations for a specific parent
     public int delete(Iterable<Di18nTranslation> di18nIterable) {
         return this.delete(di18nIterable);
     }
 
+    // Build a translation key, the locale is the key name
+    @Override
+    public Key createTranslationKey(Key parentKey, String locale) {
+        return KeyFactory.createKey(parentKey, Di18nTranslation.class.getSimpleName(), locale);
+    }
+
+    // Get all translations with one datastore batch get, split only above MAX_BATCH_GET_SIZE keys.
+    // Keys of many parents are read in the same get, not one call per parent.
+    @Override
+    public Map<Key, Di18nTranslation> findByPrimaryKeys(Collection<Key> keys) {
+
+        Map<Key, Di18nTranslation> result = new HashMap<Key, Di18nTranslation>();
+        List<Key> keyList = new ArrayList<Key>(keys);
+        for (int from = 0; from < keyList.size(); from += MAX_BATCH_GET_SIZE) {
+            Map<Key, Entity> entities = DatastoreServiceFactory.getDatastoreService()
+                    .get(keyList.subList(from, Math.min(keyList.size(), from + MAX_BATCH_GET_SIZE)));
+            for (Map.Entry<Key, Entity> entry : entities.entrySet())
+                result.put(entry.getKey(), coreToDomain(entry.getValue()));
+        }
+
+        return result;
+    }
+
+    // The batch get runs while the caller starts other reads
+    @Override
+    public Future<Map<Key, Di18nTranslation>> findByPrimaryKeysAsync(Collection<Key> keys) {
+        return new EntityMapFuture<Di18nTranslation>(DatastoreServiceFactory.getAsyncDatastoreService().get(keys)) {
+            @Override
+            protected Di18nTranslation convert(Entity entity) {
+                return coreToDomain(entity);
+            }
+        };
+    }
+
+    // Scan the keys only, a keys-only query is much cheaper than reading the translations of all locales,
+    // then get the translations in the locale in batches while scanning
+    @Override
+    public Collection<Di18nTranslation> queryByLocale(String locale) {
+
+        Query query = new Query(Di18nTranslation.class.getSimpleName()).setKeysOnly();
+        Collection<Di18nTranslation> result = new ArrayList<Di18nTranslation>();
+        Collection<Key> keys = new ArrayList<Key>(MAX_BATCH_GET_SIZE);
+        for (Entity entity : DatastoreServiceFactory.getDatastoreService().prepare(query)
+                .asIterable(FetchOptions.Builder.withChunkSize(500))) {
+            if (!locale.equals(entity.getKey().getName()))
+                continue;
+            keys.add(entity.getKey());
+            if (keys.size() == MAX_BATCH_GET_SIZE) {
+                result.addAll(findByPrimaryKeys(keys).values());
+                keys.clear();
+            }
+        }
+        result.addAll(findByPrimaryKeys(keys).values());
+
+        return result;
+    }
+
+    // Run the ancestor queries concurrently, at most maxInFlight at the same time
+    @Override
+    public Map<Key, Collection<Di18nTranslation>> queryByParentKeys(Collection<Key> parentKeys, int maxInFlight) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException(String.format("maxInFlight must be at least 1, got:%d", maxInFlight));
+
+        AsyncDatastoreService datastore = DatastoreServiceFactory.getAsyncDatastoreService();
+        FetchOptions fetchOptions = FetchOptions.Builder.withPrefetchSize(100).chunkSize(100);
+
+        Map<Key, Collection<Di18nTranslation>> result = new LinkedHashMap<Key, Collection<Di18nTranslation>>();
+        LinkedList<PendingQuery> inFlight = new LinkedList<PendingQuery>();
+        for (Key parentKey : parentKeys) {
+            // Wait for the oldest query before starting a new one
+            if (inFlight.size() >= maxInFlight)
+                collect(inFlight.removeFirst(), result);
+
+            // The async api starts the query without waiting for the results
+            Query query = new Query(Di18nTranslation.class.getSimpleName()).setAncestor(parentKey);
+            inFlight.add(new PendingQuery(parentKey, datastore.prepare(query).asIterable(fetchOptions)));
+        }
+
+        while (!inFlight.isEmpty())
+            collect(inFlight.removeFirst(), result);
+
+        return result;
+    }
+
+    // Block until the query results are available and convert them
+    private void collect(PendingQuery pendingQuery, Map<Key, Collection<Di18nTranslation>> result) {
+        Collection<Di18nTranslation> translations = new ArrayList<Di18nTranslation>();
+        for (Entity entity : pendingQuery.entities)
+            translations.add(coreToDomain(entity));
+        result.put(pendingQuery.parentKey, translations);
+    }
+
+
+    // A started ancestor query
+    private static class PendingQuery {
+        final Key parentKey;
+        final Iterable<Entity> entities;
+
+        PendingQuery(Key parentKey, Iterable<Entity> entities) {
+            this.parentKey = parentKey;
+            this.entities = entities;
+        }
+    }
+
 
 }
@@ -0,0 +1,60 @@
+package com.wadpam.pocketvenue.dao;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A batch get started with the async datastore api.
+ * The entities are converted to domain objects when the result is read, the caller is not blocked until then.
+ * @author mattiaslevin
+ */
+abstract class EntityMapFuture<T> implements Future<Map<Key, T>> {
+
+    private final Future<Map<Key, Entity>> entities;
+
+    EntityMapFuture(Future<Map<Key, Entity>> entities) {
+        this.entities = entities;
+    }
+
+    // Convert a found entity to a domain object
+    protected abstract T convert(Entity entity);
+
+    private Map<Key, T> convertAll(Map<Key, Entity> found) {
+        Map<Key, T> result = new HashMap<Key, T>(found.size());
+        for (Map.Entry<Key, Entity> entry : found.entrySet())
+            result.put(entry.getKey(), convert(entry.getValue()));
+        return result;
+    }
+
+    @Override
+    public Map<Key, T> get() throws InterruptedException, ExecutionException {
+        return convertAll(entities.get());
+    }
+
+    @Override
+    public Map<Key, T> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return convertAll(entities.get(timeout, unit));
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return entities.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return entities.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return entities.isDone();
+    }
+}
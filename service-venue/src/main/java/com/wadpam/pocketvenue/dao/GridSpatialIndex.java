@@ -0,0 +1,268 @@
+package com.wadpam.pocketvenue.dao;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import net.sf.mardao.core.CursorPage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Spatial index that buckets places in a fixed latitude/longitude grid.
+ * A nearby query only visits the cells overlapping the bounding box of the search circle.
+ * @author mattiaslevin
+ */
+public class GridSpatialIndex implements SpatialIndex {
+
+    private static final double EARTH_RADIUS = 6371000.0;
+    private static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS / 180.0;
+
+    private static final String CURSOR_PREFIX = "grid:";
+
+    // Visiting more cells than this is slower than scanning all entries
+    private static final int MAX_CELLS_PER_QUERY = 4096;
+
+    private final double cellSize;
+
+    private final Map<Long, Map<Key, Entry>> cells = new HashMap<Long, Map<Key, Entry>>();
+    private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+
+    /**
+     * Create a new grid index.
+     * @param cellSize the cell side in degrees, e.g. 0.05 (around 5.5km at the equator)
+     */
+    public GridSpatialIndex(double cellSize) {
+        if (cellSize <= 0.0 || cellSize > 90.0)
+            throw new IllegalArgumentException("Cell size must be within (0, 90] degrees");
+        this.cellSize = cellSize;
+    }
+
+    @Override
+    public void put(Key key, float latitude, float longitude, Collection<String> tags) {
+        Entry entry = new Entry(key, latitude, longitude,
+                null != tags ? new HashSet<String>(tags) : Collections.<String>emptySet());
+
+        lock.writeLock().lock();
+        try {
+            removeEntry(key);
+
+            entries.put(key, entry);
+            Map<Key, Entry> cell = cells.get(entry.cell);
+            if (null == cell) {
+                cell = new HashMap<Key, Entry>();
+                cells.put(entry.cell, cell);
+            }
+            cell.put(key, entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(Key key) {
+        lock.writeLock().lock();
+        try {
+            removeEntry(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Must be called with the write lock held
+    private void removeEntry(Key key) {
+        Entry existing = entries.remove(key);
+        if (null == existing)
+            return;
+
+        Map<Key, Entry> cell = cells.get(existing.cell);
+        if (null != cell) {
+            cell.remove(key);
+            if (cell.isEmpty())
+                cells.remove(existing.cell);
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            cells.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CursorPage<Key, Long> queryNearby(String cursor, int pageSize, float latitude, float longitude,
+                                             int radius, Collection<String> tags) {
+
+        // Position after the last item of the previous page
+        double afterDistance = -1.0;
+        Key afterKey = null;
+        if (null != cursor) {
+            if (!isCursor(cursor))
+                throw new IllegalArgumentException(String.format("Not a spatial index cursor:%s", cursor));
+            String[] parts = cursor.substring(CURSOR_PREFIX.length()).split(":");
+            try {
+                afterDistance = Double.parseDouble(parts[0]);
+                afterKey = KeyFactory.stringToKey(parts[1]);
+            } catch (RuntimeException e) {
+                // A malformed number, key or too few parts
+                throw new IllegalArgumentException(String.format("Not a spatial index cursor:%s", cursor), e);
+            }
+        }
+
+        // Bounding box of the search circle
+        double latDelta = radius / METERS_PER_DEGREE;
+        double cosLat = Math.cos(Math.toRadians(latitude));
+        double lonDelta = cosLat > 0.000001 ? Math.min(180.0, radius / (METERS_PER_DEGREE * cosLat)) : 180.0;
+        long minRow = row(Math.max(-90.0, latitude - latDelta));
+        long maxRow = row(Math.min(90.0, latitude + latDelta));
+        long minCol = column(longitude - lonDelta);
+        long maxCol = column(longitude + lonDelta);
+        long colCount = lonDelta >= 180.0 ? columnCount() : maxCol - minCol + 1;
+
+        List<Hit> hits = new ArrayList<Hit>();
+        lock.readLock().lock();
+        try {
+            if ((maxRow - minRow + 1) * colCount > MAX_CELLS_PER_QUERY) {
+                collectHits(entries.values(), latitude, longitude, radius, tags, afterDistance, afterKey, hits);
+            } else {
+                for (long row = minRow; row <= maxRow; row++) {
+                    for (long i = 0; i < colCount; i++) {
+                        // Wrap around the anti-meridian
+                        long col = ((minCol + i) % columnCount() + columnCount()) % columnCount();
+                        Map<Key, Entry> cell = cells.get(cellKey(row, col));
+                        if (null != cell)
+                            collectHits(cell.values(), latitude, longitude, radius, tags, afterDistance, afterKey, hits);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // Distance order, key as tie breaker to keep the cursor stable
+        Collections.sort(hits);
+
+        CursorPage<Key, Long> page = new CursorPage<Key, Long>();
+        int count = Math.min(pageSize, hits.size());
+        Collection<Key> keys = new ArrayList<Key>(count);
+        for (int i = 0; i < count; i++)
+            keys.add(hits.get(i).key);
+        page.setItems(keys);
+
+        if (hits.size() > count && count > 0) {
+            Hit last = hits.get(count - 1);
+            page.setCursorKey(CURSOR_PREFIX + last.distance + ":" + KeyFactory.keyToString(last.key));
+        }
+
+        return page;
+    }
+
+    // Add all entries inside the circle, matching the tags and positioned after the cursor
+    private static void collectHits(Collection<Entry> candidates, float latitude, float longitude, int radius,
+                                    Collection<String> tags, double afterDistance, Key afterKey, List<Hit> hits) {
+        for (Entry entry : candidates) {
+            if (null != tags && !entry.tags.containsAll(tags))
+                continue;
+
+            double distance = distance(latitude, longitude, entry.latitude, entry.longitude);
+            if (distance >= radius)
+                continue;
+            if (distance < afterDistance || (distance == afterDistance && entry.key.compareTo(afterKey) <= 0))
+                continue;
+
+            hits.add(new Hit(entry.key, distance));
+        }
+    }
+
+    @Override
+    public boolean isCursor(String cursor) {
+        return null != cursor && cursor.startsWith(CURSOR_PREFIX);
+    }
+
+    // Great circle distance in meters
+    static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) *
+                Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    private long row(double latitude) {
+        return (long) Math.floor((latitude + 90.0) / cellSize);
+    }
+
+    private long column(double longitude) {
+        return (long) Math.floor((longitude + 180.0) / cellSize);
+    }
+
+    private long columnCount() {
+        return (long) Math.ceil(360.0 / cellSize);
+    }
+
+    private static long cellKey(long row, long column) {
+        return (row << 32) | column;
+    }
+
+
+    // An indexed place
+    private class Entry {
+        final Key key;
+        final float latitude;
+        final float longitude;
+        final Set<String> tags;
+        final long cell;
+
+        Entry(Key key, float latitude, float longitude, Set<String> tags) {
+            this.key = key;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.tags = tags;
+            this.cell = cellKey(row(latitude), (column(longitude) % columnCount() + columnCount()) % columnCount());
+        }
+    }
+
+    // A place matching a query
+    private static class Hit implements Comparable<Hit> {
+        final Key key;
+        final double distance;
+
+        Hit(Key key, double distance) {
+            this.key = key;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Hit other) {
+            int result = Double.compare(distance, other.distance);
+            if (0 != result)
+                return result;
+            return key.compareTo(other.key);
+        }
+    }
+}
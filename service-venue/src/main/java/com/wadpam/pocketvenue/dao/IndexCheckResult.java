@@ -0,0 +1,83 @@
+package com.wadpam.pocketvenue.dao;
+
+/**
+ * The drift found when checking a chunk of the search index against the datastore.
+ * @author mattiaslevin
+ */
+public class IndexCheckResult {
+
+    /** Number of documents or places checked */
+    private int checked;
+
+    /** Number of documents without a place in the datastore */
+    private int orphaned;
+
+    /** Number of documents written before the parent field was indexed, their place key is not known */
+    private int unknown;
+
+    /** Number of places without a document in the index */
+    private int missing;
+
+    /** Number of places with a document not matching the place */
+    private int stale;
+
+    /** Where the next chunk starts, null if there are no more chunks */
+    private String cursor;
+
+
+    @Override
+    public String toString() {
+        return String.format("{checked:%d, orphaned:%d, unknown:%d, missing:%d, stale:%d}",
+                checked, orphaned, unknown, missing, stale);
+    }
+
+
+    // Setters and getters
+    public int getChecked() {
+        return checked;
+    }
+
+    public void setChecked(int checked) {
+        this.checked = checked;
+    }
+
+    public int getOrphaned() {
+        return orphaned;
+    }
+
+    public void setOrphaned(int orphaned) {
+        this.orphaned = orphaned;
+    }
+
+    public int getUnknown() {
+        return unknown;
+    }
+
+    public void setUnknown(int unknown) {
+        this.unknown = unknown;
+    }
+
+    public int getMissing() {
+        return missing;
+    }
+
+    public void setMissing(int missing) {
+        this.missing = missing;
+    }
+
+    public int getStale() {
+        return stale;
+    }
+
+    public void setStale(int stale) {
+        this.stale = stale;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+}
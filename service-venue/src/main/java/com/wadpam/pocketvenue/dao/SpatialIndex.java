@@ -0,0 +1,61 @@
+package com.wadpam.pocketvenue.dao;
+
+import com.google.appengine.api.datastore.Key;
+import net.sf.mardao.core.CursorPage;
+
+import java.util.Collection;
+
+/**
+ * An in-process spatial index over place locations.
+ * Implementations must be thread safe, the index is shared by all requests in an instance.
+ * @author mattiaslevin
+ */
+public interface SpatialIndex {
+
+    /**
+     * Add or replace a place in the index.
+     * @param key the place key, including the parent
+     * @param latitude the place latitude
+     * @param longitude the place longitude
+     * @param tags the tag ids of the place, may be null
+     */
+    public void put(Key key, float latitude, float longitude, Collection<String> tags);
+
+    /**
+     * Remove a place from the index. Does nothing if the place is not indexed.
+     * @param key the place key
+     */
+    public void remove(Key key);
+
+    /**
+     * Remove all places from the index.
+     */
+    public void clear();
+
+    /**
+     * Get the number of places in the index.
+     * @return the number of indexed places
+     */
+    public int size();
+
+    /**
+     * Find places within a radius, closest first.
+     * @param cursor the cursor returned from the previous call to this method. If this is the first call, use null.
+     * @param pageSize the number of place ids to return
+     * @param latitude the latitude to search around
+     * @param longitude the longitude to search around
+     * @param radius the radius in meters
+     * @param tags optional. All tag ids must be present on a place for it to match
+     * @return a page of place keys ordered by distance
+     * @throws IllegalArgumentException if the cursor is not a valid cursor of this index
+     */
+    public CursorPage<Key, Long> queryNearby(String cursor, int pageSize, float latitude, float longitude,
+                                              int radius, Collection<String> tags);
+
+    /**
+     * Check if a cursor was created by this index.
+     * @param cursor the cursor
+     * @return true if the cursor can be used with {@link #queryNearby}
+     */
+    public boolean isCursor(String cursor);
+}
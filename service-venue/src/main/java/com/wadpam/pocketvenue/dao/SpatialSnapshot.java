@@ -0,0 +1,80 @@
+package com.wadpam.pocketvenue.dao;
+
+import com.google.appengine.api.datastore.Key;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The located places of a namespace, built by a task and shared with all instances through memcache.
+ * Instances create their in-process spatial index from the snapshot instead of querying the datastore.
+ * @author mattiaslevin
+ */
+class SpatialSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Memcache values are limited to 1MB, including the key
+    static final int CHUNK_SIZE = 1000 * 1000 - 10 * 1000;
+
+    private final ArrayList<Key> keys = new ArrayList<Key>();
+    private final ArrayList<float[]> locations = new ArrayList<float[]>();
+    private final ArrayList<ArrayList<String>> tags = new ArrayList<ArrayList<String>>();
+
+
+    void add(Key key, float latitude, float longitude, Collection<String> tags) {
+        this.keys.add(key);
+        this.locations.add(new float[] {latitude, longitude});
+        this.tags.add(null != tags ? new ArrayList<String>(tags) : null);
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    // Create a spatial index with the places of the snapshot
+    SpatialIndex toIndex(double cellSize) {
+        SpatialIndex index = new GridSpatialIndex(cellSize);
+        for (int i = 0; i < keys.size(); i++)
+            index.put(keys.get(i), locations.get(i)[0], locations.get(i)[1], tags.get(i));
+        return index;
+    }
+
+    // Serialize and split in chunks fitting in one memcache value each
+    List<byte[]> toChunks() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(this);
+        out.close();
+
+        byte[] data = bytes.toByteArray();
+        List<byte[]> chunks = new ArrayList<byte[]>(data.length / CHUNK_SIZE + 1);
+        for (int from = 0; from < data.length; from += CHUNK_SIZE)
+            chunks.add(Arrays.copyOfRange(data, from, Math.min(data.length, from + CHUNK_SIZE)));
+        return chunks;
+    }
+
+    // Join chunks in order and deserialize
+    static SpatialSnapshot fromChunks(List<byte[]> chunks) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] chunk : chunks)
+            bytes.write(chunk);
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            return (SpatialSnapshot) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Not a spatial snapshot", e);
+        } finally {
+            in.close();
+        }
+    }
+}
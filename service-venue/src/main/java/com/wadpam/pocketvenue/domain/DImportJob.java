@@ -0,0 +1,186 @@
+package com.wadpam.pocketvenue.domain;
+
+import net.sf.mardao.core.domain.AbstractLongEntity;
+
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * A background CSV venue import job.
+ * The job is processed in chunks and the progress is checkpointed after every stored batch.
+ * @author mattiaslevin
+ */
+@Entity
+public class DImportJob extends AbstractLongEntity {
+
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_DONE = "DONE";
+    public static final String STATUS_FAILED = "FAILED";
+
+    /** The blob key of the uploaded CSV file */
+    @Basic
+    private String             blobKey;
+
+    /** Optional. The parent place id of all created venues */
+    @Basic
+    private String             parentPlace;
+
+    /** The url of the task queue handler processing the next chunk */
+    @Basic
+    private String             taskUrl;
+
+    /** Job status, RUNNING, DONE or FAILED */
+    @Basic
+    private String             status;
+
+    /** Byte offset in the CSV file where the next chunk starts */
+    @Basic
+    private Long               offset;
+
+    /** The first of the place ids reserved for the batch starting at offset */
+    @Basic
+    private Long               batchFirstId;
+
+    /** Number of place ids reserved for the batch starting at offset */
+    @Basic
+    private Long               batchIdCount;
+
+    /** Number of rows read */
+    @Basic
+    private Long               parsed;
+
+    /** Number of venues stored */
+    @Basic
+    private Long               persisted;
+
+    /** Number of rows that could not be parsed */
+    @Basic
+    private Long               failed;
+
+    /** The first error messages */
+    @Basic
+    private Collection<String> errors;
+
+    /** When the job started */
+    @Basic
+    private Date               startedDate;
+
+    /** When the last checkpoint was written */
+    @Basic
+    private Date               checkpointDate;
+
+
+    @Override
+    public String toString() {
+        return String.format("{id:%d, status:%s, offset:%d, parsed:%d, persisted:%d, failed:%d}",
+                getId(), status, offset, parsed, persisted, failed);
+    }
+
+
+    // Setters and getters
+    public String getBlobKey() {
+        return blobKey;
+    }
+
+    public void setBlobKey(String blobKey) {
+        this.blobKey = blobKey;
+    }
+
+    public String getParentPlace() {
+        return parentPlace;
+    }
+
+    public void setParentPlace(String parentPlace) {
+        this.parentPlace = parentPlace;
+    }
+
+    public String getTaskUrl() {
+        return taskUrl;
+    }
+
+    public void setTaskUrl(String taskUrl) {
+        this.taskUrl = taskUrl;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(Long offset) {
+        this.offset = offset;
+    }
+
+    public Long getBatchFirstId() {
+        return batchFirstId;
+    }
+
+    public void setBatchFirstId(Long batchFirstId) {
+        this.batchFirstId = batchFirstId;
+    }
+
+    public Long getBatchIdCount() {
+        return batchIdCount;
+    }
+
+    public void setBatchIdCount(Long batchIdCount) {
+        this.batchIdCount = batchIdCount;
+    }
+
+    public Long getParsed() {
+        return parsed;
+    }
+
+    public void setParsed(Long parsed) {
+        this.parsed = parsed;
+    }
+
+    public Long getPersisted() {
+        return persisted;
+    }
+
+    public void setPersisted(Long persisted) {
+        this.persisted = persisted;
+    }
+
+    public Long getFailed() {
+        return failed;
+    }
+
+    public void setFailed(Long failed) {
+        this.failed = failed;
+    }
+
+    public Collection<String> getErrors() {
+        return errors;
+    }
+
+    public void setErrors(Collection<String> errors) {
+        this.errors = errors;
+    }
+
+    public Date getStartedDate() {
+        return startedDate;
+    }
+
+    public void setStartedDate(Date startedDate) {
+        this.startedDate = startedDate;
+    }
+
+    public Date getCheckpointDate() {
+        return checkpointDate;
+    }
+
+    public void setCheckpointDate(Date checkpointDate) {
+        this.checkpointDate = checkpointDate;
+    }
+}
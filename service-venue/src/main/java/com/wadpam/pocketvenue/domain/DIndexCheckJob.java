@@ -0,0 +1,199 @@
+package com.wadpam.pocketvenue.domain;
+
+import net.sf.mardao.core.domain.AbstractLongEntity;
+
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+import java.util.Date;
+
+/**
+ * A background job checking the search index against the datastore.
+ * Index documents are streamed in id order and places in key order, each in chunks checkpointed in the job.
+ * @author mattiaslevin
+ */
+@Entity
+public class DIndexCheckJob extends AbstractLongEntity {
+
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_DONE = "DONE";
+
+    public static final String PHASE_DOCUMENTS = "DOCUMENTS";
+    public static final String PHASE_PLACES = "PLACES";
+
+    /** The url of the task queue handler processing the next chunk */
+    @Basic
+    private String             taskUrl;
+
+    /** Job status, RUNNING or DONE */
+    @Basic
+    private String             status;
+
+    /** DOCUMENTS while checking index documents against the datastore, then PLACES while checking places against the index */
+    @Basic
+    private String             phase;
+
+    /** Where the next chunk of the current phase starts, a document id or a datastore cursor, null to start from the beginning */
+    @Basic
+    private String             cursor;
+
+    /** Number of checkpoints written, names the task processing the next chunk */
+    @Basic
+    private Long               checkpoints;
+
+    /** True to remove orphans and re-index missing and stale places, false to only count them */
+    @Basic
+    private Boolean            repair;
+
+    /** Number of index documents checked */
+    @Basic
+    private Long               checkedDocuments;
+
+    /** Number of places checked */
+    @Basic
+    private Long               checkedPlaces;
+
+    /** Number of index documents without a place */
+    @Basic
+    private Long               orphaned;
+
+    /** Number of index documents without a parent field and without a root place, not removed */
+    @Basic
+    private Long               unknown;
+
+    /** Number of places without an index document */
+    @Basic
+    private Long               missing;
+
+    /** Number of places with an index document built from other field values */
+    @Basic
+    private Long               stale;
+
+    /** When the job started */
+    @Basic
+    private Date               startedDate;
+
+    /** When the last checkpoint was written */
+    @Basic
+    private Date               checkpointDate;
+
+
+    @Override
+    public String toString() {
+        return String.format("{id:%d, status:%s, phase:%s, orphaned:%d, unknown:%d, missing:%d, stale:%d}",
+                getId(), status, phase, orphaned, unknown, missing, stale);
+    }
+
+
+    // Setters and getters
+    public String getTaskUrl() {
+        return taskUrl;
+    }
+
+    public void setTaskUrl(String taskUrl) {
+        this.taskUrl = taskUrl;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public Long getCheckpoints() {
+        return checkpoints;
+    }
+
+    public void setCheckpoints(Long checkpoints) {
+        this.checkpoints = checkpoints;
+    }
+
+    public Boolean getRepair() {
+        return repair;
+    }
+
+    public void setRepair(Boolean repair) {
+        this.repair = repair;
+    }
+
+    public Long getCheckedDocuments() {
+        return checkedDocuments;
+    }
+
+    public void setCheckedDocuments(Long checkedDocuments) {
+        this.checkedDocuments = checkedDocuments;
+    }
+
+    public Long getCheckedPlaces() {
+        return checkedPlaces;
+    }
+
+    public void setCheckedPlaces(Long checkedPlaces) {
+        this.checkedPlaces = checkedPlaces;
+    }
+
+    public Long getOrphaned() {
+        return orphaned;
+    }
+
+    public void setOrphaned(Long orphaned) {
+        this.orphaned = orphaned;
+    }
+
+    public Long getUnknown() {
+        return unknown;
+    }
+
+    public void setUnknown(Long unknown) {
+        this.unknown = unknown;
+    }
+
+    public Long getMissing() {
+        return missing;
+    }
+
+    public void setMissing(Long missing) {
+        this.missing = missing;
+    }
+
+    public Long getStale() {
+        return stale;
+    }
+
+    public void setStale(Long stale) {
+        this.stale = stale;
+    }
+
+    public Date getStartedDate() {
+        return startedDate;
+    }
+
+    public void setStartedDate(Date startedDate) {
+        this.startedDate = startedDate;
+    }
+
+    public Date getCheckpointDate() {
+        return checkpointDate;
+    }
+
+    public void setCheckpointDate(Date checkpointDate) {
+        this.checkpointDate = checkpointDate;
+    }
+}
@@ -0,0 +1,64 @@
+package com.wadpam.pocketvenue.domain;
+
+import net.sf.mardao.core.domain.AbstractLongEntity;
+
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * The search index versions of a domain.
+ * During a migration documents are written to both the old and the new version, searches read from one version.
+ * There is one entity per domain, with id STATE_ID.
+ * @author mattiaslevin
+ */
+@Entity
+public class DIndexState extends AbstractLongEntity {
+
+    public static final Long STATE_ID = 1L;
+
+    /** The index version searched */
+    @Basic
+    private Long               readVersion;
+
+    /** The index versions documents are written to */
+    @Basic
+    private Collection<Long>   writeVersions;
+
+    /** When the versions were last changed */
+    @Basic
+    private Date               updatedDate;
+
+
+    @Override
+    public String toString() {
+        return String.format("{readVersion:%d, writeVersions:%s}", readVersion, writeVersions);
+    }
+
+
+    // Setters and getters
+    public Long getReadVersion() {
+        return readVersion;
+    }
+
+    public void setReadVersion(Long readVersion) {
+        this.readVersion = readVersion;
+    }
+
+    public Collection<Long> getWriteVersions() {
+        return writeVersions;
+    }
+
+    public void setWriteVersions(Collection<Long> writeVersions) {
+        this.writeVersions = writeVersions;
+    }
+
+    public Date getUpdatedDate() {
+        return updatedDate;
+    }
+
+    public void setUpdatedDate(Date updatedDate) {
+        this.updatedDate = updatedDate;
+    }
+}
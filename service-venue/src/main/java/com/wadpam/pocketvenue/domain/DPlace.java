@@ -112,6 +112,12 @@ public class DPlace extends AbstractLongEntity {
     @Basic
     private Collection<Link>    imageUrls;
 
+    // Search index
+
+    /** Hash of the indexed fields when the place was last indexed */
+    @Basic
+    private String              indexFingerprint;
+
 
     // TODO: What other attributes should exist
 
@@ -290,4 +296,12 @@ public class DPlace extends AbstractLongEntity {
     public void setOpeningHours(Collection<String> openingHours) {
         this.openingHours = openingHours;
     }
+
+    public String getIndexFingerprint() {
+        return indexFingerprint;
+    }
+
+    public void setIndexFingerprint(String indexFingerprint) {
+        this.indexFingerprint = indexFingerprint;
+    }
 }
@@ -0,0 +1,148 @@
+package com.wadpam.pocketvenue.domain;
+
+import net.sf.mardao.core.domain.AbstractLongEntity;
+
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * A background job rebuilding the search index from the datastore.
+ * The place key space is split in shards that are indexed in parallel by separate tasks.
+ * @author mattiaslevin
+ */
+@Entity
+public class DReindexJob extends AbstractLongEntity {
+
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_DONE = "DONE";
+
+    /** The url of the task queue handlers processing the shards */
+    @Basic
+    private String             taskUrl;
+
+    /** Job status, RUNNING or DONE */
+    @Basic
+    private String             status;
+
+    /** Optional. The index version backfilled, null to write to all written versions */
+    @Basic
+    private Long               indexVersion;
+
+    /** Number of key ranges indexed in parallel */
+    @Basic
+    private Long               shards;
+
+    /** The shards that are done */
+    @Basic
+    private Collection<Long>   doneShards;
+
+    /** Datastore cursor each shard has indexed up to, in shard order, empty before its first checkpoint */
+    @Basic
+    private Collection<String> shardCursors;
+
+    /** Number of places indexed by each shard at its last checkpoint, in shard order */
+    @Basic
+    private Collection<Long>   shardIndexed;
+
+    /** Number of places indexed by all shards at their last checkpoint */
+    @Basic
+    private Long               indexed;
+
+    /** When the job started */
+    @Basic
+    private Date               startedDate;
+
+    /** When the last shard checkpoint was written */
+    @Basic
+    private Date               checkpointDate;
+
+
+    @Override
+    public String toString() {
+        return String.format("{id:%d, status:%s, shards:%d, indexed:%d}", getId(), status, shards, indexed);
+    }
+
+
+    // Setters and getters
+    public String getTaskUrl() {
+        return taskUrl;
+    }
+
+    public void setTaskUrl(String taskUrl) {
+        this.taskUrl = taskUrl;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Long getIndexVersion() {
+        return indexVersion;
+    }
+
+    public void setIndexVersion(Long indexVersion) {
+        this.indexVersion = indexVersion;
+    }
+
+    public Long getShards() {
+        return shards;
+    }
+
+    public void setShards(Long shards) {
+        this.shards = shards;
+    }
+
+    public Collection<Long> getDoneShards() {
+        return doneShards;
+    }
+
+    public void setDoneShards(Collection<Long> doneShards) {
+        this.doneShards = doneShards;
+    }
+
+    public Collection<String> getShardCursors() {
+        return shardCursors;
+    }
+
+    public void setShardCursors(Collection<String> shardCursors) {
+        this.shardCursors = shardCursors;
+    }
+
+    public Collection<Long> getShardIndexed() {
+        return shardIndexed;
+    }
+
+    public void setShardIndexed(Collection<Long> shardIndexed) {
+        this.shardIndexed = shardIndexed;
+    }
+
+    public Long getIndexed() {
+        return indexed;
+    }
+
+    public void setIndexed(Long indexed) {
+        this.indexed = indexed;
+    }
+
+    public Date getStartedDate() {
+        return startedDate;
+    }
+
+    public void setStartedDate(Date startedDate) {
+        this.startedDate = startedDate;
+    }
+
+    public Date getCheckpointDate() {
+        return checkpointDate;
+    }
+
+    public void setCheckpointDate(Date checkpointDate) {
+        this.checkpointDate = checkpointDate;
+    }
+}
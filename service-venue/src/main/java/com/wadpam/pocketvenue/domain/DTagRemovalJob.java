@@ -0,0 +1,124 @@
+package com.wadpam.pocketvenue.domain;
+
+import net.sf.mardao.core.domain.AbstractLongEntity;
+
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+import java.util.Collection;
+import java.util.Date;
+
+/**
+ * A background job removing deleted tag ids from all places.
+ * Places are scanned one tag at a time with a datastore cursor that is checkpointed after every chunk.
+ * @author mattiaslevin
+ */
+@Entity
+public class DTagRemovalJob extends AbstractLongEntity {
+
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_DONE = "DONE";
+
+    /** The deleted tag ids to remove from places */
+    @Basic
+    private Collection<String> tagIds;
+
+    /** The url of the task queue handler processing the next chunk */
+    @Basic
+    private String             taskUrl;
+
+    /** Job status, RUNNING or DONE */
+    @Basic
+    private String             status;
+
+    /** Index in tagIds of the tag currently scanned for */
+    @Basic
+    private Long               tagIndex;
+
+    /** Datastore cursor where the next chunk of places starts, null to start from the beginning */
+    @Basic
+    private String             cursor;
+
+    /** Number of places updated */
+    @Basic
+    private Long               updated;
+
+    /** When the job started */
+    @Basic
+    private Date               startedDate;
+
+    /** When the last checkpoint was written */
+    @Basic
+    private Date               checkpointDate;
+
+
+    @Override
+    public String toString() {
+        return String.format("{id:%d, status:%s, tagIndex:%d, updated:%d}", getId(), status, tagIndex, updated);
+    }
+
+
+    // Setters and getters
+    public Collection<String> getTagIds() {
+        return tagIds;
+    }
+
+    public void setTagIds(Collection<String> tagIds) {
+        this.tagIds = tagIds;
+    }
+
+    public String getTaskUrl() {
+        return taskUrl;
+    }
+
+    public void setTaskUrl(String taskUrl) {
+        this.taskUrl = taskUrl;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Long getTagIndex() {
+        return tagIndex;
+    }
+
+    public void setTagIndex(Long tagIndex) {
+        this.tagIndex = tagIndex;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public Long getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(Long updated) {
+        this.updated = updated;
+    }
+
+    public Date getStartedDate() {
+        return startedDate;
+    }
+
+    public void setStartedDate(Date startedDate) {
+        this.startedDate = startedDate;
+    }
+
+    public Date getCheckpointDate() {
+        return checkpointDate;
+    }
+
+    public void setCheckpointDate(Date checkpointDate) {
+        this.checkpointDate = checkpointDate;
+    }
+}
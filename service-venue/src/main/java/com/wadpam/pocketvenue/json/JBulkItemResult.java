@@ -0,0 +1,53 @@
+package com.wadpam.pocketvenue.json;
+
+import com.wadpam.open.json.JBaseObject;
+
+/**
+ * Json representation of the outcome of one item in a bulk write, or of a venue not found in a lookup by ids.
+ * @author mattiaslevin
+ */
+public class JBulkItemResult extends JBaseObject {
+
+    // Id is inherited from from parent class, set if the item was written
+
+    /** Position of the item in the request */
+    private Integer            index;
+
+    /** The http status of the item, 200 updated, 201 created, 400 invalid, 404 not found or 500 not stored */
+    private Integer            status;
+
+    /** Why the item was not written */
+    private String             message;
+
+
+    @Override
+    protected String subString() {
+        return String.format("index:%d status:%d message:%s", index, status, message);
+    }
+
+
+    // Setters and getters
+    public Integer getIndex() {
+        return index;
+    }
+
+    public void setIndex(Integer index) {
+        this.index = index;
+    }
+
+    public Integer getStatus() {
+        return status;
+    }
+
+    public void setStatus(Integer status) {
+        this.status = status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
@@ -0,0 +1,88 @@
+package com.wadpam.pocketvenue.json;
+
+import com.wadpam.open.json.JBaseObject;
+
+import java.util.Collection;
+
+/**
+ * Json representation of a CSV import job.
+ * @author mattiaslevin
+ */
+public class JImportJob extends JBaseObject {
+
+    // Id is inherited from from parent class
+
+    /** Job status, RUNNING, DONE or FAILED */
+    private String             status;
+
+    /** Number of rows read */
+    private Long               parsed;
+
+    /** Number of venues stored */
+    private Long               persisted;
+
+    /** Number of rows that could not be parsed */
+    private Long               failed;
+
+    /** Stored venues per second since the job started */
+    private Double             throughput;
+
+    /** The first error messages */
+    private Collection<String> errors;
+
+
+    @Override
+    protected String subString() {
+        return String.format("status:%s parsed:%d persisted:%d failed:%d", status, parsed, persisted, failed);
+    }
+
+
+    // Setters and getters
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Long getParsed() {
+        return parsed;
+    }
+
+    public void setParsed(Long parsed) {
+        this.parsed = parsed;
+    }
+
+    public Long getPersisted() {
+        return persisted;
+    }
+
+    public void setPersisted(Long persisted) {
+        this.persisted = persisted;
+    }
+
+    public Long getFailed() {
+        return failed;
+    }
+
+    public void setFailed(Long failed) {
+        this.failed = failed;
+    }
+
+    public Double getThroughput() {
+        return throughput;
+    }
+
+    public void setThroughput(Double throughput) {
+        this.throughput = throughput;
+    }
+
+    public Collection<String> getErrors() {
+        return errors;
+    }
+
+    public void setErrors(Collection<String> errors) {
+        this.errors = errors;
+    }
+}
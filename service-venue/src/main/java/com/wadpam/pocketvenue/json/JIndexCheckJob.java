@@ -0,0 +1,120 @@
+package com.wadpam.pocketvenue.json;
+
+import com.wadpam.open.json.JBaseObject;
+
+/**
+ * Json representation of a search index consistency check job.
+ * @author mattiaslevin
+ */
+public class JIndexCheckJob extends JBaseObject {
+
+    // Id is inherited from from parent class
+
+    /** Job status, RUNNING or DONE */
+    private String             status;
+
+    /** Phase being checked, DOCUMENTS or PLACES */
+    private String             phase;
+
+    /** True if the found drift is repaired */
+    private Boolean            repair;
+
+    /** Number of index documents checked */
+    private Long               checkedDocuments;
+
+    /** Number of places checked */
+    private Long               checkedPlaces;
+
+    /** Number of index documents without a place */
+    private Long               orphaned;
+
+    /** Number of index documents without a parent field and without a root place, not removed */
+    private Long               unknown;
+
+    /** Number of places without an index document */
+    private Long               missing;
+
+    /** Number of places with an index document built from other field values */
+    private Long               stale;
+
+
+    @Override
+    protected String subString() {
+        return String.format("status:%s phase:%s orphaned:%d unknown:%d missing:%d stale:%d",
+                status, phase, orphaned, unknown, missing, stale);
+    }
+
+
+    // Setters and getters
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public Boolean getRepair() {
+        return repair;
+    }
+
+    public void setRepair(Boolean repair) {
+        this.repair = repair;
+    }
+
+    public Long getCheckedDocuments() {
+        return checkedDocuments;
+    }
+
+    public void setCheckedDocuments(Long checkedDocuments) {
+        this.checkedDocuments = checkedDocuments;
+    }
+
+    public Long getCheckedPlaces() {
+        return checkedPlaces;
+    }
+
+    public void setCheckedPlaces(Long checkedPlaces) {
+        this.checkedPlaces = checkedPlaces;
+    }
+
+    public Long getOrphaned() {
+        return orphaned;
+    }
+
+    public void setOrphaned(Long orphaned) {
+        this.orphaned = orphaned;
+    }
+
+    public Long getUnknown() {
+        return unknown;
+    }
+
+    public void setUnknown(Long unknown) {
+        this.unknown = unknown;
+    }
+
+    public Long getMissing() {
+        return missing;
+    }
+
+    public void setMissing(Long missing) {
+        this.missing = missing;
+    }
+
+    public Long getStale() {
+        return stale;
+    }
+
+    public void setStale(Long stale) {
+        this.stale = stale;
+    }
+}
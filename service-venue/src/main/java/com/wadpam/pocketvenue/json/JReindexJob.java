@@ -0,0 +1,86 @@
+package com.wadpam.pocketvenue.json;
+
+import com.wadpam.open.json.JBaseObject;
+
+/**
+ * Json representation of a search index rebuild job.
+ * @author mattiaslevin
+ */
+public class JReindexJob extends JBaseObject {
+
+    // Id is inherited from from parent class
+
+    /** Job status, RUNNING or DONE */
+    private String             status;
+
+    /** The index version backfilled, null if all written versions are indexed */
+    private Long               indexVersion;
+
+    /** Number of key ranges indexed in parallel */
+    private Long               shards;
+
+    /** Number of key ranges done */
+    private Long               shardsDone;
+
+    /** Number of venues indexed */
+    private Long               indexed;
+
+    /** Indexed venues per second since the job started */
+    private Double             throughput;
+
+
+    @Override
+    protected String subString() {
+        return String.format("status:%s shards:%d shardsDone:%d indexed:%d", status, shards, shardsDone, indexed);
+    }
+
+
+    // Setters and getters
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Long getIndexVersion() {
+        return indexVersion;
+    }
+
+    public void setIndexVersion(Long indexVersion) {
+        this.indexVersion = indexVersion;
+    }
+
+    public Long getShards() {
+        return shards;
+    }
+
+    public void setShards(Long shards) {
+        this.shards = shards;
+    }
+
+    public Long getShardsDone() {
+        return shardsDone;
+    }
+
+    public void setShardsDone(Long shardsDone) {
+        this.shardsDone = shardsDone;
+    }
+
+    public Long getIndexed() {
+        return indexed;
+    }
+
+    public void setIndexed(Long indexed) {
+        this.indexed = indexed;
+    }
+
+    public Double getThroughput() {
+        return throughput;
+    }
+
+    public void setThroughput(Double throughput) {
+        this.throughput = throughput;
+    }
+}
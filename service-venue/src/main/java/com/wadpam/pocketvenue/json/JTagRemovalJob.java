@@ -0,0 +1,64 @@
+package com.wadpam.pocketvenue.json;
+
+import com.wadpam.open.json.JBaseObject;
+
+/**
+ * Json representation of a tag removal job.
+ * @author mattiaslevin
+ */
+public class JTagRemovalJob extends JBaseObject {
+
+    // Id is inherited from from parent class
+
+    /** Job status, RUNNING or DONE */
+    private String             status;
+
+    /** Number of deleted tags to remove from places */
+    private Long               tags;
+
+    /** Number of tags already removed from all places */
+    private Long               tagsDone;
+
+    /** Number of places updated */
+    private Long               updated;
+
+
+    @Override
+    protected String subString() {
+        return String.format("status:%s tags:%d tagsDone:%d updated:%d", status, tags, tagsDone, updated);
+    }
+
+
+    // Setters and getters
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Long getTags() {
+        return tags;
+    }
+
+    public void setTags(Long tags) {
+        this.tags = tags;
+    }
+
+    public Long getTagsDone() {
+        return tagsDone;
+    }
+
+    public void setTagsDone(Long tagsDone) {
+        this.tagsDone = tagsDone;
+    }
+
+    public Long getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(Long updated) {
+        this.updated = updated;
+    }
+}
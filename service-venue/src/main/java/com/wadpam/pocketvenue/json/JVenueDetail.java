@@ -0,0 +1,68 @@
+package com.wadpam.pocketvenue.json;
+
+import com.wadpam.open.json.JBaseObject;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Json representation of a venue with the tags, parents and translations needed to render it.
+ * Parts not expanded are not included.
+ * @author mattiaslevin
+ */
+public class JVenueDetail extends JBaseObject {
+
+    // Id is inherited from from parent class, the id of the venue
+
+    /** The venue */
+    private JVenue                            venue;
+
+    /** The parent venues, root first */
+    private Collection<JVenue>                parents;
+
+    /** The tags of the venue */
+    private Collection<JTag>                  tags;
+
+    /** Translations in the requested locale, by the id of the translated venue or tag */
+    private Map<String, Ji18nTranslation>     i18n;
+
+
+    @Override
+    protected String subString() {
+        return String.format("venue:%s", venue);
+    }
+
+
+    // Setters and getters
+    public JVenue getVenue() {
+        return venue;
+    }
+
+    public void setVenue(JVenue venue) {
+        this.venue = venue;
+    }
+
+    public Collection<JVenue> getParents() {
+        return parents;
+    }
+
+    public void setParents(Collection<JVenue> parents) {
+        this.parents = parents;
+    }
+
+    public Collection<JTag> getTags() {
+        return tags;
+    }
+
+    public void setTags(Collection<JTag> tags) {
+        this.tags = tags;
+    }
+
+    public Map<String, Ji18nTranslation> getI18n() {
+        return i18n;
+    }
+
+    public void setI18n(Map<String, Ji18nTranslation> i18n) {
+        this.i18n = i18n;
+    }
+}
@@ -0,0 +1,73 @@
+package com.wadpam.pocketvenue.service;
+
+import com.wadpam.pocketvenue.domain.DPlace;
+
+/**
+ * The outcome of one item in a bulk venue write.
+ * The status is the http status the item would have had as a single request.
+ * @author mattiaslevin
+ */
+public class BulkItemResult {
+
+    public static final int STATUS_OK = 200;
+    public static final int STATUS_CREATED = 201;
+    public static final int STATUS_BAD_REQUEST = 400;
+    public static final int STATUS_NOT_FOUND = 404;
+    public static final int STATUS_SERVER_ERROR = 500;
+
+    /** Position of the item in the request */
+    private final int index;
+
+    private int status;
+
+    /** The written place, null if the item was not written */
+    private DPlace place;
+
+    /** Why the item was not written */
+    private String message;
+
+
+    public BulkItemResult(int index) {
+        this.index = index;
+    }
+
+    // Mark the item as not written
+    void reject(int status, String message) {
+        this.status = status;
+        this.message = message;
+    }
+
+    boolean isRejected() {
+        return status >= STATUS_BAD_REQUEST;
+    }
+
+
+    // Setters and getters
+    public int getIndex() {
+        return index;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public DPlace getPlace() {
+        return place;
+    }
+
+    public void setPlace(DPlace place) {
+        this.place = place;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
@@ -0,0 +1,68 @@
+package com.wadpam.pocketvenue.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * The outcome of a CSV venue import.
+ * @author mattiaslevin
+ */
+public class CsvImportResult implements Serializable {
+
+    private static final long serialVersionUID = -3125896630941524187L;
+
+    // Only keep the first errors to keep memory usage constant
+    static final int MAX_ERRORS = 100;
+
+    /** Number of rows read from the CSV file */
+    private int parsed;
+
+    /** Number of venues stored in the datastore */
+    private int persisted;
+
+    /** Number of rows that could not be parsed */
+    private int failed;
+
+    /** The first error messages */
+    private Collection<String> errors = new ArrayList<String>();
+
+
+    // Register a row that failed
+    void addError(String error) {
+        failed++;
+        if (errors.size() < MAX_ERRORS)
+            errors.add(error);
+    }
+
+    void addParsed(int count) {
+        parsed += count;
+    }
+
+    void addPersisted(int count) {
+        persisted += count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{parsed:%d, persisted:%d, failed:%d}", parsed, persisted, failed);
+    }
+
+
+    // Getters
+    public int getParsed() {
+        return parsed;
+    }
+
+    public int getPersisted() {
+        return persisted;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public Collection<String> getErrors() {
+        return errors;
+    }
+}
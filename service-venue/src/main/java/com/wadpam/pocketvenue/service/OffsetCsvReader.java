@@ -0,0 +1,105 @@
+package com.wadpam.pocketvenue.service;
+
+import au.com.bytecode.opencsv.CSVParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * CSV reader that keeps track of the byte offset of the next record in the underlying stream.
+ * Used to checkpoint and resume imports with a stream opened at the saved offset.
+ * @author mattiaslevin
+ */
+class OffsetCsvReader {
+
+    private static final String CHARSET = "UTF-8";
+
+    private final InputStream inputStream;
+    private final CSVParser parser;
+
+    private final byte[] buffer = new byte[8192];
+    private int position = 0;
+    private int limit = 0;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(512);
+
+    // Byte offset of the first unread byte
+    private long offset;
+
+
+    /**
+     * Create a new reader.
+     * @param inputStream a stream already positioned at offset
+     * @param separator the column separator
+     * @param offset the byte offset of the stream position in the file
+     */
+    OffsetCsvReader(InputStream inputStream, char separator, long offset) {
+        this.inputStream = inputStream;
+        this.parser = new CSVParser(separator);
+        this.offset = offset;
+    }
+
+    /**
+     * Read the next record, possibly spanning several lines if a quoted column contains line breaks.
+     * @return the columns or null if the end of the stream is reached
+     */
+    String[] readNext() throws IOException {
+        String[] result = null;
+        do {
+            String nextLine = readLine();
+            if (null == nextLine)
+                return result;
+
+            String[] columns = parser.parseLineMulti(nextLine);
+            if (columns.length > 0) {
+                if (null == result) {
+                    result = columns;
+                } else {
+                    String[] joined = new String[result.length + columns.length];
+                    System.arraycopy(result, 0, joined, 0, result.length);
+                    System.arraycopy(columns, 0, joined, result.length, columns.length);
+                    result = joined;
+                }
+            }
+        } while (parser.isPending());
+
+        return result;
+    }
+
+    /**
+     * @return the byte offset in the file where the next record starts
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    // Read a line without line terminator, null at the end of the stream
+    private String readLine() throws IOException {
+        line.reset();
+        boolean read = false;
+
+        while (true) {
+            if (position == limit) {
+                limit = inputStream.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return read ? toLine() : null;
+                }
+            }
+
+            byte b = buffer[position++];
+            offset++;
+            read = true;
+            if ('\n' == b)
+                return toLine();
+            line.write(b);
+        }
+    }
+
+    // Decode the current line and strip a trailing \r
+    private String toLine() throws IOException {
+        String result = line.toString(CHARSET);
+        return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+    }
+}
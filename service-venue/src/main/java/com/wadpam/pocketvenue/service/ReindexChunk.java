@@ -0,0 +1,45 @@
+package com.wadpam.pocketvenue.service;
+
+/**
+ * The progress of one reindex shard task, checkpointed on the job when the task is done.
+ * @author mattiaslevin
+ */
+public class ReindexChunk {
+
+    private final long shard;
+
+    /** The cursor the task started at, null at the start of the shard */
+    private final String startCursor;
+
+    /** The cursor where the next task continues, null when the shard is done */
+    private final String cursor;
+
+    /** Number of places indexed by the task */
+    private final long indexed;
+
+
+    public ReindexChunk(long shard, String startCursor, String cursor, long indexed) {
+        this.shard = shard;
+        this.startCursor = startCursor;
+        this.cursor = cursor;
+        this.indexed = indexed;
+    }
+
+
+    // Getters
+    public long getShard() {
+        return shard;
+    }
+
+    public String getStartCursor() {
+        return startCursor;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public long getIndexed() {
+        return indexed;
+    }
+}
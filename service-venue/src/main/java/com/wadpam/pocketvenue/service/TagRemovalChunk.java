@@ -0,0 +1,54 @@
+package com.wadpam.pocketvenue.service;
+
+/**
+ * The progress of one tag removal task, checkpointed on the job when the task is done.
+ * @author mattiaslevin
+ */
+public class TagRemovalChunk {
+
+    /** The tag index the task started at */
+    private final long startTagIndex;
+
+    /** The cursor the task started at, null at the start of a tag */
+    private final String startCursor;
+
+    /** The tag index where the next task continues, the number of tags when the job is done */
+    private final long tagIndex;
+
+    /** The cursor where the next task continues, null at the start of a tag */
+    private final String cursor;
+
+    /** Number of places updated by the task */
+    private final long updated;
+
+
+    public TagRemovalChunk(long startTagIndex, String startCursor, long tagIndex, String cursor, long updated) {
+        this.startTagIndex = startTagIndex;
+        this.startCursor = startCursor;
+        this.tagIndex = tagIndex;
+        this.cursor = cursor;
+        this.updated = updated;
+    }
+
+
+    // Getters
+    public long getStartTagIndex() {
+        return startTagIndex;
+    }
+
+    public String getStartCursor() {
+        return startCursor;
+    }
+
+    public long getTagIndex() {
+        return tagIndex;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+}
@@ -0,0 +1,38 @@
+package com.wadpam.pocketvenue.service;
+
+/**
+ * All translations in a locale as one gzip compressed json document.
+ * The version changes with the content and is used as ETag.
+ * @author mattiaslevin
+ */
+public class TranslationBundle {
+
+    private final String locale;
+
+    /** Hash of the uncompressed document */
+    private final String version;
+
+    /** The gzip compressed document, null if the client already has this version */
+    private final byte[] content;
+
+
+    public TranslationBundle(String locale, String version, byte[] content) {
+        this.locale = locale;
+        this.version = version;
+        this.content = content;
+    }
+
+
+    // Getters
+    public String getLocale() {
+        return locale;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+}
@@ -1,18 +1,41 @@
 package com.wadpam.pocketvenue.service;
 
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.wadpam.open.transaction.Idempotent;
 import com.wadpam.pocketvenue.dao.Di18nTranslationDao;
 import com.wadpam.pocketvenue.domain.Di18nTranslation;
+import com.wadpam.server.exceptions.BadRequestException;
 import com.wadpam.server.exceptions.NotFoundException;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Handle localization of resources (strings, images and urls)
@@ -22,9 +45,28 @@ public class TranslationService {
     private static final Logger LOG = LoggerFactory.getLogger(TranslationService.class);
 
     private static final int ERR_NOT_FOUND = VenueService.ERR_TRANSLATION_SERVICE + 1;
+    private static final int ERR_BAD_REQUEST = VenueService.ERR_TRANSLATION_SERVICE + 2;
+
+    // Translation bundles are cached in memcache, a header per locale points to the chunks of the current version.
+    // The gzip compressed document is split in chunks below the memcache value size limit.
+    private static final String BUNDLE_CACHE_PREFIX = "i18nBundle.";
+    private static final int BUNDLE_CHUNK_SIZE = 900 * 1024;
+    private static final ObjectMapper BUNDLE_MAPPER = new ObjectMapper();
 
     private Di18nTranslationDao i18nDao;
 
+    // Max number of concurrent datastore queries in a single request
+    private int maxConcurrentQueries = 10;
+
+    // Max number of locales resolved in one call, every parent and locale pair is a key in the batch get
+    private int maxResolveLocales = 10;
+
+    private int bundleCacheSeconds = 24 * 60 * 60;
+    // Only one request builds a missing bundle, the others serve the previous version or wait for the new one
+    private long bundleLeaseMillis = 30L * 1000L;
+    private long bundleLeaseWaitMillis = 5L * 1000L;
+    private long bundleLeasePollMillis = 100L;
+
     // Add or update a translation
     @Transactional
     @Idempotent
@@ -41,7 +83,7 @@ public class TranslationService {
         if (null != localizedLinkUrl)
             di18n.setLocalizedUrl(new Link(localizedLinkUrl));
 
-        // Save in datastore
+        // Save in datastore, the bundle is updated by the caller after the commit
         i18nDao.persist(di18n);
 
         return di18n;
@@ -72,12 +114,12 @@ public class TranslationService {
     public Map<Key, Iterable<Di18nTranslation>> getTranslations(Collection<Key> parentKeys) {
         LOG.debug("Get translations for parents:{}", parentKeys);
 
-        Map<Key, Iterable<Di18nTranslation>> resultMap = new HashMap<Key, Iterable<Di18nTranslation>>();
-        for (Key parentKey : parentKeys) {
-            Iterable<Di18nTranslation> di18nIterable = this.getTranslations(parentKey);
-            if (null != di18nIterable)
-                resultMap.put(parentKey, di18nIterable);
-        }
+        // Fan out the ancestor queries, the latency is close to the slowest query
+        Map<Key, Collection<Di18nTranslation>> di18nMap = i18nDao.queryByParentKeys(parentKeys, maxConcurrentQueries);
+
+        // Keep the parent order of the dao result
+        Map<Key, Iterable<Di18nTranslation>> resultMap = new LinkedHashMap<Key, Iterable<Di18nTranslation>>();
+        resultMap.putAll(di18nMap);
 
         return resultMap;
     }
@@ -87,16 +129,91 @@ public class TranslationService {
     public Map<Key, Di18nTranslation> getTranslations(Collection<Key> parentKeys, String locale) {
         LOG.debug("Get translations for parents:{}", parentKeys);
 
+        // The keys are given by parent and locale, get them all in one batch
+        Map<Key, Key> parentKeyMap = new HashMap<Key, Key>(parentKeys.size());
+        for (Key parentKey : parentKeys)
+            parentKeyMap.put(i18nDao.createTranslationKey(parentKey, locale), parentKey);
+
+        Map<Key, Di18nTranslation> di18nMap = i18nDao.findByPrimaryKeys(parentKeyMap.keySet());
+
         Map<Key, Di18nTranslation> resultMap = new HashMap<Key, Di18nTranslation>();
+        for (Map.Entry<Key, Di18nTranslation> entry : di18nMap.entrySet())
+            resultMap.put(parentKeyMap.get(entry.getKey()), entry.getValue());
+
+        return resultMap;
+    }
+
+    // Get the best translation for each parent from an ordered list of locales, in one batch get.
+    // Parents without a translation in any of the locales are not in the map.
+    public Map<Key, Di18nTranslation> resolveTranslations(Collection<Key> parentKeys, List<String> locales) {
+        LOG.debug("Resolve translations for locales:{} and parents:{}", locales, parentKeys);
+
+        if (locales.size() > maxResolveLocales)
+            throw new BadRequestException(ERR_BAD_REQUEST,
+                    String.format("Max %d locales in one call, got:%d", maxResolveLocales, locales.size()));
+
+        // Every candidate key of every parent, the rank of a key is the position of its locale
+        Map<Key, Key> parentKeyMap = new HashMap<Key, Key>(parentKeys.size() * locales.size());
+        Map<Key, Integer> rankMap = new HashMap<Key, Integer>(parentKeys.size() * locales.size());
         for (Key parentKey : parentKeys) {
-            Di18nTranslation di18nIterable = this.getTranslation(parentKey, locale);
-            if (null != di18nIterable)
-                resultMap.put(parentKey, di18nIterable);
+            for (int rank = 0; rank < locales.size(); rank++) {
+                Key key = i18nDao.createTranslationKey(parentKey, locales.get(rank));
+                parentKeyMap.put(key, parentKey);
+                rankMap.put(key, rank);
+            }
+        }
+
+        Map<Key, Di18nTranslation> di18nMap = i18nDao.findByPrimaryKeys(parentKeyMap.keySet());
+
+        // Keep the found translation with the lowest rank for each parent
+        Map<Key, Di18nTranslation> resultMap = new HashMap<Key, Di18nTranslation>();
+        Map<Key, Integer> resultRanks = new HashMap<Key, Integer>();
+        for (Map.Entry<Key, Di18nTranslation> entry : di18nMap.entrySet()) {
+            Key parentKey = parentKeyMap.get(entry.getKey());
+            Integer rank = rankMap.get(entry.getKey());
+            if (!resultRanks.containsKey(parentKey) || rank < resultRanks.get(parentKey)) {
+                resultMap.put(parentKey, entry.getValue());
+                resultRanks.put(parentKey, rank);
+            }
         }
 
         return resultMap;
     }
 
+    // Get the best translation for a parent from an ordered list of locales, null if none is found
+    public Di18nTranslation resolveTranslation(Key parentKey, List<String> locales) {
+        return resolveTranslations(Collections.singletonList(parentKey), locales).get(parentKey);
+    }
+
+    // Normalize a locale to language-REGION form, e.g. SV_se to sv-SE, a 4 letter script is title case, e.g. zh-Hant-TW
+    public static String normalizeLocale(String locale) {
+        StringBuilder normalized = new StringBuilder();
+        for (String part : locale.trim().split("[-_]")) {
+            if (part.isEmpty())
+                continue;
+            if (0 == normalized.length())
+                normalized.append(part.toLowerCase(Locale.ENGLISH));
+            else if (4 == part.length())
+                normalized.append('-').append(part.substring(0, 1).toUpperCase(Locale.ENGLISH))
+                        .append(part.substring(1).toLowerCase(Locale.ENGLISH));
+            else
+                normalized.append('-').append(part.toUpperCase(Locale.ENGLISH));
+        }
+        return normalized.toString();
+    }
+
+    // The fallback chain of a locale, from the locale itself to its language, e.g. sv-SE and sv
+    public static List<String> localeFallbacks(String locale) {
+        List<String> locales = new ArrayList<String>();
+        String candidate = locale;
+        while (!candidate.isEmpty()) {
+            locales.add(candidate);
+            int separator = Math.max(candidate.lastIndexOf('-'), candidate.lastIndexOf('_'));
+            candidate = separator > 0 ? candidate.substring(0, separator) : "";
+        }
+        return locales;
+    }
+
     // Delete a translation with id
     @Transactional
     @Idempotent
@@ -130,10 +247,10 @@ public class TranslationService {
     }
 
 
-    // Delete all translations for a parent resource
+    // Delete all translations for a parent resource, the deleted translations are returned
     @Transactional
     @Idempotent
-    public int deleteTranslationForParent(Key parentKey) {
+    public Collection<Di18nTranslation> deleteTranslationForParent(Key parentKey) {
         LOG.debug("Delete all translations for parent:{}", parentKey);
 
         Iterable<Di18nTranslation> di18nIterable = this.getTranslations(parentKey);
@@ -141,7 +258,271 @@ public class TranslationService {
         if (null == di18nIterable)
             throw new NotFoundException(ERR_NOT_FOUND, String.format("Parent:%s not found during delete", parentKey));
 
-        return i18nDao.delete(di18nIterable);
+        // Read the translations once, the caller updates the bundle of each locale after the commit
+        Collection<Di18nTranslation> di18nTranslations = new ArrayList<Di18nTranslation>();
+        for (Di18nTranslation di18n : di18nIterable)
+            di18nTranslations.add(di18n);
+
+        i18nDao.delete(di18nTranslations);
+
+        return di18nTranslations;
+    }
+
+    // Patch the cached bundles with written translations.
+    // Call after the write committed, a bundle built before the commit is then either patched or invalidated.
+    public void updateBundles(Iterable<Di18nTranslation> written) {
+        for (Di18nTranslation di18n : written)
+            updateBundle(di18n.getLocale(), (Key) di18n.getParent(), di18n);
+    }
+
+    // Remove deleted translations from the cached bundles, call after the delete committed
+    public void removeFromBundles(Iterable<Di18nTranslation> deleted) {
+        for (Di18nTranslation di18n : deleted)
+            updateBundle(di18n.getLocale(), (Key) di18n.getParent(), null);
+    }
+
+
+    // Get all translations in a locale as one bundle.
+    // The content is left out if the client already has the current version.
+    public TranslationBundle getBundle(String locale, String knownVersion) {
+        LOG.debug("Get translation bundle for locale:{}", locale);
+
+        final MemcacheService memCache = MemcacheServiceFactory.getMemcacheService();
+        Map<String, Object> cached = memCache.getAll(Arrays.asList(bundleCacheKey(locale), bundleGenerationKey(locale)));
+        BundleHeader header = (BundleHeader) cached.get(bundleCacheKey(locale));
+        Object generation = cached.get(bundleGenerationKey(locale));
+        if (null != header && null != generation && header.generation == ((Number) generation).longValue()) {
+            TranslationBundle bundle = readBundle(memCache, locale, header, knownVersion);
+            if (null != bundle)
+                return bundle;
+        }
+
+        // Not cached, changed while it was built or chunks evicted. Only the request holding the lease
+        // scans the datastore, the others serve the previous version or wait for the new one.
+        String leaseKey = bundleCacheKey(locale) + ".lease";
+        boolean leased = memCache.put(leaseKey, Boolean.TRUE, Expiration.byDeltaMillis((int) bundleLeaseMillis),
+                MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        if (!leased) {
+            TranslationBundle bundle = null != header ? readBundle(memCache, locale, header, knownVersion) : null;
+            if (null == bundle)
+                bundle = waitForBundle(memCache, locale, knownVersion);
+            if (null != bundle)
+                return bundle;
+            LOG.info("No translation bundle for locale:{} after waiting for lease, building", locale);
+        }
+
+        try {
+            return buildBundle(memCache, locale, knownVersion);
+        } finally {
+            if (leased)
+                memCache.delete(leaseKey);
+        }
+    }
+
+    // Build a bundle from the datastore, a translation changed during the build bumps the generation
+    // and the bundle is built again on the next request
+    private TranslationBundle buildBundle(MemcacheService memCache, String locale, String knownVersion) {
+        Long current = memCache.increment(bundleGenerationKey(locale), 0L, 0L);
+        Map<String, Map<String, String>> translations = new TreeMap<String, Map<String, String>>();
+        for (Di18nTranslation di18n : i18nDao.queryByLocale(locale))
+            translations.put(KeyFactory.keyToString((Key) di18n.getParent()), bundleEntry(di18n));
+        LOG.debug("Built translation bundle for locale:{} with {} translations", locale, translations.size());
+
+        byte[] json = writeBundleJson(locale, translations);
+        byte[] content = gzip(json);
+        BundleHeader header = new BundleHeader(bundleVersion(json), chunkCount(content), null != current ? current : 0L);
+        storeBundle(memCache, locale, header, content);
+        memCache.put(bundleCacheKey(locale), header, Expiration.byDeltaSeconds(bundleCacheSeconds));
+
+        return new TranslationBundle(locale, header.version, header.version.equals(knownVersion) ? null : content);
+    }
+
+    // Poll memcache until the lease holder stored a bundle of the current generation or the wait times out
+    private TranslationBundle waitForBundle(MemcacheService memCache, String locale, String knownVersion) {
+        long deadline = System.currentTimeMillis() + bundleLeaseWaitMillis;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(bundleLeasePollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            Map<String, Object> cached = memCache.getAll(Arrays.asList(bundleCacheKey(locale), bundleGenerationKey(locale)));
+            BundleHeader header = (BundleHeader) cached.get(bundleCacheKey(locale));
+            Object generation = cached.get(bundleGenerationKey(locale));
+            if (null != header && null != generation && header.generation == ((Number) generation).longValue())
+                return readBundle(memCache, locale, header, knownVersion);
+        }
+        return null;
+    }
+
+    // The bundle of a cached header, null if any chunk has been evicted
+    private static TranslationBundle readBundle(MemcacheService memCache, String locale, BundleHeader header,
+                                                String knownVersion) {
+        if (header.version.equals(knownVersion))
+            return new TranslationBundle(locale, header.version, null);
+        byte[] content = readBundleChunks(memCache, locale, header);
+        return null != content ? new TranslationBundle(locale, header.version, content) : null;
+    }
+
+    // Patch the cached bundle of a locale after a translation of a parent changed, null if it was deleted.
+    // Only a bundle of the previous generation is patched, any other bundle is built again on the next request.
+    private void updateBundle(String locale, Key parentKey, Di18nTranslation di18n) {
+
+        final MemcacheService memCache = MemcacheServiceFactory.getMemcacheService();
+        Long generation = memCache.increment(bundleGenerationKey(locale), 1L, 0L);
+        MemcacheService.IdentifiableValue identifiable = memCache.getIdentifiable(bundleCacheKey(locale));
+        if (null == generation || null == identifiable)
+            return;
+
+        BundleHeader header = (BundleHeader) identifiable.getValue();
+        if (header.generation != generation - 1)
+            return;
+        byte[] content = readBundleChunks(memCache, locale, header);
+        if (null == content)
+            return;
+
+        Map<String, Map<String, String>> translations = readBundleJson(gunzip(content));
+        if (null != di18n)
+            translations.put(KeyFactory.keyToString(parentKey), bundleEntry(di18n));
+        else
+            translations.remove(KeyFactory.keyToString(parentKey));
+
+        byte[] json = writeBundleJson(locale, translations);
+        byte[] updated = gzip(json);
+        BundleHeader updatedHeader = new BundleHeader(bundleVersion(json), chunkCount(updated), generation);
+        storeBundle(memCache, locale, updatedHeader, updated);
+        if (!memCache.putIfUntouched(bundleCacheKey(locale), identifiable, updatedHeader,
+                Expiration.byDeltaSeconds(bundleCacheSeconds)))
+            LOG.debug("Translation bundle for locale:{} changed during update", locale);
+    }
+
+    // The compact bundle entry of a translation, empty values are left out
+    private static Map<String, String> bundleEntry(Di18nTranslation di18n) {
+        Map<String, String> entry = new LinkedHashMap<String, String>();
+        if (null != di18n.getLocalizedString())
+            entry.put("string", di18n.getLocalizedString());
+        if (null != di18n.getLocalizedImage())
+            entry.put("image", di18n.getLocalizedImage().getValue());
+        if (null != di18n.getLocalizedUrl())
+            entry.put("url", di18n.getLocalizedUrl().getValue());
+        return entry;
+    }
+
+    private static byte[] writeBundleJson(String locale, Map<String, Map<String, String>> translations) {
+        Map<String, Object> document = new LinkedHashMap<String, Object>();
+        document.put("locale", locale);
+        document.put("translations", translations);
+        try {
+            return BUNDLE_MAPPER.writeValueAsBytes(document);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to write translation bundle", e);
+        }
+    }
+
+    private static Map<String, Map<String, String>> readBundleJson(byte[] json) {
+        try {
+            Map<String, Object> document = BUNDLE_MAPPER.readValue(json, Map.class);
+            return new TreeMap<String, Map<String, String>>((Map<String, Map<String, String>>) document.get("translations"));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read translation bundle", e);
+        }
+    }
+
+    // The version is a hash of the content, an unchanged bundle that is built again keeps its ETag
+    private static String bundleVersion(byte[] json) {
+        try {
+            return new BigInteger(1, MessageDigest.getInstance("MD5").digest(json)).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not supported", e);
+        }
+    }
+
+    private static byte[] gzip(byte[] data) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+            GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+            gzipOut.write(data);
+            gzipOut.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to compress translation bundle", e);
+        }
+    }
+
+    private static byte[] gunzip(byte[] data) {
+        try {
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+                out.write(buffer, 0, read);
+            in.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to decompress translation bundle", e);
+        }
+    }
+
+    private static int chunkCount(byte[] content) {
+        return Math.max(1, (content.length + BUNDLE_CHUNK_SIZE - 1) / BUNDLE_CHUNK_SIZE);
+    }
+
+    // The chunks of each version have their own keys, readers of the previous version are not affected
+    private void storeBundle(MemcacheService memCache, String locale, BundleHeader header, byte[] content) {
+        Map<String, byte[]> chunks = new HashMap<String, byte[]>();
+        for (int i = 0; i < header.chunks; i++) {
+            int from = i * BUNDLE_CHUNK_SIZE;
+            chunks.put(bundleChunkKey(locale, header, i),
+                    Arrays.copyOfRange(content, from, Math.min(content.length, from + BUNDLE_CHUNK_SIZE)));
+        }
+        memCache.putAll(chunks, Expiration.byDeltaSeconds(bundleCacheSeconds));
+    }
+
+    // Read all chunks in one call, null if any chunk has been evicted
+    private static byte[] readBundleChunks(MemcacheService memCache, String locale, BundleHeader header) {
+        List<String> chunkKeys = new ArrayList<String>(header.chunks);
+        for (int i = 0; i < header.chunks; i++)
+            chunkKeys.add(bundleChunkKey(locale, header, i));
+
+        Map<String, Object> chunks = memCache.getAll(chunkKeys);
+        if (chunks.size() < header.chunks)
+            return null;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(header.chunks * BUNDLE_CHUNK_SIZE);
+        for (String chunkKey : chunkKeys) {
+            byte[] chunk = (byte[]) chunks.get(chunkKey);
+            out.write(chunk, 0, chunk.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static String bundleCacheKey(String locale) {
+        return BUNDLE_CACHE_PREFIX + locale;
+    }
+
+    private static String bundleGenerationKey(String locale) {
+        return BUNDLE_CACHE_PREFIX + locale + ".generation";
+    }
+
+    private static String bundleChunkKey(String locale, BundleHeader header, int chunk) {
+        return String.format("%s%s.%s.%d", BUNDLE_CACHE_PREFIX, locale, header.version, chunk);
+    }
+
+
+    // The cached version of a bundle, valid while its generation is the current generation of the locale
+    private static class BundleHeader implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String version;
+        final int chunks;
+        final long generation;
+
+        BundleHeader(String version, int chunks, long generation) {
+            this.version = version;
+            this.chunks = chunks;
+            this.generation = generation;
+        }
     }
 
 
@@ -149,4 +530,28 @@ public class TranslationService {
     public void setI18nDao(Di18nTranslationDao i18nDao) {
         this.i18nDao = i18nDao;
     }
+
+    public void setMaxConcurrentQueries(int maxConcurrentQueries) {
+        this.maxConcurrentQueries = maxConcurrentQueries;
+    }
+
+    public void setMaxResolveLocales(int maxResolveLocales) {
+        this.maxResolveLocales = maxResolveLocales;
+    }
+
+    public void setBundleCacheSeconds(int bundleCacheSeconds) {
+        this.bundleCacheSeconds = bundleCacheSeconds;
+    }
+
+    public void setBundleLeaseMillis(long bundleLeaseMillis) {
+        this.bundleLeaseMillis = bundleLeaseMillis;
+    }
+
+    public void setBundleLeaseWaitMillis(long bundleLeaseWaitMillis) {
+        this.bundleLeaseWaitMillis = bundleLeaseWaitMillis;
+    }
+
+    public void setBundleLeasePollMillis(long bundleLeasePollMillis) {
+        this.bundleLeasePollMillis = bundleLeasePollMillis;
+    }
 }
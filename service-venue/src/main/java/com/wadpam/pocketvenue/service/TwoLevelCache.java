@@ -0,0 +1,341 @@
+package com.wadpam.pocketvenue.service;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A cache with an in-process level 1 and memcache as level 2.
+ * Values belong to a group with a generation counter in memcache. Invalidating a group bumps
+ * the generation, so values cached before the bump are never returned again, in any instance.
+ * Level 1 entries hold the generation they were loaded in, and the generation is read from
+ * memcache on every get. A level 1 hit costs that one small read instead of reading and
+ * deserializing the value.
+ * Memcache is namespace aware, the in-process cache is keyed by namespace as well.
+ * <p>
+ * Loaders may read from eventually consistent queries. Values loaded while the group is
+ * invalidated are not cached, and values loaded shortly after an invalidation are only cached
+ * until the end of the consistency window.
+ * <p>
+ * Misses are protected against stampedes. Within an instance only one thread loads a key,
+ * across instances a short lived lease in memcache decides which instance loads while the
+ * others wait for the value. Values are refreshed probabilistically before they expire, the
+ * more expensive the value was to load the earlier, while the old value is still served.
+ * @author mattiaslevin
+ */
+public class TwoLevelCache {
+    private static final Logger LOG = LoggerFactory.getLogger(TwoLevelCache.class);
+
+    /** Load a value on a cache miss */
+    public interface Loader {
+        Object load();
+    }
+
+    private String name = "cache";
+    private long localTtlMillis = 10L * 1000L;
+    private int expirationSeconds = 10 * 60;
+    private int maxLocalEntries = 1000;
+    private long leaseMillis = 10L * 1000L;
+    private long leaseWaitMillis = 2L * 1000L;
+    private long leasePollMillis = 50L;
+    private double earlyRefreshBeta = 1.0;
+    private long consistencyWindowMillis = 0L;
+
+    private final ConcurrentMap<String, LocalEntry> localEntries = new ConcurrentHashMap<String, LocalEntry>();
+    private final ConcurrentMap<String, Future<CacheEntry>> loading = new ConcurrentHashMap<String, Future<CacheEntry>>();
+    private final Random random = new Random();
+
+
+    /**
+     * Get a value, load and cache it if not found in any level.
+     * @param group the invalidation group
+     * @param key the key within the group
+     * @param loader loads the value on a miss, a null value is not cached
+     * @return the value
+     */
+    public Object get(final String group, String key, final Loader loader) {
+        final MemcacheService memCache = MemcacheServiceFactory.getMemcacheService();
+
+        // Read the generation before loading, a concurrent invalidation makes the loaded value unreachable
+        final long generation = getGeneration(memCache, group);
+
+        // Level 1, only valid in the generation it was loaded in
+        String localKey = localGroupPrefix(group) + key;
+        LocalEntry localEntry = localEntries.get(localKey);
+        if (null != localEntry && localEntry.generation == generation && localEntry.expiresAt > System.currentTimeMillis())
+            return localEntry.value;
+
+        final String cacheKey = String.format("%s:%s:%d:%s", name, group, generation, key);
+
+        // Level 2
+        Object cached = memCache.get(cacheKey);
+        final CacheEntry stale = cached instanceof CacheEntry ? (CacheEntry) cached : null;
+        if (null != stale && !isRefreshDue(stale)) {
+            putLocal(localKey, stale, generation);
+            return stale.value;
+        }
+
+        // Missing or due for an early refresh, only one thread in this instance loads the key
+        FutureTask<CacheEntry> task = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+            @Override
+            public CacheEntry call() {
+                return loadWithLease(memCache, group, generation, cacheKey, stale, loader);
+            }
+        });
+        String loadingKey = currentNamespace() + "/" + cacheKey;
+        Future<CacheEntry> inFlight = loading.putIfAbsent(loadingKey, task);
+        if (null != inFlight) {
+            // Serve the current value while refreshing, otherwise wait for the loading thread
+            if (null != stale)
+                return stale.value;
+            CacheEntry entry = await(inFlight);
+            return null != entry ? entry.value : null;
+        }
+
+        CacheEntry entry;
+        try {
+            task.run();
+            entry = await(task);
+        } finally {
+            loading.remove(loadingKey, task);
+        }
+        if (null == entry)
+            return null;
+
+        putLocal(localKey, entry, generation);
+        return entry.value;
+    }
+
+    /**
+     * Invalidate all values in a group, in all instances at once.
+     * @param group the invalidation group
+     */
+    public void invalidate(String group) {
+        LOG.debug("Invalidate cache group:{}", group);
+
+        MemcacheService memCache = MemcacheServiceFactory.getMemcacheService();
+        memCache.put(invalidatedAtKey(group), System.currentTimeMillis());
+        memCache.increment(generationKey(group), 1L, System.currentTimeMillis());
+
+        String prefix = localGroupPrefix(group);
+        for (String localKey : localEntries.keySet()) {
+            if (localKey.startsWith(prefix))
+                localEntries.remove(localKey);
+        }
+    }
+
+    // Load a value if this instance gets the lease, otherwise use the value loaded by the lease holder
+    private CacheEntry loadWithLease(MemcacheService memCache, String group, long generation, String cacheKey,
+                                     CacheEntry stale, Loader loader) {
+        String leaseKey = cacheKey + ":lease";
+        boolean leased = memCache.put(leaseKey, Boolean.TRUE, Expiration.byDeltaMillis((int) leaseMillis),
+                MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+
+        if (!leased) {
+            // Another instance is loading, serve the current value or wait for the new one
+            if (null != stale)
+                return stale;
+            CacheEntry entry = waitForEntry(memCache, cacheKey);
+            if (null != entry)
+                return entry;
+            LOG.info("No value for key:{} after waiting for lease, loading", cacheKey);
+        }
+
+        try {
+            LOG.debug("Cache miss for key:{}", cacheKey);
+            long start = System.currentTimeMillis();
+            Object value = loader.load();
+            if (null == value)
+                return null;
+
+            // Check for invalidations while loading, the loader may have read data from before them
+            long now = System.currentTimeMillis();
+            long expiresAt = now + expirationSeconds * 1000L;
+            Map<String, Object> current = memCache.getAll(Arrays.asList(generationKey(group), invalidatedAtKey(group)));
+            Object currentGeneration = current.get(generationKey(group));
+            Object invalidatedAt = current.get(invalidatedAtKey(group));
+            if (null != currentGeneration && generation != (Long) currentGeneration) {
+                LOG.debug("Group:{} invalidated while loading key:{}, not cached", group, cacheKey);
+                return new CacheEntry(value, now - start, now);
+            }
+            if (invalidatedAt instanceof Long && start - (Long) invalidatedAt < consistencyWindowMillis) {
+                LOG.debug("Group:{} recently invalidated, key:{} cached until the consistency window ends", group, cacheKey);
+                expiresAt = (Long) invalidatedAt + consistencyWindowMillis;
+            }
+
+            CacheEntry entry = new CacheEntry(value, now - start, expiresAt);
+            try {
+                memCache.put(cacheKey, entry, Expiration.onDate(new Date(expiresAt)));
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Value for key:{} not cached in memcache, reason:{}", cacheKey, e.getMessage());
+            }
+            return entry;
+        } finally {
+            if (leased)
+                memCache.delete(leaseKey);
+        }
+    }
+
+    // Poll memcache until the lease holder stored the value or the wait times out
+    private CacheEntry waitForEntry(MemcacheService memCache, String cacheKey) {
+        long deadline = System.currentTimeMillis() + leaseWaitMillis;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(leasePollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            Object cached = memCache.get(cacheKey);
+            if (cached instanceof CacheEntry)
+                return (CacheEntry) cached;
+        }
+        return null;
+    }
+
+    // Probabilistic early expiration, refresh is more likely the closer to expiry and the slower the load
+    private boolean isRefreshDue(CacheEntry entry) {
+        double gap = -entry.loadMillis * earlyRefreshBeta * Math.log(1.0 - random.nextDouble());
+        return System.currentTimeMillis() + gap >= entry.expiresAt;
+    }
+
+    private static CacheEntry await(Future<CacheEntry> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading cache value", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException("Failed to load cache value", e.getCause());
+        }
+    }
+
+    // Get the current generation of a group, initialize it if evicted
+    private long getGeneration(MemcacheService memCache, String group) {
+        String generationKey = generationKey(group);
+        Long generation = (Long) memCache.get(generationKey);
+        if (null == generation) {
+            // Start from the current time to never reuse a generation from before the eviction
+            memCache.put(generationKey, System.currentTimeMillis(), null, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            generation = (Long) memCache.get(generationKey);
+            if (null == generation)
+                generation = System.currentTimeMillis();
+        }
+        return generation;
+    }
+
+    private String generationKey(String group) {
+        return String.format("%s:%s:generation", name, group);
+    }
+
+    private String invalidatedAtKey(String group) {
+        return String.format("%s:%s:invalidatedAt", name, group);
+    }
+
+    private String localGroupPrefix(String group) {
+        return String.format("%s/%s:%s:", currentNamespace(), name, group);
+    }
+
+    private void putLocal(String localKey, CacheEntry entry, long generation) {
+        // Values not cached in memcache are not cached locally either
+        long expiresAt = Math.min(entry.expiresAt, System.currentTimeMillis() + localTtlMillis);
+        if (expiresAt <= System.currentTimeMillis())
+            return;
+
+        // Drop everything when full
+        if (localEntries.size() >= maxLocalEntries)
+            localEntries.clear();
+        localEntries.put(localKey, new LocalEntry(entry.value, generation, expiresAt));
+    }
+
+    private static String currentNamespace() {
+        String namespace = NamespaceManager.get();
+        return null != namespace ? namespace : "";
+    }
+
+
+    // A value in memcache with the time it took to load, used for early refresh
+    private static class CacheEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final Object value;
+        final long loadMillis;
+        final long expiresAt;
+
+        CacheEntry(Object value, long loadMillis, long expiresAt) {
+            this.value = value;
+            this.loadMillis = loadMillis;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // A value in the level 1 cache and the group generation it was loaded in
+    private static class LocalEntry {
+        final Object value;
+        final long generation;
+        final long expiresAt;
+
+        LocalEntry(Object value, long generation, long expiresAt) {
+            this.value = value;
+            this.generation = generation;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+
+    // Setters
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public void setLocalTtlMillis(long localTtlMillis) {
+        this.localTtlMillis = localTtlMillis;
+    }
+
+    public void setExpirationSeconds(int expirationSeconds) {
+        this.expirationSeconds = expirationSeconds;
+    }
+
+    public void setMaxLocalEntries(int maxLocalEntries) {
+        this.maxLocalEntries = maxLocalEntries;
+    }
+
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    public void setLeaseWaitMillis(long leaseWaitMillis) {
+        this.leaseWaitMillis = leaseWaitMillis;
+    }
+
+    public void setLeasePollMillis(long leasePollMillis) {
+        this.leasePollMillis = leasePollMillis;
+    }
+
+    public void setEarlyRefreshBeta(double earlyRefreshBeta) {
+        this.earlyRefreshBeta = earlyRefreshBeta;
+    }
+
+    public void setConsistencyWindowMillis(long consistencyWindowMillis) {
+        this.consistencyWindowMillis = consistencyWindowMillis;
+    }
+}
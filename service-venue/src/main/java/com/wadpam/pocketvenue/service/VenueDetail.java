@@ -0,0 +1,63 @@
+package com.wadpam.pocketvenue.service;
+
+import com.google.appengine.api.datastore.Key;
+import com.wadpam.pocketvenue.domain.DPlace;
+import com.wadpam.pocketvenue.domain.DTag;
+import com.wadpam.pocketvenue.domain.Di18nTranslation;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A venue with the tags, parents and translations needed to render it, read in one call.
+ * Parts not expanded are null.
+ * @author mattiaslevin
+ */
+public class VenueDetail {
+
+    private final DPlace place;
+
+    /** The parent venues, root first */
+    private List<DPlace> ancestors;
+
+    /** The tags of the venue in venue order, tag ids not found are left out */
+    private List<DTag> tags;
+
+    /** Translations in the requested locale, by the key of the translated venue or tag */
+    private Map<Key, Di18nTranslation> translations;
+
+
+    public VenueDetail(DPlace place) {
+        this.place = place;
+    }
+
+
+    // Setters and getters
+    public DPlace getPlace() {
+        return place;
+    }
+
+    public List<DPlace> getAncestors() {
+        return ancestors;
+    }
+
+    void setAncestors(List<DPlace> ancestors) {
+        this.ancestors = ancestors;
+    }
+
+    public List<DTag> getTags() {
+        return tags;
+    }
+
+    void setTags(List<DTag> tags) {
+        this.tags = tags;
+    }
+
+    public Map<Key, Di18nTranslation> getTranslations() {
+        return translations;
+    }
+
+    void setTranslations(Map<Key, Di18nTranslation> translations) {
+        this.translations = translations;
+    }
+}
@@ -1,13 +1,32 @@
 package com.wadpam.pocketvenue.service;
 
-import au.com.bytecode.opencsv.CSVReader;
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreInputStream;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
 import com.google.appengine.api.datastore.*;
-import com.wadpam.open.exceptions.ServerErrorException;
+import com.google.appengine.api.search.SearchException;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.wadpam.open.transaction.Idempotent;
 import com.wadpam.pocketvenue.dao.DPlaceDao;
+import com.wadpam.pocketvenue.dao.DImportJobDao;
+import com.wadpam.pocketvenue.dao.DIndexCheckJobDao;
+import com.wadpam.pocketvenue.dao.DIndexStateDao;
+import com.wadpam.pocketvenue.dao.DReindexJobDao;
 import com.wadpam.pocketvenue.dao.DTagDao;
+import com.wadpam.pocketvenue.dao.DTagRemovalJobDao;
+import com.wadpam.pocketvenue.dao.Di18nTranslationDao;
+import com.wadpam.pocketvenue.dao.IndexCheckResult;
+import com.wadpam.pocketvenue.domain.DImportJob;
+import com.wadpam.pocketvenue.domain.DIndexCheckJob;
+import com.wadpam.pocketvenue.domain.DIndexState;
 import com.wadpam.pocketvenue.domain.DPlace;
+import com.wadpam.pocketvenue.domain.DReindexJob;
 import com.wadpam.pocketvenue.domain.DTag;
+import com.wadpam.pocketvenue.domain.DTagRemovalJob;
+import com.wadpam.pocketvenue.domain.Di18nTranslation;
 import com.wadpam.pocketvenue.json.JVenue;
 import com.wadpam.open.exceptions.BadRequestException;
 import com.wadpam.open.exceptions.NotFoundException;
@@ -18,10 +37,24 @@ import org.springframework.transaction.annotation.Transactional;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.IllegalFormatException;
 
 /**
@@ -38,8 +71,60 @@ public class VenueService {
     private static final int ERR_NOT_FOUND = ERR_VENUE_SERVICE + 1;
     private static final int ERR_BAD_REQUEST = ERR_VENUE_SERVICE + 2;
 
+    // Search results are invalidated by any place or tag change
+    private static final String SEARCH_CACHE_GROUP = "search";
+
+    // Max number of index queue tasks leased in one flush
+    private static final int INDEX_FLUSH_MAX_TASKS = 1000;
+
+    // Queue running the reindex shards, its max concurrent requests bounds the number of parallel workers
+    private static final String REINDEX_QUEUE = "reindex";
+
     private DPlaceDao placeDao;
     private DTagDao tagDao;
+    private DImportJobDao importJobDao;
+    private DTagRemovalJobDao tagRemovalJobDao;
+    private DReindexJobDao reindexJobDao;
+    private DIndexStateDao indexStateDao;
+    private DIndexCheckJobDao indexCheckJobDao;
+    private Di18nTranslationDao i18nDao;
+    // Optional. Cache of text and tag search results
+    private TwoLevelCache searchCache;
+
+    // Number of CSV rows stored in each datastore put and index update
+    private int csvBatchSize = 200;
+    // Time spent in one import task before continuing in a new task
+    private long csvChunkMillis = 2L * 60L * 1000L;
+    // Number of times a failing import task is retried before the job is failed
+    private int csvMaxRetries = 5;
+    // Number of threads converting CSV rows to places, 1 to convert on the request thread.
+    // Stays 1 until CsvParserBenchmark shows a gain on the instance class.
+    private int csvParserThreads = 1;
+    // Number of places updated in each datastore put and index update when removing deleted tags
+    private int tagRemovalChunkSize = 200;
+    // Time spent in one tag removal task before continuing in a new task
+    private long tagRemovalChunkMillis = 2L * 60L * 1000L;
+    // Number of key ranges indexed in parallel by a reindex job
+    private int reindexShards = 8;
+    // Max number of places indexed per second by all shards of a reindex job together
+    private int reindexRatePerSecond = 2000;
+    // Number of places in each bulk index call
+    private int reindexBatchSize = 200;
+    // Time spent in one reindex task before continuing in a new task
+    private long reindexChunkMillis = 2L * 60L * 1000L;
+    // Delay before backfilling a new index version, longer than the DAO caches the index versions
+    // so that all instances write to the new version before the backfill starts
+    private long indexVersionDelayMillis = 30L * 1000L;
+    // Number of documents or places checked in each index check chunk
+    private int indexCheckChunkSize = 500;
+    // Time spent in one index check task before continuing in a new task
+    private long indexCheckChunkMillis = 2L * 60L * 1000L;
+    // Max number of venues in one bulk write
+    private int bulkMaxItems = 1000;
+    // Number of venues stored in each datastore put and index update of a bulk write
+    private int bulkBatchSize = 200;
+    // Max number of venues in one lookup by ids
+    private int batchGetMaxItems = 100;
 
 
     /* Brand related methods */
@@ -81,6 +166,14 @@ public class VenueService {
                 to.setParent(parentKey);
         }
 
+        copyJVenueToDomain(from, to);
+
+        return to;
+    }
+
+    // Copy all fields except the parent from json object to domain object
+    private static void copyJVenueToDomain(JVenue from, DPlace to) {
+
         to.setName(from.getName());
         to.setShortDescription(from.getShortDescription());
         to.setDescription(from.getDescription());
@@ -111,8 +204,143 @@ public class VenueService {
                 links.add(new Link(link));
             to.setImageUrls(links);
         }
+    }
 
-        return to;
+    // Create or update many places, with one result per item.
+    // All items are validated and the parents and updated places are read in one batch get
+    // before the valid items are written in batched puts with bulk index updates.
+    // Created places get ids allocated before the first put, so a batch written again after a failure
+    // overwrites the same places instead of creating them twice. A failed batch only fails its own items.
+    public List<BulkItemResult> bulkWritePlaces(List<JVenue> jVenues) {
+        LOG.debug("Bulk write of {} places", jVenues.size());
+
+        if (jVenues.size() > bulkMaxItems)
+            throw new BadRequestException(ERR_BAD_REQUEST,
+                    String.format("Max %d venues in one bulk write, got:%d", bulkMaxItems, jVenues.size()));
+
+        // Validate all items and collect the keys of parents and updated places
+        List<BulkItemResult> results = new ArrayList<BulkItemResult>(jVenues.size());
+        Key[] placeKeys = new Key[jVenues.size()];
+        Key[] parentKeys = new Key[jVenues.size()];
+        Set<Key> keys = new HashSet<Key>();
+        for (int i = 0; i < jVenues.size(); i++) {
+            JVenue jVenue = jVenues.get(i);
+            BulkItemResult result = new BulkItemResult(i);
+            results.add(result);
+
+            if (null == jVenue || null == jVenue.getName() || jVenue.getName().isEmpty()) {
+                result.reject(BulkItemResult.STATUS_BAD_REQUEST, "Client must provide a venue name");
+                continue;
+            }
+            try {
+                if (null != jVenue.getId())
+                    placeKeys[i] = KeyFactory.stringToKey(jVenue.getId());
+                if (null != jVenue.getParent())
+                    parentKeys[i] = KeyFactory.stringToKey(jVenue.getParent());
+            } catch (IllegalArgumentException e) {
+                result.reject(BulkItemResult.STATUS_BAD_REQUEST, String.format("Not a venue id:%s", e.getMessage()));
+                continue;
+            }
+            // The parent of an updated place is part of its key
+            if (null != placeKeys[i] && null != parentKeys[i] && !parentKeys[i].equals(placeKeys[i].getParent())) {
+                result.reject(BulkItemResult.STATUS_BAD_REQUEST,
+                        String.format("Venue:%s can not be moved to parent:%s", jVenue.getId(), jVenue.getParent()));
+                continue;
+            }
+            if (null != placeKeys[i])
+                keys.add(placeKeys[i]);
+            else if (null != parentKeys[i])
+                keys.add(parentKeys[i]);
+        }
+
+        Map<Key, DPlace> existingPlaces = placeDao.queryByKeys(keys);
+
+        List<DPlace> dPlaces = new ArrayList<DPlace>(jVenues.size());
+        List<BulkItemResult> written = new ArrayList<BulkItemResult>(jVenues.size());
+        Map<Key, List<DPlace>> createdByParent = new HashMap<Key, List<DPlace>>();
+        for (int i = 0; i < jVenues.size(); i++) {
+            BulkItemResult result = results.get(i);
+            if (result.isRejected())
+                continue;
+            if (null != placeKeys[i] && !existingPlaces.containsKey(placeKeys[i])) {
+                result.reject(BulkItemResult.STATUS_NOT_FOUND, String.format("Place with id:%s not found", jVenues.get(i).getId()));
+                continue;
+            }
+            if (null == placeKeys[i] && null != parentKeys[i] && !existingPlaces.containsKey(parentKeys[i])) {
+                result.reject(BulkItemResult.STATUS_BAD_REQUEST, String.format("Parent does not exist:%s", jVenues.get(i).getParent()));
+                continue;
+            }
+
+            DPlace dPlace = new DPlace();
+            copyJVenueToDomain(jVenues.get(i), dPlace);
+            if (null != placeKeys[i]) {
+                // The index is only updated if an indexed field changed
+                DPlace existingPlace = existingPlaces.get(placeKeys[i]);
+                dPlace.setParent(placeKeys[i].getParent());
+                dPlace.setId(existingPlace.getId());
+                dPlace.setIndexFingerprint(existingPlace.getIndexFingerprint());
+                result.setStatus(BulkItemResult.STATUS_OK);
+            } else {
+                dPlace.setParent(parentKeys[i]);
+                List<DPlace> created = createdByParent.get(parentKeys[i]);
+                if (null == created) {
+                    created = new ArrayList<DPlace>();
+                    createdByParent.put(parentKeys[i], created);
+                }
+                created.add(dPlace);
+                result.setStatus(BulkItemResult.STATUS_CREATED);
+            }
+            result.setPlace(dPlace);
+            dPlaces.add(dPlace);
+            written.add(result);
+        }
+
+        // Allocate the ids of all created places before the first put, one id range per parent
+        for (Map.Entry<Key, List<DPlace>> entry : createdByParent.entrySet()) {
+            KeyRange range = DatastoreServiceFactory.getDatastoreService()
+                    .allocateIds(entry.getKey(), DPlace.class.getSimpleName(), entry.getValue().size());
+            setBatchIds(entry.getValue(), range.getStart().getId());
+        }
+
+        // Store and index in batches, a batch is written again once with the same ids before its items fail
+        int failed = 0;
+        for (int from = 0; from < dPlaces.size(); from += bulkBatchSize) {
+            int to = Math.min(dPlaces.size(), from + bulkBatchSize);
+            List<DPlace> batch = dPlaces.subList(from, to);
+            try {
+                persistBulkBatch(batch);
+            } catch (SearchException e) {
+                // The places are stored, the index check repairs the documents
+                LOG.warn("Bulk batch of {} places stored but not indexed, reason:{}", batch.size(), e.getMessage());
+                for (BulkItemResult result : written.subList(from, to))
+                    result.setMessage(String.format("Stored but not indexed:%s", e.getMessage()));
+            } catch (RuntimeException e) {
+                LOG.error("Bulk batch of {} places not stored, reason:{}", batch.size(), e.getMessage());
+                for (BulkItemResult result : written.subList(from, to)) {
+                    result.reject(BulkItemResult.STATUS_SERVER_ERROR, String.format("Not stored:%s", e.getMessage()));
+                    result.setPlace(null);
+                }
+                failed += batch.size();
+            }
+        }
+        if (dPlaces.size() > failed)
+            invalidateSearchCache();
+
+        LOG.info("Bulk wrote {} of {} places", dPlaces.size() - failed, jVenues.size());
+        return results;
+    }
+
+    // Write a bulk batch, again once if the datastore put fails. Created places have allocated ids,
+    // the second put overwrites any place the first put stored.
+    private void persistBulkBatch(List<DPlace> batch) {
+        try {
+            placeDao.persist(batch);
+        } catch (SearchException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            LOG.info("Bulk batch of {} places failed, writing again, reason:{}", batch.size(), e.getMessage());
+            placeDao.persist(batch);
+        }
     }
 
     // Update a place
@@ -132,8 +360,9 @@ public class VenueService {
         if (null == existingPlace)
             return null;
 
-        // Store and index some fields
+        // Store and index some fields, the index is only updated if an indexed field changed
         dPlace.setId(existingPlace.getId());
+        dPlace.setIndexFingerprint(existingPlace.getIndexFingerprint());
         placeDao.persist(dPlace);
 
         return dPlace;
@@ -148,6 +377,135 @@ public class VenueService {
         return dPlace;
     }
 
+    // Get many places by key in batches through the entity cache.
+    // The places are returned in the order of the keys, with null for places not found.
+    public List<DPlace> getPlaces(List<Key> keys) {
+        LOG.debug("Get {} places by key", keys.size());
+
+        if (keys.size() > batchGetMaxItems)
+            throw new BadRequestException(ERR_BAD_REQUEST,
+                    String.format("Max %d venues in one lookup, got:%d", batchGetMaxItems, keys.size()));
+
+        Map<Key, DPlace> found = placeDao.queryByKeysCached(new HashSet<Key>(keys));
+
+        List<DPlace> dPlaces = new ArrayList<DPlace>(keys.size());
+        for (Key key : keys)
+            dPlaces.add(found.get(key));
+        return dPlaces;
+    }
+
+    // Get a place with its parents, tags and translations in a locale, null if the place is not found.
+    // Translations fall back from the locale to its language, all candidates are read in the same batch gets.
+    // The parents are in the key path, the place and parents are read with one cached batch get while the
+    // translations of them are read. The tags and the tag translations are then read concurrently.
+    public VenueDetail getPlaceDetail(Key key, boolean expandParents, boolean expandTags, String locale) {
+        LOG.debug("Get place detail with key:{} locale:{}", key, locale);
+
+        List<Key> ancestorKeys = new ArrayList<Key>();
+        if (expandParents) {
+            for (Key parentKey = key.getParent(); null != parentKey; parentKey = parentKey.getParent())
+                ancestorKeys.add(0, parentKey);
+        }
+        List<Key> placeKeys = new ArrayList<Key>(ancestorKeys);
+        placeKeys.add(key);
+
+        final List<String> locales = null != locale ? TranslationService.localeFallbacks(locale) : null;
+        Future<Map<Key, Di18nTranslation>> placeTranslations = null;
+        if (null != locale)
+            placeTranslations = i18nDao.findByPrimaryKeysAsync(translationKeys(placeKeys, locales));
+
+        final Map<Key, DPlace> places = placeDao.queryByKeysCached(placeKeys);
+        final DPlace dPlace = places.get(key);
+        if (null == dPlace)
+            return null;
+
+        // Tag ids that are not tag keys are app specific and skipped
+        List<Key> tagKeys = new ArrayList<Key>();
+        if (expandTags && null != dPlace.getTags()) {
+            for (String tagId : dPlace.getTags()) {
+                try {
+                    tagKeys.add(KeyFactory.stringToKey(tagId));
+                } catch (IllegalArgumentException e) {
+                    LOG.debug("Tag id:{} is not a tag key", tagId);
+                }
+            }
+        }
+        Future<Map<Key, DTag>> tags = null;
+        Future<Map<Key, Di18nTranslation>> tagTranslations = null;
+        if (!tagKeys.isEmpty()) {
+            tags = tagDao.queryByKeysAsync(tagKeys);
+            if (null != locale)
+                tagTranslations = i18nDao.findByPrimaryKeysAsync(translationKeys(tagKeys, locales));
+        }
+
+        VenueDetail detail = new VenueDetail(dPlace);
+        if (expandParents) {
+            List<DPlace> ancestors = new ArrayList<DPlace>(ancestorKeys.size());
+            for (Key ancestorKey : ancestorKeys) {
+                if (places.containsKey(ancestorKey))
+                    ancestors.add(places.get(ancestorKey));
+            }
+            detail.setAncestors(ancestors);
+        }
+
+        if (expandTags) {
+            List<DTag> dTags = new ArrayList<DTag>(tagKeys.size());
+            if (null != tags) {
+                Map<Key, DTag> found = waitFor(tags);
+                for (Key tagKey : tagKeys) {
+                    if (found.containsKey(tagKey))
+                        dTags.add(found.get(tagKey));
+                }
+            }
+            detail.setTags(dTags);
+        }
+
+        if (null != locale) {
+            // Translations are mapped by the translated resource, their parent
+            Map<Key, Di18nTranslation> translations = new HashMap<Key, Di18nTranslation>();
+            addBestTranslations(waitFor(placeTranslations).values(), locales, translations);
+            if (null != tagTranslations)
+                addBestTranslations(waitFor(tagTranslations).values(), locales, translations);
+            detail.setTranslations(translations);
+        }
+
+        return detail;
+    }
+
+    private Collection<Key> translationKeys(Collection<Key> parentKeys, List<String> locales) {
+        Collection<Key> keys = new ArrayList<Key>(parentKeys.size() * locales.size());
+        for (Key parentKey : parentKeys) {
+            for (String locale : locales)
+                keys.add(i18nDao.createTranslationKey(parentKey, locale));
+        }
+        return keys;
+    }
+
+    // Keep the translation in the most preferred locale for each parent
+    private static void addBestTranslations(Collection<Di18nTranslation> found, List<String> locales,
+                                            Map<Key, Di18nTranslation> translations) {
+        for (Di18nTranslation di18n : found) {
+            Key parentKey = (Key) di18n.getParent();
+            Di18nTranslation current = translations.get(parentKey);
+            if (null == current || locales.indexOf(di18n.getLocale()) < locales.indexOf(current.getLocale()))
+                translations.put(parentKey, di18n);
+        }
+    }
+
+    // Block until an async read is done
+    private static <T> T waitFor(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading place detail", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("Failed to read place detail", e.getCause());
+        }
+    }
+
     // Delete a place by key
     @Transactional
     @Idempotent
@@ -187,18 +545,19 @@ public class VenueService {
     }
 
     // Return all places with matching tags
-    public CursorPage<DPlace, Long> getAllPlacesForTags(String[] tags, String cursor, int pagesize) {
+    public CursorPage<DPlace, Long> getAllPlacesForTags(String[] tags, String cursor, int pagesize, boolean summary) {
         LOG.debug("Get places for category tag ids:{}", tags);
 
         Collection<String> tagCollection = null;
         if (null != tags)
             tagCollection = new ArrayList<String>(Arrays.asList(tags));
 
-        return placeDao.searchInIndexForPlaces(cursor, pagesize, null, tagCollection);
+        return searchInIndexForPlaces(cursor, pagesize, null, tagCollection, summary);
     }
 
     // Search for a place using free text and optional tags
-    public CursorPage<DPlace, Long> textSearchForPlaces(String text, String[] tags, String cursor, int pageSize) {
+    public CursorPage<DPlace, Long> textSearchForPlaces(String text, String[] tags, String cursor, int pageSize,
+                                                        boolean summary) {
         LOG.debug("Search for places with name:{} and tag ids:{}", text, tags);
 
         Collection<String> tagCollection = null;
@@ -206,11 +565,41 @@ public class VenueService {
             tagCollection = new ArrayList<String>(Arrays.asList(tags));
 
         // User Google search
-        return placeDao.searchInIndexForPlaces(cursor, pageSize, text, tagCollection);
+        return searchInIndexForPlaces(cursor, pageSize, text, tagCollection, summary);
+    }
+
+    // Search the index through the search cache, popular searches are loaded by one request at a time
+    private CursorPage<DPlace, Long> searchInIndexForPlaces(final String cursor, final int pageSize,
+                                                            final String text, final Collection<String> tags,
+                                                            final boolean summary) {
+        if (null == searchCache)
+            return placeDao.searchInIndexForPlaces(cursor, pageSize, text, tags, summary);
+
+        List<String> sortedTags = new ArrayList<String>();
+        if (null != tags)
+            sortedTags.addAll(tags);
+        Collections.sort(sortedTags);
+        String key = String.format("%s:%d:%s:%s:%s", cursor, pageSize, summary, text, sortedTags);
+
+        return (CursorPage<DPlace, Long>) searchCache.get(SEARCH_CACHE_GROUP, key, new TwoLevelCache.Loader() {
+            @Override
+            public Object load() {
+                return placeDao.searchInIndexForPlaces(cursor, pageSize, text, tags, summary);
+            }
+        });
+    }
+
+    // Writes invalidate when stored, the write-behind index is only updated by a later flush.
+    // Transactional writes are invalidated by the caller after the commit, a search running before
+    // the commit would otherwise cache the old result again.
+    public void invalidateSearchCache() {
+        if (null != searchCache)
+            searchCache.invalidate(SEARCH_CACHE_GROUP);
     }
 
     // Search for nearby places
-    public CursorPage<DPlace, Long> getNearbyPlaces(Float latitude, Float longitude, int radius, String[] tags, String cursor, int pageSize) {
+    public CursorPage<DPlace, Long> getNearbyPlaces(Float latitude, Float longitude, int radius, String[] tags,
+                                                    String cursor, int pageSize, boolean summary) {
         LOG.debug("Search for nearby places with lat:{} and lon:{}", latitude, longitude);
 
         Collection<String> tagCollection = null;
@@ -218,11 +607,438 @@ public class VenueService {
             tagCollection = new ArrayList<String>(Arrays.asList(tags));
 
         // User Google search
-        return placeDao.searchInIndexForNearby(cursor, pageSize, latitude, longitude, radius, tagCollection);
+        try {
+            return placeDao.searchInIndexForNearby(cursor, pageSize, latitude, longitude, radius, tagCollection, summary);
+        } catch (IllegalArgumentException e) {
+            // A cursor not created by the index
+            throw new BadRequestException(ERR_BAD_REQUEST, String.format("Not a valid cursor:%s", cursor));
+        }
     }
 
-    // Create venues from a CSV input stream
-    public int addVenueFromCSV(InputStream inputStream, Key parentKey) throws IOException {
+    // Index the venues waiting in the index queue
+    public int flushIndexQueue() {
+        LOG.debug("Flush index queue");
+
+        // Searches cached between the write and the flush returned the old documents
+        int count = placeDao.flushIndexQueue(INDEX_FLUSH_MAX_TASKS);
+        if (count > 0)
+            invalidateSearchCache();
+        return count;
+    }
+
+    // Build the snapshot the instances load their spatial index from
+    public int buildSpatialSnapshot() throws IOException {
+        LOG.debug("Build spatial snapshot");
+        return placeDao.buildSpatialSnapshot();
+    }
+
+    // Start rebuilding the search index from the datastore, one task per key range
+    public DReindexJob startReindex(String taskUrl, Integer shards) {
+        return startReindex(taskUrl, shards, null, 0L);
+    }
+
+    // Start a reindex job writing to one index version, or to all written versions if null
+    private DReindexJob startReindex(String taskUrl, Integer shards, Long indexVersion, long countdownMillis) {
+        int shardCount = null != shards && shards > 0 ? shards : reindexShards;
+        LOG.info("Start reindex with {} shards", shardCount);
+
+        // Shard n covers the keys from split key n-1 to split key n
+        List<Key> splitKeys = placeDao.querySplitKeys(shardCount);
+        List<Key> boundaries = new ArrayList<Key>();
+        boundaries.add(null);
+        boundaries.addAll(splitKeys);
+        boundaries.add(null);
+
+        DReindexJob job = new DReindexJob();
+        job.setTaskUrl(taskUrl);
+        job.setStatus(DReindexJob.STATUS_RUNNING);
+        job.setIndexVersion(indexVersion);
+        job.setShards((long) boundaries.size() - 1);
+        job.setDoneShards(new ArrayList<Long>());
+        job.setShardCursors(new ArrayList<String>(Collections.nCopies(boundaries.size() - 1, "")));
+        job.setShardIndexed(new ArrayList<Long>(Collections.nCopies(boundaries.size() - 1, 0L)));
+        job.setIndexed(0L);
+        job.setStartedDate(new Date());
+        job.setCheckpointDate(job.getStartedDate());
+        reindexJobDao.persist(job);
+
+        for (int shard = 0; shard < boundaries.size() - 1; shard++)
+            enqueueReindexShard(job, shard, boundaries.get(shard), boundaries.get(shard + 1), countdownMillis);
+
+        return job;
+    }
+
+    // Add the task indexing a key range from the shard's last checkpoint.
+    // Tasks are named after the shard and cursor, a retried task continuing from the same checkpoint is added once.
+    private void enqueueReindexShard(DReindexJob job, long shard, Key startKey, Key endKey, long countdownMillis) {
+        LOG.debug("Enqueue reindex shard:{} for job:{}", shard, job);
+
+        String cursor = new ArrayList<String>(job.getShardCursors()).get((int) shard);
+        String taskName = String.format("reindex-%d-%d-%s", job.getId(), shard, cursor.isEmpty() ? "start" : cursorHash(cursor));
+        try {
+            QueueFactory.getQueue(REINDEX_QUEUE).add(TaskOptions.Builder
+                    .withUrl(String.format("%s/%d/shard", job.getTaskUrl(), job.getId()))
+                    .taskName(taskName)
+                    .param("shard", Long.toString(shard))
+                    .param("start", null != startKey ? KeyFactory.keyToString(startKey) : "")
+                    .param("end", null != endKey ? KeyFactory.keyToString(endKey) : "")
+                    .param("cursor", cursor)
+                    .countdownMillis(countdownMillis)
+                    .method(TaskOptions.Method.POST));
+        } catch (TaskAlreadyExistsException e) {
+            LOG.debug("Reindex task:{} already added", taskName);
+        }
+    }
+
+    // Cursors are longer than a task name allows
+    private static String cursorHash(String cursor) {
+        try {
+            return new BigInteger(1, MessageDigest.getInstance("MD5").digest(cursor.getBytes("UTF-8"))).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+
+    // Index a key range in bulk batches from the cursor, throttled to the shard's part of the job rate.
+    // Returns the progress to checkpoint with updateReindexShard, null if the task is not at the shard's checkpoint.
+    public ReindexChunk processReindexShard(Long jobId, long shard, Key startKey, Key endKey, String cursor) {
+        LOG.debug("Process reindex job:{} shard:{}", jobId, shard);
+
+        DReindexJob job = reindexJobDao.findByPrimaryKey(jobId);
+        if (null == job)
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Reindex job:%s not found", jobId));
+        if (null != job.getDoneShards() && job.getDoneShards().contains(shard)) {
+            LOG.info("Skip done reindex shard:{} for job:{}", shard, job);
+            return null;
+        }
+
+        // A retried task that checkpointed before failing, make sure the shard continues from its last checkpoint
+        if (null == cursor)
+            cursor = "";
+        String checkpointCursor = new ArrayList<String>(job.getShardCursors()).get((int) shard);
+        if (!cursor.equals(checkpointCursor)) {
+            LOG.info("Reindex shard:{} of job:{} is at another checkpoint, continue from there", shard, job);
+            enqueueReindexShard(job, shard, startKey, endKey, 0L);
+            return null;
+        }
+
+        final long deadline = System.currentTimeMillis() + reindexChunkMillis;
+        final double shardRatePerSecond = Math.max(1.0, (double) reindexRatePerSecond / job.getShards());
+        String nextCursor = cursor.isEmpty() ? null : cursor;
+        long indexed = 0L;
+
+        do {
+            long chunkStart = System.currentTimeMillis();
+            CursorPage<Long, Long> idPage = placeDao.reindexRange(startKey, endKey, nextCursor, reindexBatchSize, job.getIndexVersion());
+            indexed += idPage.getItems().size();
+            nextCursor = idPage.getCursorKey();
+
+            // Throttle
+            long minMillis = (long) (idPage.getItems().size() * 1000L / shardRatePerSecond);
+            long sleepMillis = minMillis - (System.currentTimeMillis() - chunkStart);
+            if (null != nextCursor && sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } while (null != nextCursor && System.currentTimeMillis() < deadline);
+
+        if (null == nextCursor)
+            LOG.info("Reindex shard:{} done", shard);
+        return new ReindexChunk(shard, cursor, nextCursor, indexed);
+    }
+
+    // Checkpoint the progress of a shard task, only if the shard is still at the cursor the task started at.
+    // A retried or duplicate task does not count its places twice.
+    @Transactional
+    @Idempotent
+    public DReindexJob updateReindexShard(Long jobId, ReindexChunk chunk) {
+        LOG.debug("Checkpoint reindex job:{} shard:{}", jobId, chunk.getShard());
+
+        DReindexJob job = reindexJobDao.findByPrimaryKey(jobId);
+        if (null == job)
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Reindex job:%s not found", jobId));
+        // The datastore does not store empty collections
+        if (null == job.getDoneShards())
+            job.setDoneShards(new ArrayList<Long>());
+
+        int shard = (int) chunk.getShard();
+        List<String> shardCursors = new ArrayList<String>(job.getShardCursors());
+        if (job.getDoneShards().contains(chunk.getShard()) || !chunk.getStartCursor().equals(shardCursors.get(shard))) {
+            LOG.info("Reindex shard:{} of job:{} already checkpointed", shard, job);
+            return job;
+        }
+
+        List<Long> shardIndexed = new ArrayList<Long>(job.getShardIndexed());
+        shardCursors.set(shard, null != chunk.getCursor() ? chunk.getCursor() : "");
+        shardIndexed.set(shard, shardIndexed.get(shard) + chunk.getIndexed());
+        job.setShardCursors(shardCursors);
+        job.setShardIndexed(shardIndexed);
+
+        // Progress is the sum of the persisted shard counts
+        long indexed = 0L;
+        for (Long count : shardIndexed)
+            indexed += count;
+        job.setIndexed(indexed);
+
+        if (null == chunk.getCursor()) {
+            job.getDoneShards().add(chunk.getShard());
+            if (job.getDoneShards().size() == job.getShards()) {
+                LOG.info("Reindex done for job:{}", job);
+                job.setStatus(DReindexJob.STATUS_DONE);
+            }
+        }
+        job.setCheckpointDate(new Date());
+        reindexJobDao.persist(job);
+
+        return job;
+    }
+
+    // Add the task continuing a shard from its checkpoint, once the checkpoint is committed
+    public void continueReindexShard(DReindexJob job, long shard, Key startKey, Key endKey) {
+        if (null == job.getDoneShards() || !job.getDoneShards().contains(shard))
+            enqueueReindexShard(job, shard, startKey, endKey, 0L);
+    }
+
+    // Get a reindex job
+    public DReindexJob getReindexJob(Long id) {
+        LOG.debug("Get reindex job with id:{}", id);
+
+        return reindexJobDao.findByPrimaryKey(id);
+    }
+
+    // Start a background check of the search index against the datastore
+    public DIndexCheckJob startIndexCheck(String taskUrl, boolean repair) {
+        LOG.info("Start index check with repair:{}", repair);
+
+        DIndexCheckJob job = new DIndexCheckJob();
+        job.setTaskUrl(taskUrl);
+        job.setStatus(DIndexCheckJob.STATUS_RUNNING);
+        job.setPhase(DIndexCheckJob.PHASE_DOCUMENTS);
+        job.setRepair(repair);
+        job.setCheckpoints(0L);
+        job.setCheckedDocuments(0L);
+        job.setCheckedPlaces(0L);
+        job.setOrphaned(0L);
+        job.setUnknown(0L);
+        job.setMissing(0L);
+        job.setStale(0L);
+        job.setStartedDate(new Date());
+        job.setCheckpointDate(job.getStartedDate());
+        indexCheckJobDao.persist(job);
+
+        enqueueIndexCheck(job);
+
+        return job;
+    }
+
+    // Add the task processing the chunk after the last checkpoint, one named task per checkpoint
+    private void enqueueIndexCheck(DIndexCheckJob job) {
+        LOG.debug("Enqueue index check chunk for job:{}", job);
+
+        long checkpoints = null != job.getCheckpoints() ? job.getCheckpoints() : 0L;
+        String taskName = String.format("index-check-%d-%d", job.getId(), checkpoints);
+        try {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder
+                    .withUrl(String.format("%s/%d/chunk", job.getTaskUrl(), job.getId()))
+                    .taskName(taskName)
+                    .param("checkpoint", Long.toString(checkpoints))
+                    .method(TaskOptions.Method.POST));
+        } catch (TaskAlreadyExistsException e) {
+            LOG.debug("Index check task:{} already added", taskName);
+        }
+    }
+
+    // Check the next chunks of documents or places, checkpointing the drift counts and cursor after every chunk
+    public DIndexCheckJob processIndexCheck(Long jobId, long checkpoint) {
+        LOG.debug("Process index check job:{} from checkpoint:{}", jobId, checkpoint);
+
+        DIndexCheckJob job = indexCheckJobDao.findByPrimaryKey(jobId);
+        if (null == job)
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Index check job:%s not found", jobId));
+
+        // The job is finished, nothing to do
+        if (!DIndexCheckJob.STATUS_RUNNING.equals(job.getStatus())) {
+            LOG.info("Skip index check task for finished job:{}", job);
+            return job;
+        }
+
+        // A retried task that checkpointed before failing, make sure the job continues from its last checkpoint
+        long checkpoints = null != job.getCheckpoints() ? job.getCheckpoints() : 0L;
+        if (checkpoint != checkpoints) {
+            LOG.info("Index check job:{} is at checkpoint:{}, continue from there", job, checkpoints);
+            enqueueIndexCheck(job);
+            return job;
+        }
+
+        final long deadline = System.currentTimeMillis() + indexCheckChunkMillis;
+        final boolean repair = Boolean.TRUE.equals(job.getRepair());
+        while (DIndexCheckJob.STATUS_RUNNING.equals(job.getStatus())) {
+            IndexCheckResult result;
+            if (DIndexCheckJob.PHASE_DOCUMENTS.equals(job.getPhase())) {
+                result = placeDao.checkIndexDocuments(job.getCursor(), indexCheckChunkSize, repair);
+                job.setCheckedDocuments(job.getCheckedDocuments() + result.getChecked());
+            } else {
+                result = placeDao.checkIndexPlaces(job.getCursor(), indexCheckChunkSize, repair);
+                job.setCheckedPlaces(job.getCheckedPlaces() + result.getChecked());
+            }
+            job.setOrphaned(job.getOrphaned() + result.getOrphaned());
+            job.setUnknown((null != job.getUnknown() ? job.getUnknown() : 0L) + result.getUnknown());
+            job.setMissing(job.getMissing() + result.getMissing());
+            job.setStale(job.getStale() + result.getStale());
+            if (repair && result.getOrphaned() + result.getMissing() + result.getStale() > 0) {
+                LOG.info("Repaired index drift:{}", result);
+                invalidateSearchCache();
+            }
+
+            job.setCursor(result.getCursor());
+            if (null == result.getCursor()) {
+                if (DIndexCheckJob.PHASE_DOCUMENTS.equals(job.getPhase()))
+                    job.setPhase(DIndexCheckJob.PHASE_PLACES);
+                else
+                    job.setStatus(DIndexCheckJob.STATUS_DONE);
+            }
+            job.setCheckpoints(++checkpoints);
+            job.setCheckpointDate(new Date());
+            indexCheckJobDao.persist(job);
+
+            // Continue in a new task before the request deadline
+            if (DIndexCheckJob.STATUS_RUNNING.equals(job.getStatus()) && System.currentTimeMillis() > deadline) {
+                enqueueIndexCheck(job);
+                return job;
+            }
+        }
+
+        LOG.info("Index check done for job:{}", job);
+        return job;
+    }
+
+    // Get an index check job with the drift found so far
+    public DIndexCheckJob getIndexCheckJob(Long id) {
+        LOG.debug("Get index check job with id:{}", id);
+
+        return indexCheckJobDao.findByPrimaryKey(id);
+    }
+
+    // Get the search index versions, version 1 is read and written if never migrated
+    public DIndexState getIndexState() {
+        LOG.debug("Get index state");
+
+        DIndexState state = indexStateDao.findByPrimaryKey(DIndexState.STATE_ID);
+        if (null == state) {
+            state = new DIndexState();
+            state.setId(DIndexState.STATE_ID);
+            state.setReadVersion(1L);
+        }
+        // The datastore does not store empty collections
+        if (null == state.getWriteVersions() || state.getWriteVersions().isEmpty())
+            state.setWriteVersions(new ArrayList<Long>(Collections.singletonList(state.getReadVersion())));
+
+        return state;
+    }
+
+    // Add a new index version to write to, the first step of migrating to it.
+    // Writes go to both the current and the new version, the new version is backfilled by a reindex job
+    // and searches switch to it when the job is done.
+    @Transactional
+    @Idempotent
+    public Long addIndexVersion() {
+        DIndexState state = getIndexState();
+        if (state.getWriteVersions().size() > 1)
+            throw new BadRequestException(ERR_BAD_REQUEST,
+                    String.format("Index migration already in progress, write versions:%s", state.getWriteVersions()));
+
+        long version = Collections.max(state.getWriteVersions()) + 1;
+        LOG.info("Add index version:{}", version);
+
+        state.getWriteVersions().add(version);
+        state.setUpdatedDate(new Date());
+        saveIndexState(state);
+
+        return version;
+    }
+
+    void saveIndexState(DIndexState state) {
+        indexStateDao.persist(state);
+    }
+
+    // Backfill a new index version, the job waits until all instances have reloaded the versions
+    public DReindexJob startIndexVersion(String taskUrl, Integer shards, Long version) {
+        LOG.info("Start backfill of index version:{}", version);
+
+        return startReindex(taskUrl, shards, version, indexVersionDelayMillis);
+    }
+
+    // Switch searches to the index version backfilled by a reindex job, once all its shards are done.
+    // The previous version is still written until retired.
+    @Transactional
+    @Idempotent
+    public DIndexState updateIndexReadVersion(DReindexJob job) {
+        DIndexState state = getIndexState();
+        Long version = job.getIndexVersion();
+        if (null == version || !state.getWriteVersions().contains(version)) {
+            LOG.warn("Index version:{} not written, not switching reads", version);
+            return state;
+        }
+        if (version.equals(state.getReadVersion()))
+            return state;
+        if (!isReindexDone(job)) {
+            LOG.warn("Reindex job:{} not done, not switching reads", job);
+            return state;
+        }
+
+        LOG.info("Switch reads from index version:{} to:{}", state.getReadVersion(), version);
+        state.setReadVersion(version);
+        state.setUpdatedDate(new Date());
+        saveIndexState(state);
+
+        return state;
+    }
+
+    // A reindex job is done when every shard has completed
+    private static boolean isReindexDone(DReindexJob job) {
+        if (!DReindexJob.STATUS_DONE.equals(job.getStatus()) || null == job.getDoneShards())
+            return false;
+        for (long shard = 0; shard < job.getShards(); shard++) {
+            if (!job.getDoneShards().contains(shard))
+                return false;
+        }
+        return true;
+    }
+
+    // Stop writing to an index version, the version searched can not be retired
+    @Transactional
+    @Idempotent
+    public DIndexState deleteIndexVersion(Long version) {
+        DIndexState state = getIndexState();
+        if (!state.getWriteVersions().contains(version))
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Index version:%d not found", version));
+        if (version.equals(state.getReadVersion()))
+            throw new BadRequestException(ERR_BAD_REQUEST, String.format("Index version:%d is searched", version));
+
+        LOG.info("Retire index version:{}", version);
+        state.getWriteVersions().remove(version);
+        state.setUpdatedDate(new Date());
+        saveIndexState(state);
+
+        return state;
+    }
+
+    // Reload the index versions in this instance after they were changed, other instances reload within their max age
+    public void refreshIndexState(boolean readVersionChanged) {
+        placeDao.refreshIndexState();
+        if (readVersionChanged)
+            invalidateSearchCache();
+    }
+
+    // Start a background import of venues from a CSV file in the blobstore
+    public DImportJob startCsvImport(BlobKey blobKey, Key parentKey, String taskUrl) {
+        LOG.debug("Start CSV import of blob:{}", blobKey);
 
         // Check that the parent exist
         if (null != parentKey) {
@@ -233,51 +1049,196 @@ public class VenueService {
             }
         }
 
-        // Make 2 passes through the CSV
-        // 1st time check for errors
-        // 2nd time, if there are no errors parse and store in datastore
+        DImportJob job = new DImportJob();
+        job.setBlobKey(blobKey.getKeyString());
+        if (null != parentKey)
+            job.setParentPlace(KeyFactory.keyToString(parentKey));
+        job.setTaskUrl(taskUrl);
+        job.setStatus(DImportJob.STATUS_RUNNING);
+        job.setOffset(0L);
+        job.setParsed(0L);
+        job.setPersisted(0L);
+        job.setFailed(0L);
+        job.setErrors(new ArrayList<String>());
+        job.setStartedDate(new Date());
+        job.setCheckpointDate(job.getStartedDate());
+        reserveBatchIds(job, parentKey, csvBatchSize);
+        saveImportJob(job);
+
+        enqueueCsvImport(job);
+
+        return job;
+    }
 
-        // Get a reader
-        CSVReader csvReader = new CSVReader(new InputStreamReader(inputStream), ';');
+    // Add a task processing the next chunk of an import job
+    private void enqueueCsvImport(DImportJob job) {
+        LOG.debug("Enqueue CSV import chunk for job:{}", job);
 
-        boolean hasError = false;
-        Collection<String> errors = new ArrayList<String>();
-        int row = 0;
-        String [] nextLine;
-        // Check for errors
-        while ((nextLine = csvReader.readNext()) != null) {
-            row++;
-            LOG.debug("Check row:{}:{}", row, nextLine);
+        QueueFactory.getDefaultQueue().add(TaskOptions.Builder
+                .withUrl(String.format("%s/%d/chunk", job.getTaskUrl(), job.getId()))
+                .param("offset", Long.toString(job.getOffset()))
+                .method(TaskOptions.Method.POST));
+    }
 
-            // Check syntax
-            try {
-                DPlace dPlace = createDPlaceFromCSV(nextLine, parentKey);
-            } catch (Exception e) {
-                // Got a parsing error
-                LOG.info("Error parsing CSV file in row:{} with reason:{}", row, e.getMessage());
-                errors.add(String.format("Error in row:%s with reason:%s", row, e.getMessage()));
-                hasError = true;
+    // Process the next chunk of a CSV import job, checkpointing after every stored batch
+    public DImportJob processCsvImport(Long jobId, long offset, int retryCount) throws IOException {
+        LOG.debug("Process CSV import job:{} from offset:{}", jobId, offset);
+
+        DImportJob job = importJobDao.findByPrimaryKey(jobId);
+        if (null == job)
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Import job:%s not found", jobId));
+
+        // The job is finished or the task belongs to an older checkpoint, nothing to do
+        if (!DImportJob.STATUS_RUNNING.equals(job.getStatus()) || offset != job.getOffset()) {
+            LOG.info("Skip stale CSV import task for job:{} with offset:{}", job, offset);
+            return job;
+        }
+
+        BlobKey blobKey = new BlobKey(job.getBlobKey());
+        if (retryCount > csvMaxRetries) {
+            LOG.warn("CSV import job:{} failed after {} retries", job, retryCount);
+            job.setStatus(DImportJob.STATUS_FAILED);
+            checkpoint(job, new CsvImportResult(), job.getOffset(), parentKey(job));
+            BlobstoreServiceFactory.getBlobstoreService().delete(blobKey);
+            return job;
+        }
+
+        Key parentKey = parentKey(job);
+        final long deadline = System.currentTimeMillis() + csvChunkMillis;
+
+        // Request scoped worker threads, they can not outlive this task. A fixed pool and not fork/join,
+        // the source level is Java 6 and App Engine request threads can only be created by ThreadManager.
+        ExecutorService executor = csvParserThreads > 1 ?
+                Executors.newFixedThreadPool(csvParserThreads, ThreadManager.currentRequestThreadFactory()) : null;
+
+        // Resume reading where the last checkpoint stopped
+        InputStream inputStream = new BlobstoreInputStream(blobKey, job.getOffset());
+        try {
+            OffsetCsvReader csvReader = new OffsetCsvReader(inputStream, ';', job.getOffset());
+            ParallelCsvParser csvParser = new ParallelCsvParser(executor, csvParserThreads);
+
+            // Continue in a new task before the request deadline
+            if (!importCsvBatches(job, csvReader, csvParser, parentKey, deadline)) {
+                enqueueCsvImport(job);
+                return job;
             }
+        } finally {
+            inputStream.close();
+            if (null != executor)
+                executor.shutdown();
         }
 
-        // Check if any errors was detected
-        if (hasError) {
-            throw new ServerErrorException(ERR_BAD_REQUEST,
-                    String.format("Errors parsing csv file with reasons:%s", errors.toString()));
-            // TODO Find a better solution
+        LOG.info("CSV import done for job:{}", job);
+        BlobstoreServiceFactory.getBlobstoreService().delete(blobKey);
+
+        return job;
+    }
+
+    // Store batches read from the job checkpoint until the end of the file or the deadline,
+    // checkpointing after every stored batch. Returns true at the end of the file.
+    boolean importCsvBatches(DImportJob job, OffsetCsvReader csvReader, ParallelCsvParser csvParser, Key parentKey,
+                             long deadline) throws IOException {
+        List<String[]> rows = new ArrayList<String[]>(csvBatchSize);
+
+        boolean endOfFile = false;
+        while (!endOfFile) {
+            // Read a block of rows on this thread to keep track of the offset
+            rows.clear();
+            String [] nextLine;
+            while (rows.size() < csvBatchSize && (nextLine = csvReader.readNext()) != null)
+                rows.add(nextLine);
+            endOfFile = rows.size() < csvBatchSize;
+
+            // Convert the block in parallel and store it in row order
+            CsvImportResult result = new CsvImportResult();
+            Collection<DPlace> batch = csvParser.parse(rows, parentKey, job.getParsed() + 1, result);
+
+            // The ids of the batch were reserved at the last checkpoint, a retried batch overwrites the same places
+            if (null == job.getBatchIdCount() || batch.size() > job.getBatchIdCount()) {
+                reserveBatchIds(job, parentKey, batch.size());
+                saveImportJob(job);
+            }
+            setBatchIds(batch, job.getBatchFirstId());
+            persistBatch(batch, result);
+
+            if (endOfFile)
+                job.setStatus(DImportJob.STATUS_DONE);
+            checkpoint(job, result, csvReader.getOffset(), parentKey);
+
+            if (!endOfFile && System.currentTimeMillis() > deadline)
+                return false;
         }
 
-        // Make a second run and write to the datastore
-        while ((nextLine = csvReader.readNext()) != null) {
-            DPlace dPlace = createDPlaceFromCSV(nextLine, parentKey);
-            placeDao.persist(dPlace);
+        return true;
+    }
+
+    // Add the progress of a batch to the job, reserve the ids of the next batch and save it
+    private void checkpoint(DImportJob job, CsvImportResult result, long offset, Key parentKey) {
+        job.setOffset(offset);
+        if (DImportJob.STATUS_RUNNING.equals(job.getStatus()))
+            reserveBatchIds(job, parentKey, csvBatchSize);
+        else {
+            job.setBatchFirstId(null);
+            job.setBatchIdCount(null);
+        }
+        job.setParsed(job.getParsed() + result.getParsed());
+        job.setPersisted(job.getPersisted() + result.getPersisted());
+        job.setFailed(job.getFailed() + result.getFailed());
+        // The datastore does not store empty collections
+        if (null == job.getErrors())
+            job.setErrors(new ArrayList<String>());
+        for (String error : result.getErrors()) {
+            if (job.getErrors().size() < CsvImportResult.MAX_ERRORS)
+                job.getErrors().add(error);
         }
+        job.setCheckpointDate(new Date());
+
+        saveImportJob(job);
+    }
+
+    void saveImportJob(DImportJob job) {
+        importJobDao.persist(job);
+    }
+
+    private static Key parentKey(DImportJob job) {
+        return null != job.getParentPlace() ? KeyFactory.stringToKey(job.getParentPlace()) : null;
+    }
 
-        return row;
+    // Reserve place ids for the batch starting at the job offset, the job must be saved before the batch is written
+    void reserveBatchIds(DImportJob job, Key parentKey, int count) {
+        KeyRange range = DatastoreServiceFactory.getDatastoreService()
+                .allocateIds(parentKey, DPlace.class.getSimpleName(), count);
+        job.setBatchFirstId(range.getStart().getId());
+        job.setBatchIdCount((long) count);
     }
 
-    // Create a Place from a line of CSV
-    private DPlace createDPlaceFromCSV(String[] columns, Key parentKey) {
+    // Give the places of a batch consecutive ids in row order
+    static void setBatchIds(Collection<DPlace> batch, long firstId) {
+        long id = firstId;
+        for (DPlace dPlace : batch)
+            dPlace.setId(id++);
+    }
+
+    // Get a CSV import job
+    public DImportJob getImportJob(Long id) {
+        LOG.debug("Get import job with id:{}", id);
+
+        return importJobDao.findByPrimaryKey(id);
+    }
+
+    // Store a batch of places with one datastore put and bulk index updates
+    void persistBatch(Collection<DPlace> batch, CsvImportResult result) {
+        LOG.debug("Persist batch of {} places", batch.size());
+        if (batch.isEmpty())
+            return;
+
+        placeDao.persist(batch);
+        invalidateSearchCache();
+        result.addPersisted(batch.size());
+    }
+
+    // Create a Place from a line of CSV, thread safe
+    static DPlace createDPlaceFromCSV(String[] columns, Key parentKey) {
 
         // Check length
         if (columns.length != 20)
@@ -453,10 +1414,11 @@ public class VenueService {
         return tagDao.findByPrimaryKey(key);
     }
 
-    // Delete a tag by key
+    // Delete a tag and its subtree, returns the id of the job removing the tag ids from places.
+    // The task starting the job is added in the delete transaction, it runs if and only if the delete commits.
     @Transactional
     @Idempotent()
-    public DTag deleteTag(Key key) {
+    public Long deleteTag(Key key, String taskUrl) {
         LOG.debug("Delete tag with key:{}", key);
 
         // Find
@@ -465,34 +1427,145 @@ public class VenueService {
         if (null == dTag)
             throw new NotFoundException(ERR_NOT_FOUND, String.format("Tag with key:%s not found during delete", key));
 
-        // Delete tag
-        tagDao.delete(dTag);
+        // Find the tag and all descendants with one keys-only ancestor query
+        Collection<Key> keys = tagDao.queryKeysInSubtree((Key) tagDao.getPrimaryKey(dTag));
+        LOG.debug("Delete {} tags in subtree", keys.size());
 
-        // Delete tag from venues
-        placeDao.deleteTag(KeyFactory.keyToString((Key) tagDao.getPrimaryKey(dTag)));
+        // Delete the subtree in one batch
+        tagDao.deleteByKeys(keys);
 
-        // Find and delete all children
-        Iterable<DTag> dTagIterable = tagDao.queryAll(tagDao.getPrimaryKey(dTag));
-        deleteTags(dTagIterable);
+        // The job is another entity group than the tags, the task creates it
+        Long jobId = DatastoreServiceFactory.getDatastoreService()
+                .allocateIds(DTagRemovalJob.class.getSimpleName(), 1L).getStart().getId();
+        TaskOptions task = TaskOptions.Builder
+                .withUrl(String.format("%s/%d/start", taskUrl, jobId))
+                .method(TaskOptions.Method.POST);
+        for (Key tagKey : keys)
+            task.param("tagIds", KeyFactory.keyToString(tagKey));
+        QueueFactory.getDefaultQueue().add(DatastoreServiceFactory.getDatastoreService().getCurrentTransaction(), task);
 
-        return dTag;
+        return jobId;
     }
 
-    // Recursively
-    private void deleteTags(Iterable<DTag> dTags) {
-        if (null != dTags && dTags.iterator().hasNext()) {
+    // Create a tag removal job with the id allocated by deleteTag and add its first task in the same transaction.
+    // A retried start task finds the job and does nothing.
+    @Transactional
+    @Idempotent
+    public DTagRemovalJob startTagRemoval(Long jobId, Collection<String> tagIds, String taskUrl) {
+        LOG.debug("Start removal of {} tags from places", tagIds.size());
 
-            for (DTag dTag : dTags) {
-                LOG.debug("Delete child tag:{}", dTag);
-                Iterable<DTag> dTagIterable = tagDao.queryAll(tagDao.getPrimaryKey(dTag));
-                deleteTags(dTagIterable);
+        DTagRemovalJob job = tagRemovalJobDao.findByPrimaryKey(jobId);
+        if (null != job) {
+            LOG.info("Tag removal job:{} already started", job);
+            return job;
+        }
 
-                // Delete tag from venues
-                placeDao.deleteTag(KeyFactory.keyToString((Key) tagDao.getPrimaryKey(dTag)));
-            }
+        job = new DTagRemovalJob();
+        job.setId(jobId);
+        job.setTagIds(tagIds);
+        job.setTaskUrl(taskUrl);
+        job.setStatus(DTagRemovalJob.STATUS_RUNNING);
+        job.setTagIndex(0L);
+        job.setUpdated(0L);
+        job.setStartedDate(new Date());
+        job.setCheckpointDate(job.getStartedDate());
+        tagRemovalJobDao.persist(job);
+
+        enqueueTagRemoval(job);
+
+        return job;
+    }
+
+    // Add a task processing the next chunk of a tag removal job, in the current transaction if there is one
+    private void enqueueTagRemoval(DTagRemovalJob job) {
+        LOG.debug("Enqueue tag removal chunk for job:{}", job);
+
+        QueueFactory.getDefaultQueue().add(DatastoreServiceFactory.getDatastoreService().getCurrentTransaction(null),
+                TaskOptions.Builder
+                        .withUrl(String.format("%s/%d/chunk", job.getTaskUrl(), job.getId()))
+                        .param("tagIndex", Long.toString(job.getTagIndex()))
+                        .param("cursor", null != job.getCursor() ? job.getCursor() : "")
+                        .method(TaskOptions.Method.POST));
+    }
 
-            tagDao.deleteIterable(dTags);
+    // Remove deleted tags from the next chunks of places until done or the task deadline.
+    // Returns the progress to checkpoint with updateTagRemoval, null if the task is not at the job's checkpoint.
+    public TagRemovalChunk processTagRemoval(Long jobId, long tagIndex, String cursor) {
+        LOG.debug("Process tag removal job:{} from tag index:{}", jobId, tagIndex);
+
+        DTagRemovalJob job = tagRemovalJobDao.findByPrimaryKey(jobId);
+        if (null == job)
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Tag removal job:%s not found", jobId));
+
+        // The job is finished or the task belongs to an older checkpoint, nothing to do
+        if (null != cursor && cursor.isEmpty())
+            cursor = null;
+        if (!isAtCheckpoint(job, tagIndex, cursor)) {
+            LOG.info("Skip stale tag removal task for job:{} with tag index:{}", job, tagIndex);
+            return null;
+        }
+
+        final long deadline = System.currentTimeMillis() + tagRemovalChunkMillis;
+        List<String> tagIds = new ArrayList<String>(job.getTagIds());
+        long nextTagIndex = tagIndex;
+        String nextCursor = cursor;
+        long updated = 0L;
+        while (nextTagIndex < tagIds.size() && System.currentTimeMillis() < deadline) {
+            // A place is updated for all tags in one go, so it does not show up when scanning for the next tag
+            String tagId = tagIds.get((int) nextTagIndex);
+            CursorPage<Long, Long> idPage = placeDao.removeTags(tagId, tagIds, nextCursor, tagRemovalChunkSize);
+            if (!idPage.getItems().isEmpty())
+                invalidateSearchCache();
+
+            updated += idPage.getItems().size();
+            nextCursor = idPage.getCursorKey();
+            if (null == nextCursor)
+                nextTagIndex++;
         }
+
+        return new TagRemovalChunk(tagIndex, cursor, nextTagIndex, nextCursor, updated);
+    }
+
+    // Checkpoint the progress of a tag removal task and add the task continuing from it in the same transaction.
+    // A retried task whose progress is already checkpointed does not count its places twice or add another task.
+    @Transactional
+    @Idempotent
+    public DTagRemovalJob updateTagRemoval(Long jobId, TagRemovalChunk chunk) {
+        LOG.debug("Checkpoint tag removal job:{} at tag index:{}", jobId, chunk.getTagIndex());
+
+        DTagRemovalJob job = tagRemovalJobDao.findByPrimaryKey(jobId);
+        if (null == job)
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Tag removal job:%s not found", jobId));
+        if (!isAtCheckpoint(job, chunk.getStartTagIndex(), chunk.getStartCursor())) {
+            LOG.info("Tag removal job:{} already checkpointed", job);
+            return job;
+        }
+
+        job.setUpdated(job.getUpdated() + chunk.getUpdated());
+        job.setTagIndex(chunk.getTagIndex());
+        job.setCursor(chunk.getCursor());
+        if (job.getTagIndex() >= job.getTagIds().size()) {
+            LOG.info("Tag removal done for job:{}", job);
+            job.setStatus(DTagRemovalJob.STATUS_DONE);
+        } else
+            enqueueTagRemoval(job);
+        job.setCheckpointDate(new Date());
+        tagRemovalJobDao.persist(job);
+
+        return job;
+    }
+
+    // Check if a running job is at the tag index and cursor of a task
+    private static boolean isAtCheckpoint(DTagRemovalJob job, long tagIndex, String cursor) {
+        boolean sameCursor = null == cursor ? null == job.getCursor() : cursor.equals(job.getCursor());
+        return DTagRemovalJob.STATUS_RUNNING.equals(job.getStatus()) && tagIndex == job.getTagIndex() && sameCursor;
+    }
+
+    // Get a tag removal job
+    public DTagRemovalJob getTagRemovalJob(Long id) {
+        LOG.debug("Get tag removal job with id:{}", id);
+
+        return tagRemovalJobDao.findByPrimaryKey(id);
     }
 
     // Get all tags of a certain type
@@ -521,5 +1594,97 @@ public class VenueService {
         this.tagDao = tagDao;
     }
 
+    public void setImportJobDao(DImportJobDao importJobDao) {
+        this.importJobDao = importJobDao;
+    }
+
+    public void setCsvBatchSize(int csvBatchSize) {
+        this.csvBatchSize = csvBatchSize;
+    }
+
+    public void setCsvChunkMillis(long csvChunkMillis) {
+        this.csvChunkMillis = csvChunkMillis;
+    }
+
+    public void setCsvMaxRetries(int csvMaxRetries) {
+        this.csvMaxRetries = csvMaxRetries;
+    }
+
+    public void setCsvParserThreads(int csvParserThreads) {
+        this.csvParserThreads = csvParserThreads;
+    }
+
+    public void setTagRemovalJobDao(DTagRemovalJobDao tagRemovalJobDao) {
+        this.tagRemovalJobDao = tagRemovalJobDao;
+    }
+
+    public void setTagRemovalChunkSize(int tagRemovalChunkSize) {
+        this.tagRemovalChunkSize = tagRemovalChunkSize;
+    }
+
+    public void setTagRemovalChunkMillis(long tagRemovalChunkMillis) {
+        this.tagRemovalChunkMillis = tagRemovalChunkMillis;
+    }
+
+    public void setReindexJobDao(DReindexJobDao reindexJobDao) {
+        this.reindexJobDao = reindexJobDao;
+    }
+
+    public void setReindexShards(int reindexShards) {
+        this.reindexShards = reindexShards;
+    }
+
+    public void setReindexRatePerSecond(int reindexRatePerSecond) {
+        this.reindexRatePerSecond = reindexRatePerSecond;
+    }
+
+    public void setReindexBatchSize(int reindexBatchSize) {
+        this.reindexBatchSize = reindexBatchSize;
+    }
+
+    public void setReindexChunkMillis(long reindexChunkMillis) {
+        this.reindexChunkMillis = reindexChunkMillis;
+    }
+
+    public void setIndexStateDao(DIndexStateDao indexStateDao) {
+        this.indexStateDao = indexStateDao;
+    }
+
+    public void setIndexVersionDelayMillis(long indexVersionDelayMillis) {
+        this.indexVersionDelayMillis = indexVersionDelayMillis;
+    }
+
+    public void setIndexCheckJobDao(DIndexCheckJobDao indexCheckJobDao) {
+        this.indexCheckJobDao = indexCheckJobDao;
+    }
+
+    public void setIndexCheckChunkSize(int indexCheckChunkSize) {
+        this.indexCheckChunkSize = indexCheckChunkSize;
+    }
+
+    public void setIndexCheckChunkMillis(long indexCheckChunkMillis) {
+        this.indexCheckChunkMillis = indexCheckChunkMillis;
+    }
+
+    public void setBulkMaxItems(int bulkMaxItems) {
+        this.bulkMaxItems = bulkMaxItems;
+    }
+
+    public void setBulkBatchSize(int bulkBatchSize) {
+        this.bulkBatchSize = bulkBatchSize;
+    }
+
+    public void setBatchGetMaxItems(int batchGetMaxItems) {
+        this.batchGetMaxItems = batchGetMaxItems;
+    }
+
+    public void setI18nDao(Di18nTranslationDao i18nDao) {
+        this.i18nDao = i18nDao;
+    }
+
+    public void setSearchCache(TwoLevelCache searchCache) {
+        this.searchCache = searchCache;
+    }
+
 
 }
@@ -0,0 +1,32 @@
+package com.wadpam.pocketvenue.web;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Checks for the admin and task queue endpoints.
+ * Index maintenance and the task handlers of background jobs only accept requests from the task queue or a
+ * signed in admin, other callers get 403 Forbidden.
+ * @author mattiaslevin
+ */
+public class AdminRequests {
+
+    static final String QUEUE_NAME_HEADER = "X-AppEngine-QueueName";
+
+
+    /**
+     * Check the caller of an admin or task endpoint.
+     * App Engine removes the X-AppEngine headers from external requests, so the header is only set by the task queue.
+     * @param request the request
+     * @return true if the request is added by the task queue or made by a signed in admin
+     */
+    public static boolean isTaskOrAdmin(HttpServletRequest request) {
+        if (null != request.getHeader(QUEUE_NAME_HEADER))
+            return true;
+
+        UserService userService = UserServiceFactory.getUserService();
+        return userService.isUserLoggedIn() && userService.isUserAdmin();
+    }
+}
@@ -4,19 +4,42 @@ package com.wadpam.pocketvenue.web;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Link;
 import com.wadpam.open.json.JBaseObject;
+import com.wadpam.open.json.JCursorPage;
 import com.wadpam.open.web.BaseConverter;
 import com.wadpam.pocketvenue.dao.*;
+import com.wadpam.pocketvenue.domain.DImportJob;
+import com.wadpam.pocketvenue.domain.DIndexCheckJob;
 import com.wadpam.pocketvenue.domain.DPlace;
+import com.wadpam.pocketvenue.domain.DReindexJob;
 import com.wadpam.pocketvenue.domain.DTag;
+import com.wadpam.pocketvenue.domain.DTagRemovalJob;
 import com.wadpam.pocketvenue.domain.Di18nTranslation;
+import com.wadpam.pocketvenue.json.JBulkItemResult;
+import com.wadpam.pocketvenue.json.JImportJob;
+import com.wadpam.pocketvenue.json.JIndexCheckJob;
+import com.wadpam.pocketvenue.json.JReindexJob;
 import com.wadpam.pocketvenue.json.JTag;
+import com.wadpam.pocketvenue.json.JTagRemovalJob;
 import com.wadpam.pocketvenue.json.JVenue;
+import com.wadpam.pocketvenue.json.JVenueDetail;
 import com.wadpam.pocketvenue.json.Ji18nTranslation;
+import com.wadpam.pocketvenue.service.BulkItemResult;
+import com.wadpam.pocketvenue.service.VenueDetail;
+import net.sf.mardao.core.CursorPage;
+import org.codehaus.jackson.JsonGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class implement various methods for converting from domain object to JSON objects
@@ -29,6 +52,16 @@ public class Converter extends BaseConverter {
     private Di18nTranslationDao translationDao = new Di18nTranslationDaoBean();
     private DPlaceDao placeDao = new DPlaceDaoBean();
 
+    // Venue fields that can be selected in responses
+    public static final Set<String> VENUE_FIELDS = new HashSet<String>(Arrays.asList(
+            "id", "parent", "name", "shortDescription", "description", "openingHours", "tags",
+            "street", "cityArea", "city", "county", "postalCode", "country", "location",
+            "phoneNumber", "email", "webUrl", "facebookUrl", "twitterUrl", "logoUrl", "imageUrls"));
+
+    // Venue fields stored in the search index, searches selecting only these are answered from the index
+    public static final Set<String> SUMMARY_FIELDS = new HashSet<String>(Arrays.asList(
+            "id", "parent", "name", "city", "tags", "location"));
+
     // Convert venues
     public JVenue convert(DPlace from) {
 
@@ -75,6 +108,103 @@ public class Converter extends BaseConverter {
         return to;
     }
 
+    // Write a venue with the same fields as convert(DPlace), straight to the generator without a JVenue.
+    // Only the selected fields are written, the id always, all fields if null.
+    public void write(DPlace from, JsonGenerator json, Set<String> fields) throws IOException {
+
+        json.writeStartObject();
+        json.writeStringField("id", toString((Key)this.placeDao.getPrimaryKey(from)));
+        if (isSelected(fields, "name"))
+            writeString(json, "name", from.getName());
+        if (null != from.getParent() && isSelected(fields, "parent"))
+            json.writeStringField("parent", toString((Key)from.getParent()));
+        if (isSelected(fields, "shortDescription"))
+            writeString(json, "shortDescription", from.getShortDescription());
+        if (isSelected(fields, "description"))
+            writeString(json, "description", from.getDescription());
+        if (isSelected(fields, "openingHours"))
+            writeStrings(json, "openingHours", from.getOpeningHours());
+        if (isSelected(fields, "tags"))
+            writeStrings(json, "tags", from.getTags());
+        if (isSelected(fields, "street"))
+            writeString(json, "street", from.getStreet());
+        if (isSelected(fields, "cityArea"))
+            writeString(json, "cityArea", from.getCityArea());
+        if (isSelected(fields, "city"))
+            writeString(json, "city", from.getCity());
+        if (isSelected(fields, "county"))
+            writeString(json, "county", from.getCounty());
+        if (isSelected(fields, "postalCode"))
+            writeString(json, "postalCode", from.getPostalCode());
+        if (isSelected(fields, "country"))
+            writeString(json, "country", from.getCountry());
+        if (null != from.getLocation() && isSelected(fields, "location")) {
+            json.writeObjectFieldStart("location");
+            json.writeNumberField("latitude", from.getLocation().getLatitude());
+            json.writeNumberField("longitude", from.getLocation().getLongitude());
+            json.writeEndObject();
+        }
+        if (isSelected(fields, "phoneNumber"))
+            writeString(json, "phoneNumber", from.getPhoneNumber());
+        if (null != from.getEmail() && isSelected(fields, "email"))
+            writeString(json, "email", from.getEmail().getEmail());
+        if (null != from.getWebUrl() && isSelected(fields, "webUrl"))
+            writeString(json, "webUrl", from.getWebUrl().getValue());
+        if (null != from.getFacebookUrl() && isSelected(fields, "facebookUrl"))
+            writeString(json, "facebookUrl", from.getFacebookUrl().getValue());
+        if (null != from.getTwitterUrl() && isSelected(fields, "twitterUrl"))
+            writeString(json, "twitterUrl", from.getTwitterUrl().getValue());
+        if (null != from.getLogoUrl() && isSelected(fields, "logoUrl"))
+            writeString(json, "logoUrl", from.getLogoUrl().getValue());
+        if (null != from.getImageUrls() && isSelected(fields, "imageUrls")) {
+            json.writeArrayFieldStart("imageUrls");
+            for (Link link : from.getImageUrls())
+                json.writeString(link.getValue());
+            json.writeEndArray();
+        }
+        json.writeEndObject();
+    }
+
+    private static boolean isSelected(Set<String> fields, String field) {
+        return null == fields || fields.contains(field);
+    }
+
+    // Null fields are skipped, as by the object mapper
+    private static void writeString(JsonGenerator json, String name, String value) throws IOException {
+        if (null != value)
+            json.writeStringField(name, value);
+    }
+
+    private static void writeStrings(JsonGenerator json, String name, Collection<String> values) throws IOException {
+        if (null == values)
+            return;
+        json.writeArrayFieldStart(name);
+        for (String value : values)
+            json.writeString(value);
+        json.writeEndArray();
+    }
+
+    // Wrap a page of venues without converting them, the venues are written by DPlaceSerializer,
+    // or by SparseVenueSerializer if only some fields are selected
+    public JCursorPage<Serializable> wrapPage(CursorPage<DPlace, Long> from, Set<String> fields) {
+
+        JCursorPage<Serializable> to = new JCursorPage<Serializable>();
+        to.setCursorKey(from.getCursorKey());
+        to.setPageSize(null != from.getItems() ? from.getItems().size() : 0);
+        if (null != from.getItems()) {
+            if (null == fields) {
+                to.setItems(Collections.<Serializable>unmodifiableCollection(from.getItems()));
+            } else {
+                Collection<Serializable> items = new ArrayList<Serializable>(from.getItems().size());
+                for (DPlace dPlace : from.getItems())
+                    items.add(new SparseVenue(dPlace, fields));
+                to.setItems(items);
+            }
+        }
+
+        return to;
+    }
+
     // Convert tags
     public JTag convert(DTag from) {
 
@@ -114,6 +244,140 @@ public class Converter extends BaseConverter {
         return to;
     }
 
+    // Convert import jobs
+    public JImportJob convert(DImportJob from) {
+
+        if (null == from) {
+            return null;
+        }
+
+        JImportJob to = new JImportJob();
+        to.setId(Long.toString(from.getId()));
+        to.setStatus(from.getStatus());
+        to.setParsed(from.getParsed());
+        to.setPersisted(from.getPersisted());
+        to.setFailed(from.getFailed());
+        to.setErrors(from.getErrors());
+        if (null != from.getStartedDate() && null != from.getCheckpointDate()) {
+            long millis = from.getCheckpointDate().getTime() - from.getStartedDate().getTime();
+            to.setThroughput(millis > 0 ? from.getPersisted() * 1000.0 / millis : 0.0);
+        }
+
+        return to;
+    }
+
+    // Convert tag removal jobs
+    public JTagRemovalJob convert(DTagRemovalJob from) {
+
+        if (null == from) {
+            return null;
+        }
+
+        JTagRemovalJob to = new JTagRemovalJob();
+        to.setId(Long.toString(from.getId()));
+        to.setStatus(from.getStatus());
+        to.setTags((long) from.getTagIds().size());
+        to.setTagsDone(from.getTagIndex());
+        to.setUpdated(from.getUpdated());
+
+        return to;
+    }
+
+    // Convert bulk write results
+    public JBulkItemResult convert(BulkItemResult from) {
+
+        if (null == from) {
+            return null;
+        }
+
+        JBulkItemResult to = new JBulkItemResult();
+        if (null != from.getPlace())
+            to.setId(toString((Key)this.placeDao.getPrimaryKey(from.getPlace())));
+        to.setIndex(from.getIndex());
+        to.setStatus(from.getStatus());
+        to.setMessage(from.getMessage());
+
+        return to;
+    }
+
+    // Convert venue details, parts not expanded are left out
+    public JVenueDetail convert(VenueDetail from) {
+
+        if (null == from) {
+            return null;
+        }
+
+        JVenueDetail to = new JVenueDetail();
+        to.setVenue(convert(from.getPlace()));
+        to.setId(to.getVenue().getId());
+        if (null != from.getAncestors()) {
+            Collection<JVenue> parents = new ArrayList<JVenue>(from.getAncestors().size());
+            for (DPlace dPlace : from.getAncestors())
+                parents.add(convert(dPlace));
+            to.setParents(parents);
+        }
+        if (null != from.getTags()) {
+            Collection<JTag> tags = new ArrayList<JTag>(from.getTags().size());
+            for (DTag dTag : from.getTags())
+                tags.add(convert(dTag));
+            to.setTags(tags);
+        }
+        if (null != from.getTranslations()) {
+            Map<String, Ji18nTranslation> i18n = new HashMap<String, Ji18nTranslation>();
+            for (Map.Entry<Key, Di18nTranslation> entry : from.getTranslations().entrySet())
+                i18n.put(toString(entry.getKey()), convert(entry.getValue()));
+            to.setI18n(i18n);
+        }
+
+        return to;
+    }
+
+    // Convert index check jobs
+    public JIndexCheckJob convert(DIndexCheckJob from) {
+
+        if (null == from) {
+            return null;
+        }
+
+        JIndexCheckJob to = new JIndexCheckJob();
+        to.setId(Long.toString(from.getId()));
+        to.setStatus(from.getStatus());
+        to.setPhase(from.getPhase());
+        to.setRepair(from.getRepair());
+        to.setCheckedDocuments(from.getCheckedDocuments());
+        to.setCheckedPlaces(from.getCheckedPlaces());
+        to.setOrphaned(from.getOrphaned());
+        to.setUnknown(from.getUnknown());
+        to.setMissing(from.getMissing());
+        to.setStale(from.getStale());
+
+        return to;
+    }
+
+    // Convert reindex jobs
+    public JReindexJob convert(DReindexJob from) {
+
+        if (null == from) {
+            return null;
+        }
+
+        JReindexJob to = new JReindexJob();
+        to.setId(Long.toString(from.getId()));
+        to.setStatus(from.getStatus());
+        to.setIndexVersion(from.getIndexVersion());
+        to.setShards(from.getShards());
+        to.setShardsDone(null != from.getDoneShards() ? (long) from.getDoneShards().size() : 0L);
+        to.setIndexed(from.getIndexed());
+        if (null != from.getStartedDate()) {
+            long end = DReindexJob.STATUS_RUNNING.equals(from.getStatus()) || null == from.getCheckpointDate() ?
+                    System.currentTimeMillis() : from.getCheckpointDate().getTime();
+            long millis = end - from.getStartedDate().getTime();
+            to.setThroughput(millis > 0 ? from.getIndexed() * 1000.0 / millis : 0.0);
+        }
+
+        return to;
+    }
+
     @Override
     public JBaseObject convertBase(Object from) {
         if (null == from) {
@@ -130,6 +394,15 @@ public class Converter extends BaseConverter {
         else if (from instanceof Di18nTranslation) {
             to = convert((Di18nTranslation) from);
         }
+        else if (from instanceof DImportJob) {
+            to = convert((DImportJob) from);
+        }
+        else if (from instanceof DReindexJob) {
+            to = convert((DReindexJob) from);
+        }
+        else if (from instanceof DTagRemovalJob) {
+            to = convert((DTagRemovalJob) from);
+        }
         else {
             throw new UnsupportedOperationException(String.format("No converter for:%s" + from.getClass().getSimpleName()));
         }
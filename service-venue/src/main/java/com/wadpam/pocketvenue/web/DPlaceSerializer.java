@@ -0,0 +1,28 @@
+package com.wadpam.pocketvenue.web;
+
+import com.wadpam.pocketvenue.domain.DPlace;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.JsonSerializer;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import java.io.IOException;
+
+/**
+ * Serialize venues straight from the domain object to the response stream.
+ * Produces the same json as a JVenue, without building one per venue.
+ * @author mattiaslevin
+ */
+public class DPlaceSerializer extends JsonSerializer<DPlace> {
+
+    private static final Converter CONVERTER = new Converter();
+
+    @Override
+    public void serialize(DPlace value, JsonGenerator json, SerializerProvider provider) throws IOException {
+        CONVERTER.write(value, json, null);
+    }
+
+    @Override
+    public Class<DPlace> handledType() {
+        return DPlace.class;
+    }
+}
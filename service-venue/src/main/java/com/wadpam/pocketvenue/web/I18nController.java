@@ -4,11 +4,15 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.wadpam.docrest.domain.RestCode;
 import com.wadpam.docrest.domain.RestReturn;
+import com.wadpam.pocketvenue.domain.DTag;
 import com.wadpam.pocketvenue.domain.Di18nTranslation;
 import com.wadpam.pocketvenue.json.JTag;
 import com.wadpam.pocketvenue.json.Ji18nTranslation;
+import com.wadpam.pocketvenue.service.TranslationBundle;
 import com.wadpam.pocketvenue.service.TranslationService;
+import com.wadpam.pocketvenue.service.TwoLevelCache;
 import com.wadpam.pocketvenue.service.VenueService;
+import com.wadpam.server.exceptions.BadRequestException;
 import com.wadpam.server.exceptions.NotFoundException;
 import com.wadpam.server.exceptions.ServerErrorException;
 import com.wadpam.server.web.AbstractRestController;
@@ -20,14 +24,25 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.servlet.view.RedirectView;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 /**
  * The i18n controller implements all REST methods related to translations.
@@ -47,10 +62,18 @@ public class I18nController extends AbstractRestController {
 
     private static final Converter CONVERTER = new Converter();
 
+    private static final String GZIP_ETAG_SUFFIX = "-gzip";
+
     private TranslationService translationService;
+    // Optional. Cached tag trees are localized and invalidated when a tag translation changes
+    private TwoLevelCache tagCache;
+
+    // Max number of parents when resolving translations from a list of locales
+    private int maxParents = 100;
 
     /**
      * Add a localized translation.
+     * Send "Prefer: return=representation" to get the created translation in the response instead of a redirect.
      * @param parent the parent resource being translated
      * @param locale the locale
      * @param string localized string value
@@ -59,27 +82,31 @@ public class I18nController extends AbstractRestController {
      * @return redirect to the newly created translation
      */
     @RestReturn(value= Ji18nTranslation.class, entity=Ji18nTranslation.class, code={
+            @RestCode(code=201, message="OK", description="Translation created, return=representation preferred"),
             @RestCode(code=302, message="OK", description="Redirect to newly created translation")
     })
     @RequestMapping(value="", method= RequestMethod.POST)
-    public RedirectView addTranslation(HttpServletRequest request,
-                                       UriComponentsBuilder uriBuilder,
-                                       @PathVariable String domain,
-                                       @RequestParam(required = true) String parent,
-                                       @RequestParam(required = true) String locale,
-                                       @RequestParam(required = false) String string,
-                                       @RequestParam(required = false) String imageUrl,
-                                       @RequestParam(required = false) String linkUrl) {
+    public ResponseEntity<Ji18nTranslation> addTranslation(HttpServletRequest request,
+                                                           UriComponentsBuilder uriBuilder,
+                                                           @PathVariable String domain,
+                                                           @RequestParam(required = true) String parent,
+                                                           @RequestParam(required = true) String locale,
+                                                           @RequestParam(required = false) String string,
+                                                           @RequestParam(required = false) String imageUrl,
+                                                           @RequestParam(required = false) String linkUrl) {
 
         Key parentKey = KeyFactory.stringToKey(parent);
         final Di18nTranslation body = translationService.addTranslation(parentKey, locale, string, imageUrl, linkUrl);
+        invalidateTagCache(parentKey);
+        if (null != body)
+            translationService.updateBundles(Collections.singletonList(body));
 
         if (null == body)
             throw new ServerErrorException(ERR_SERVER_ERROR, String.format("Failed to create new translation for locale:%s", locale));
 
         Ji18nTranslation ji18nTranslation = CONVERTER.convert(body);
-        return new RedirectView(uriBuilder.path("/{domain}/i18n/{id}")
-                .buildAndExpand(domain, ji18nTranslation.getId()).toUriString());
+        URI location = uriBuilder.path("/{domain}/i18n/{id}").buildAndExpand(domain, ji18nTranslation.getId()).toUri();
+        return WriteResponses.created(request, location, ji18nTranslation);
     }
 
     /**
@@ -115,7 +142,7 @@ public class I18nController extends AbstractRestController {
             @RestCode(code=200, message="OK", description="Translation found"),
             @RestCode(code=404, message="NOK", description="Translations not found")
     })
-    @RequestMapping(value="", method= RequestMethod.GET, params = {"parent", "locale"})
+    @RequestMapping(value="", method= RequestMethod.GET, params = {"parent", "locale", "!locales"})
     public ResponseEntity<Ji18nTranslation> getTranslation(HttpServletRequest request,
                                             @RequestParam(required = true) String parent,
                                             @RequestParam(required = true) String locale) {
@@ -129,6 +156,33 @@ public class I18nController extends AbstractRestController {
         return new ResponseEntity<Ji18nTranslation>(CONVERTER.convert(body), HttpStatus.OK);
     }
 
+    /**
+     * Get the best localized translation for a parent from an ordered list of locales.
+     * All candidate locales are read in one batch, replacing a request per locale.
+     * @param parent the parent resource being translated
+     * @param locales the locales in order of preference, e.g. sv-SE,sv,en. Max 10
+     * @return the translation in the first locale that has one
+     */
+    @RestReturn(value= Ji18nTranslation.class, entity=Ji18nTranslation.class, code={
+            @RestCode(code=200, message="OK", description="Translation found"),
+            @RestCode(code=400, message="NOK", description="Too many locales"),
+            @RestCode(code=404, message="NOK", description="No translation in any of the locales")
+    })
+    @RequestMapping(value="", method= RequestMethod.GET, params = {"parent", "locales", "!locale"})
+    public ResponseEntity<Ji18nTranslation> resolveTranslation(HttpServletRequest request,
+                                                               @RequestParam(required = true) String parent,
+                                                               @RequestParam(required = true) String[] locales) {
+
+        Key parentKey = KeyFactory.stringToKey(parent);
+        final Di18nTranslation body = translationService.resolveTranslation(parentKey, parseLocales(locales));
+
+        if (null == body)
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Locales:%s for parent:%s not found",
+                    Arrays.toString(locales), parentKey));
+
+        return new ResponseEntity<Ji18nTranslation>(CONVERTER.convert(body), HttpStatus.OK);
+    }
+
     /**
      * Get all localized translation for a specific parent.
      * @param parent the parent resource being translated
@@ -185,7 +239,7 @@ public class I18nController extends AbstractRestController {
     @RestReturn(value= Di18nTranslation.class, entity=Di18nTranslation.class, code={
             @RestCode(code=200, message="OK", description="Translation found")
     })
-    @RequestMapping(value="", method= RequestMethod.GET, params = {"parents", "locale"})
+    @RequestMapping(value="", method= RequestMethod.GET, params = {"parents", "locale", "!locales"})
     public ResponseEntity<Map<String, Ji18nTranslation>> getTranslationsForLocaleForParents(
             HttpServletRequest request,
             @RequestParam(required = true) String[] parents,
@@ -204,6 +258,115 @@ public class I18nController extends AbstractRestController {
         return new ResponseEntity<Map<String, Ji18nTranslation>>(result, HttpStatus.OK);
     }
 
+    /**
+     * Get the best localized translation for each parent in a list from an ordered list of locales.
+     * All candidate locales of all parents are read in one batch.
+     * @param parents a list of parents, max 100
+     * @param locales the locales in order of preference, e.g. sv-SE,sv,en. Max 10
+     * @return the translations by parent, parents without a translation in any of the locales are left out
+     */
+    @RestReturn(value= Map.class, entity=Map.class, code={
+            @RestCode(code=200, message="OK", description="Translations resolved"),
+            @RestCode(code=400, message="NOK", description="Too many parents or locales")
+    })
+    @RequestMapping(value="", method= RequestMethod.GET, params = {"parents", "locales", "!locale"})
+    public ResponseEntity<Map<String, Ji18nTranslation>> resolveTranslationsForParents(
+            HttpServletRequest request,
+            @RequestParam(required = true) String[] parents,
+            @RequestParam(required = true) String[] locales) {
+
+        if (parents.length > maxParents)
+            throw new BadRequestException(ERR_BAD_REQUEST,
+                    String.format("Max %d parents in one request, got:%d", maxParents, parents.length));
+
+        Collection<Key> parentKeys = new ArrayList<Key>(parents.length);
+        for (String parentId : parents)
+            parentKeys.add(KeyFactory.stringToKey(parentId));
+        final Map<Key, Di18nTranslation> di18nTranslations =
+                translationService.resolveTranslations(parentKeys, parseLocales(locales));
+
+        // Build response json
+        Map<String, Ji18nTranslation> result = new HashMap<String, Ji18nTranslation>();
+        for (Map.Entry<Key, Di18nTranslation> entry : di18nTranslations.entrySet())
+            result.put(KeyFactory.keyToString(entry.getKey()), CONVERTER.convert(entry.getValue()));
+
+        return new ResponseEntity<Map<String, Ji18nTranslation>>(result, HttpStatus.OK);
+    }
+
+    /**
+     * Reject a request with both a locale and a list of locales, it is not clear which one to use.
+     */
+    @RestReturn(value= Map.class, entity=Map.class, code={
+            @RestCode(code=400, message="NOK", description="Both locale and locales provided")
+    })
+    @RequestMapping(value="", method= RequestMethod.GET, params = {"locale", "locales"})
+    public ResponseEntity<Map<String, Ji18nTranslation>> rejectLocaleAndLocales(HttpServletRequest request) {
+
+        throw new BadRequestException(ERR_BAD_REQUEST, "Client must provide either locale or locales, not both");
+    }
+
+    /**
+     * Get all translations in a locale as one gzip compressed document, to be loaded by apps at startup.
+     * The document is {"locale":..., "translations":{parent id:{"string":..., "image":..., "url":...}}}.
+     * Send the ETag in "If-None-Match" to get a 304 if the translations have not changed.
+     * Clients not accepting gzip get the document uncompressed, with an ETag of its own.
+     * @param locale the locale, normalized to language-REGION form, e.g. sv_se is sv-SE.
+     *               Translations are not resolved through a fallback list.
+     * @return the translation bundle
+     */
+    @RestReturn(value=Map.class, entity=Map.class, code={
+            @RestCode(code=200, message="OK", description="Translation bundle"),
+            @RestCode(code=400, message="NOK", description="Not a locale"),
+            @RestCode(code=304, message="OK", description="Translations not changed since the ETag")
+    })
+    @RequestMapping(value="bundle/{locale}", method= RequestMethod.GET)
+    public void getTranslationBundle(HttpServletRequest request,
+                                     HttpServletResponse response,
+                                     @PathVariable String domain,
+                                     @PathVariable String locale) throws IOException {
+
+        // The same locale in another case or with _ shares one bundle
+        final String normalizedLocale = TranslationService.normalizeLocale(locale);
+        if (normalizedLocale.isEmpty())
+            throw new BadRequestException(ERR_BAD_REQUEST, String.format("Not a locale:%s", locale));
+
+        // The representations have different ETags, the gzip ETag has a suffix.
+        // Accept weak ETags added by proxies compressing the response.
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        boolean gzip = null != acceptEncoding && acceptEncoding.contains("gzip");
+        String etagSuffix = gzip ? GZIP_ETAG_SUFFIX : "";
+        String knownVersion = request.getHeader("If-None-Match");
+        if (null != knownVersion) {
+            knownVersion = knownVersion.replace("W/", "").replace("\"", "").trim();
+            knownVersion = knownVersion.endsWith(etagSuffix) ?
+                    knownVersion.substring(0, knownVersion.length() - etagSuffix.length()) : null;
+        }
+
+        final TranslationBundle bundle = translationService.getBundle(normalizedLocale, knownVersion);
+
+        response.setHeader("ETag", String.format("\"%s%s\"", bundle.getVersion(), etagSuffix));
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("Vary", "Accept-Encoding");
+        if (null == bundle.getContent()) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setContentType("application/json; charset=UTF-8");
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+            response.setContentLength(bundle.getContent().length);
+            response.getOutputStream().write(bundle.getContent());
+        } else {
+            InputStream in = new GZIPInputStream(new ByteArrayInputStream(bundle.getContent()));
+            OutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+                out.write(buffer, 0, read);
+            in.close();
+        }
+    }
+
     /**
      * Delete a localized translation by id
      * @param id the id of the translation
@@ -219,6 +382,8 @@ public class I18nController extends AbstractRestController {
 
         Key key = KeyFactory.stringToKey(id);
         final Di18nTranslation body = translationService.deleteTranslation(key);
+        invalidateTagCache(key.getParent());
+        translationService.removeFromBundles(Collections.singletonList(body));
 
         return new ResponseEntity<Ji18nTranslation>(HttpStatus.OK);
     }
@@ -240,6 +405,8 @@ public class I18nController extends AbstractRestController {
 
         Key parentKey = KeyFactory.stringToKey(parent);
         final Di18nTranslation body = translationService.deleteTranslation(parentKey, locale);
+        invalidateTagCache(parentKey);
+        translationService.removeFromBundles(Collections.singletonList(body));
 
         return new ResponseEntity<Ji18nTranslation>(HttpStatus.OK);
     }
@@ -260,15 +427,44 @@ public class I18nController extends AbstractRestController {
             @RequestParam(required = true) String parent) {
 
         Key parentKey = KeyFactory.stringToKey(parent);
-        final int result = translationService.deleteTranslationForParent(parentKey);
+        final Collection<Di18nTranslation> deleted = translationService.deleteTranslationForParent(parentKey);
+        invalidateTagCache(parentKey);
+        translationService.removeFromBundles(deleted);
 
         return new ResponseEntity<Collection<Ji18nTranslation>>(HttpStatus.OK);
     }
 
 
+    // Keep the order of the locales, dropping blanks and repeats
+    private List<String> parseLocales(String[] locales) {
+        Set<String> parsed = new LinkedHashSet<String>();
+        for (String locale : locales) {
+            if (!locale.trim().isEmpty())
+                parsed.add(locale.trim());
+        }
+        if (parsed.isEmpty())
+            throw new BadRequestException(ERR_BAD_REQUEST, "Client must provide at least one locale");
+        return new ArrayList<String>(parsed);
+    }
+
+    // Localized tag trees are cached, only translations of tags invalidate them
+    private void invalidateTagCache(Key parentKey) {
+        if (null != tagCache && null != parentKey && DTag.class.getSimpleName().equals(parentKey.getKind()))
+            tagCache.invalidate(TagController.TAG_CACHE_GROUP);
+    }
+
+
     // Setters
     public void setTranslationService(TranslationService translationService) {
         this.translationService = translationService;
     }
 
+    public void setTagCache(TwoLevelCache tagCache) {
+        this.tagCache = tagCache;
+    }
+
+    public void setMaxParents(int maxParents) {
+        this.maxParents = maxParents;
+    }
+
 }
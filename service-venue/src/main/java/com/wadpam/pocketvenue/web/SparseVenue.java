@@ -0,0 +1,34 @@
+package com.wadpam.pocketvenue.web;
+
+import com.wadpam.pocketvenue.domain.DPlace;
+
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * A venue to be serialized with only some of its fields, see SparseVenueSerializer.
+ * @author mattiaslevin
+ */
+public class SparseVenue implements Serializable {
+
+    private final DPlace place;
+
+    /** The selected fields */
+    private final Set<String> fields;
+
+
+    public SparseVenue(DPlace place, Set<String> fields) {
+        this.place = place;
+        this.fields = fields;
+    }
+
+
+    // Getters
+    public DPlace getPlace() {
+        return place;
+    }
+
+    public Set<String> getFields() {
+        return fields;
+    }
+}
@@ -0,0 +1,26 @@
+package com.wadpam.pocketvenue.web;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.JsonSerializer;
+import org.codehaus.jackson.map.SerializerProvider;
+
+import java.io.IOException;
+
+/**
+ * Serialize the selected fields of a venue straight from the domain object to the response stream.
+ * @author mattiaslevin
+ */
+public class SparseVenueSerializer extends JsonSerializer<SparseVenue> {
+
+    private static final Converter CONVERTER = new Converter();
+
+    @Override
+    public void serialize(SparseVenue value, JsonGenerator json, SerializerProvider provider) throws IOException {
+        CONVERTER.write(value.getPlace(), json, value.getFields());
+    }
+
+    @Override
+    public Class<SparseVenue> handledType() {
+        return SparseVenue.class;
+    }
+}
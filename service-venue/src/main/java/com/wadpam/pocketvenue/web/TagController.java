@@ -2,17 +2,23 @@ package com.wadpam.pocketvenue.web;
 
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.wadpam.docrest.domain.RestCode;
 import com.wadpam.docrest.domain.RestReturn;
 import com.wadpam.pocketvenue.domain.DTag;
+import com.wadpam.pocketvenue.domain.DTagRemovalJob;
+import com.wadpam.pocketvenue.domain.Di18nTranslation;
 import com.wadpam.pocketvenue.json.JTag;
+import com.wadpam.pocketvenue.json.JTagRemovalJob;
+import com.wadpam.pocketvenue.service.TagRemovalChunk;
+import com.wadpam.pocketvenue.service.TranslationService;
+import com.wadpam.pocketvenue.service.TwoLevelCache;
 import com.wadpam.pocketvenue.service.VenueService;
+import com.wadpam.server.exceptions.BadRequestException;
 import com.wadpam.server.exceptions.NotFoundException;
 import com.wadpam.server.exceptions.ServerErrorException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -20,11 +26,14 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.servlet.view.RedirectView;
+import org.springframework.web.util.UriComponents;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.servlet.http.HttpServletRequest;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
@@ -40,30 +49,37 @@ public class TagController {
 
     private static final int ERR_NOT_FOUND = VenueService.ERR_VENUE_SERVICE + 100;
     private static final int ERR_SERVER_ERROR = VenueService.ERR_VENUE_SERVICE + 101;
+    private static final int ERR_BAD_REQUEST = VenueService.ERR_VENUE_SERVICE + 102;
 
-    private static final String TAG_CACHE_KEY = "tagKey:";
+    // All tag trees are invalidated by any tag change, a change may move a tag to another type.
+    // Tag translation changes invalidate them as well, see I18nController.
+    static final String TAG_CACHE_GROUP = "tags";
 
     private static final Converter CONVERTER = new Converter();
 
     private VenueService venueService;
+    private TwoLevelCache tagCache;
+    private TranslationService translationService;
 
     /**
      * Add a tag.
+     * Send "Prefer: return=representation" to get the created tag in the response instead of a redirect.
      * @param type the type of the tag, e.g. "location" or "category". D
      * @param name the name of the tag
      * @param parent Optional. The parent tag this tag belong to
      * @return the new tag
      */
     @RestReturn(value= JTag.class, entity=JTag.class, code={
+            @RestCode(code=201, message="OK", description="Tag created, return=representation preferred"),
             @RestCode(code=302, message="OK", description="Redirect to newly created tag")
     })
     @RequestMapping(value="", method= RequestMethod.POST)
-    public RedirectView addTag(HttpServletRequest request,
-                               UriComponentsBuilder uriBuilder,
-                               @PathVariable String domain,
-                               @RequestParam(required = false) String parent,
-                               @RequestParam(required = true) String type,
-                               @RequestParam(required = true) String name) {
+    public ResponseEntity<JTag> addTag(HttpServletRequest request,
+                                       UriComponentsBuilder uriBuilder,
+                                       @PathVariable String domain,
+                                       @RequestParam(required = false) String parent,
+                                       @RequestParam(required = true) String type,
+                                       @RequestParam(required = true) String name) {
 
         Key parentKey = parent != null ? KeyFactory.stringToKey(parent) : null;
         final DTag body = venueService.addTag(type, parentKey, name);
@@ -71,25 +87,17 @@ public class TagController {
         if (null == body)
             throw new ServerErrorException(ERR_SERVER_ERROR, String.format("Not possible to create new tag:%s", name));
 
-        // Invalidate the memcache
-        MemcacheService memCache = MemcacheServiceFactory.getMemcacheService();
-        memCache.delete(tagCacheKey(body));
+        // Invalidate the cached tag trees
+        tagCache.invalidate(TAG_CACHE_GROUP);
 
         JTag jTag = CONVERTER.convert(body);
-        return new RedirectView(uriBuilder.path("/{domain}/tag/{id}")
-                .buildAndExpand(domain, jTag.getId()).toUriString());
-    }
-
-    // Build the cache key for memcache
-    private String tagCacheKey(DTag dTag) {
-        if (null == dTag || null == dTag.getType() || dTag.getType().isEmpty())
-            return TAG_CACHE_KEY + "DEFAULT";
-        else
-            return TAG_CACHE_KEY + dTag.getType();
+        URI location = uriBuilder.path("/{domain}/tag/{id}").buildAndExpand(domain, jTag.getId()).toUri();
+        return WriteResponses.created(request, location, jTag);
     }
 
     /**
      * Update a tag by id.
+     * Send "Prefer: return=representation" to get the updated tag in the response instead of a redirect.
      * @param id the id of the tag
      * @param type the type of the tag, e.g. "location" or "category"
      * @param name the name of the tag
@@ -97,14 +105,15 @@ public class TagController {
      * @return the updated tag
      */
     @RestReturn(value= JTag.class, entity=JTag.class, code={
+            @RestCode(code=200, message="OK", description="Tag updated, return=representation preferred"),
             @RestCode(code=302, message="OK", description="Redirect to newly updated tag")
     })
     @RequestMapping(value="{id}", method= RequestMethod.POST)
-    public RedirectView updateTag(HttpServletRequest request,
-                                  @PathVariable String id,
-                                  @RequestParam(required = false) String parent,
-                                  @RequestParam(required = true) String type,
-                                  @RequestParam(required = true) String name) {
+    public ResponseEntity<JTag> updateTag(HttpServletRequest request,
+                                          @PathVariable String id,
+                                          @RequestParam(required = false) String parent,
+                                          @RequestParam(required = true) String type,
+                                          @RequestParam(required = true) String name) {
 
         Key key = KeyFactory.stringToKey(id);
         Key parentKey = parent != null ? KeyFactory.stringToKey(parent) : null;
@@ -113,11 +122,11 @@ public class TagController {
         if (null == body)
             throw new NotFoundException(ERR_NOT_FOUND, String.format("Tag:%s not found during update", name));
 
-        // Invalidate the memcache
-        MemcacheService memCache = MemcacheServiceFactory.getMemcacheService();
-        memCache.delete(tagCacheKey(body));
+        // Invalidate the cached tag trees
+        tagCache.invalidate(TAG_CACHE_GROUP);
 
-        return new RedirectView(request.getRequestURI());
+        URI location = ServletUriComponentsBuilder.fromRequestUri(request).build().toUri();
+        return WriteResponses.updated(request, location, CONVERTER.convert(body));
     }
 
     /**
@@ -143,78 +152,210 @@ public class TagController {
     }
 
     /**
-     * Delete a tag by id.
+     * Delete a tag and all its child tags by id.
+     * The tags are removed from venues by a background job, the Location header contains the url of the job progress.
      * @param id the id of the tag
      * @return the and http response code indicating the outcome of the operation
      */
     @RestReturn(value=JTag.class, entity=JTag.class, code={
-            @RestCode(code=200, message="OK", description="Tag found"),
+            @RestCode(code=202, message="OK", description="Tags deleted, removal from venues started"),
             @RestCode(code=404, message="NOK", description="Tag not found")
     })
     @RequestMapping(value="{id}", method= RequestMethod.DELETE)
     public ResponseEntity<JTag> deleteTag(HttpServletRequest request,
+                                          UriComponentsBuilder uriBuilder,
+                                          @PathVariable String domain,
                                           @PathVariable String id) {
 
+        // The removal tasks are handled below this url
+        UriComponents jobsUrl = uriBuilder.path("/{domain}/tag/removal").buildAndExpand(domain);
+
+        // The job is started by a task added in the delete transaction
         Key key = KeyFactory.stringToKey(id);
-        final DTag body = venueService.deleteTag(key);
+        final Long jobId = venueService.deleteTag(key, jobsUrl.getPath());
+
+        // Invalidate the cached tag trees
+        tagCache.invalidate(TAG_CACHE_GROUP);
 
-        // Invalidate the memcache
-        MemcacheService memCache = MemcacheServiceFactory.getMemcacheService();
-        memCache.delete(tagCacheKey(body));
+        HttpHeaders headers = new HttpHeaders();
+        headers.setLocation(URI.create(String.format("%s/%d", jobsUrl.toUriString(), jobId)));
+
+        return new ResponseEntity<JTag>(headers, HttpStatus.ACCEPTED);
+    }
+
+    /**
+     * Get the progress of removing deleted tags from venues.
+     * @param jobId the id of the tag removal job
+     * @return the job status, number of tags done and number of venues updated
+     */
+    @RestReturn(value=JTagRemovalJob.class, entity=JTagRemovalJob.class, code={
+            @RestCode(code=200, message="OK", description="Tag removal job found"),
+            @RestCode(code=404, message="NOK", description="Tag removal job not found")
+    })
+    @RequestMapping(value="removal/{jobId}", method= RequestMethod.GET)
+    public ResponseEntity<JTagRemovalJob> getTagRemovalJob(HttpServletRequest request,
+                                                           @PathVariable Long jobId) {
+
+        final DTagRemovalJob body = venueService.getTagRemovalJob(jobId);
+
+        if (null == body)
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Tag removal job with id:%s not found", jobId));
+
+        return new ResponseEntity<JTagRemovalJob>(CONVERTER.convert(body), HttpStatus.OK);
+    }
+
+    /**
+     * Create a tag removal job and add its first task.
+     * Called by the task added when the tags were deleted, a retried task does not start the job twice.
+     * @param jobId the id of the tag removal job, allocated when the tags were deleted
+     * @param tagIds the ids of the deleted tags
+     * @return the job progress
+     */
+    @RestReturn(value=JTagRemovalJob.class, entity=JTagRemovalJob.class, code={
+            @RestCode(code=200, message="OK", description="Job started"),
+            @RestCode(code=403, message="NOK", description="Not called by the task queue or an admin")
+    })
+    @RequestMapping(value="removal/{jobId}/start", method= RequestMethod.POST)
+    public ResponseEntity<JTagRemovalJob> startTagRemoval(
+            HttpServletRequest request,
+            UriComponentsBuilder uriBuilder,
+            @PathVariable String domain,
+            @PathVariable Long jobId,
+            @RequestParam(required = true) String[] tagIds) {
+
+        if (!AdminRequests.isTaskOrAdmin(request))
+            return new ResponseEntity<JTagRemovalJob>(HttpStatus.FORBIDDEN);
+
+        UriComponents jobsUrl = uriBuilder.path("/{domain}/tag/removal").buildAndExpand(domain);
+        final DTagRemovalJob body = venueService.startTagRemoval(jobId, Arrays.asList(tagIds), jobsUrl.getPath());
+        venueService.invalidateSearchCache();
+
+        return new ResponseEntity<JTagRemovalJob>(CONVERTER.convert(body), HttpStatus.OK);
+    }
 
-        return new ResponseEntity<JTag>(HttpStatus.OK);
+    /**
+     * Remove deleted tags from the next chunks of venues.
+     * Called by the task queue. The progress is checkpointed together with the task continuing from it,
+     * a failing task is retried from the last checkpoint.
+     * @param jobId the id of the tag removal job
+     * @param tagIndex the index of the tag the chunk scans for
+     * @param cursor the datastore cursor the chunk starts at, empty to start from the beginning
+     * @return the job progress
+     */
+    @RestReturn(value=JTagRemovalJob.class, entity=JTagRemovalJob.class, code={
+            @RestCode(code=200, message="OK", description="Chunk processed"),
+            @RestCode(code=403, message="NOK", description="Not called by the task queue or an admin")
+    })
+    @RequestMapping(value="removal/{jobId}/chunk", method= RequestMethod.POST)
+    public ResponseEntity<JTagRemovalJob> processTagRemovalChunk(
+            HttpServletRequest request,
+            @PathVariable Long jobId,
+            @RequestParam(required = true) long tagIndex,
+            @RequestParam(required = false) String cursor) {
+
+        if (!AdminRequests.isTaskOrAdmin(request))
+            return new ResponseEntity<JTagRemovalJob>(HttpStatus.FORBIDDEN);
+
+        // Checkpoint once the chunk is done, a stale task leaves the job as is
+        final TagRemovalChunk chunk = venueService.processTagRemoval(jobId, tagIndex, cursor);
+        final DTagRemovalJob body = null != chunk ?
+                venueService.updateTagRemoval(jobId, chunk) : venueService.getTagRemovalJob(jobId);
+
+        return new ResponseEntity<JTagRemovalJob>(CONVERTER.convert(body), HttpStatus.OK);
     }
 
     /**
      * Get full hierarchy of tags of a certain type.
      * @param type the type of the tag, e.g. "location" or "category". D
+     * @param locale Optional. Localize the tag names and images, e.g. sv-SE.
+     *               Falls back to the language, e.g. sv, and then to the tag name.
+     *               Case and separator do not matter, sv_se is the same locale as sv-SE.
      * @return a full tag hierarchy
      */
     @RestReturn(value=JTag.class, entity=JTag.class, code={
             @RestCode(code=200, message="OK", description="Tags found"),
+            @RestCode(code=400, message="NOK", description="Not a locale"),
             @RestCode(code=404, message="NOK", description="Tags not found")
     })
     @RequestMapping(value="type/{type}", method= RequestMethod.GET)
     public ResponseEntity<Collection<JTag>> getTagHierarchyForType(HttpServletRequest request,
-                                                                   @PathVariable String type) {
-
-        // Check the cache first
-        MemcacheService memCache = MemcacheServiceFactory.getMemcacheService();
-        Collection<JTag> jTags = (Collection<JTag>)memCache.get(TAG_CACHE_KEY + type);
-
-        if (null == jTags) {
-
-            final Iterable<DTag> dTagIterable = venueService.getTagsForType(type);
-
-            // Arrange in a hierarchy
-            jTags = new ArrayList<JTag>();
-            Map<String, Collection<JTag>> remainingTags = new HashMap<String, Collection<JTag>>();
-
-            // Split in root and non-root tags
-            for (DTag dTag : dTagIterable) {
-                // Convert to JTag before we do anything
-                JTag jTag = CONVERTER.convert(dTag);
-
-                if (null == dTag.getParent())
-                    jTags.add(jTag);
-                else {
-                    Collection<JTag> children = remainingTags.get(jTag.getParent());
-                    if (null == children) {
-                        children = new ArrayList<JTag>();
-                        remainingTags.put(jTag.getParent(), children);
-                    }
-                    children.add(jTag);
-                }
+                                                                   @PathVariable final String type,
+                                                                   @RequestParam(required = false) String locale) {
+
+        // The same locale in another case or with _ shares the tree and the translations
+        final String normalizedLocale = null != locale ? TranslationService.normalizeLocale(locale) : null;
+        if (null != normalizedLocale && normalizedLocale.isEmpty())
+            throw new BadRequestException(ERR_BAD_REQUEST, String.format("Not a locale:%s", locale));
+
+        // Check the cache first, a hit costs no datastore reads. Each locale has its own tree.
+        String cacheKey = null != normalizedLocale ? String.format("%s/%s", type, normalizedLocale) : type;
+        Collection<JTag> jTags = (Collection<JTag>)tagCache.get(TAG_CACHE_GROUP, cacheKey, new TwoLevelCache.Loader() {
+            @Override
+            public Object load() {
+                return buildTagHierarchy(type, normalizedLocale);
             }
+        });
 
-            for (JTag parentTag : jTags)
-                addChildren(parentTag, remainingTags);
+        return new ResponseEntity<Collection<JTag>>(jTags, HttpStatus.OK);
+    }
 
-            // Update memcache
-            //memCache.put(TAG_CACHE_KEY + type, jTags); // TODO
+    // Build the tag tree for a type, localized if a locale is given
+    private ArrayList<JTag> buildTagHierarchy(String type, String locale) {
+
+        // The query result is read once, the localized names are kept
+        final Collection<DTag> dTags = new ArrayList<DTag>();
+        for (DTag dTag : venueService.getTagsForType(type))
+            dTags.add(dTag);
+        if (null != locale)
+            localizeTags(dTags, locale);
+
+        // Arrange in a hierarchy
+        ArrayList<JTag> jTags = new ArrayList<JTag>();
+        Map<String, Collection<JTag>> remainingTags = new HashMap<String, Collection<JTag>>();
+
+        // Split in root and non-root tags
+        for (DTag dTag : dTags) {
+            // Convert to JTag before we do anything
+            JTag jTag = CONVERTER.convert(dTag);
+
+            if (null == dTag.getParent())
+                jTags.add(jTag);
+            else {
+                Collection<JTag> children = remainingTags.get(jTag.getParent());
+                if (null == children) {
+                    children = new ArrayList<JTag>();
+                    remainingTags.put(jTag.getParent(), children);
+                }
+                children.add(jTag);
+            }
         }
 
-        return new ResponseEntity<Collection<JTag>>(jTags, HttpStatus.OK);
+        for (JTag parentTag : jTags)
+            addChildren(parentTag, remainingTags);
+
+        return jTags;
+    }
+
+    // Replace the tag names and images with the best translations, found with batch gets of at most 1000 keys
+    private void localizeTags(Collection<DTag> dTags, String locale) {
+
+        Map<Key, DTag> tagMap = new HashMap<Key, DTag>(dTags.size());
+        for (DTag dTag : dTags)
+            tagMap.put(KeyFactory.createKey((Key) dTag.getParent(), DTag.class.getSimpleName(), dTag.getId()), dTag);
+
+        final Map<Key, Di18nTranslation> translations =
+                translationService.resolveTranslations(tagMap.keySet(), TranslationService.localeFallbacks(locale));
+
+        for (Map.Entry<Key, DTag> entry : tagMap.entrySet()) {
+            DTag dTag = entry.getValue();
+            Di18nTranslation di18n = translations.get(entry.getKey());
+            if (null == di18n)
+                continue;
+            if (null != di18n.getLocalizedString())
+                dTag.setName(di18n.getLocalizedString());
+            if (null != di18n.getLocalizedImage())
+                dTag.setImageUrl(di18n.getLocalizedImage());
+        }
     }
 
     // Build a hierarchy of tags
@@ -261,4 +402,12 @@ public class TagController {
     public void setVenueService(VenueService venueService) {
         this.venueService = venueService;
     }
+
+    public void setTagCache(TwoLevelCache tagCache) {
+        this.tagCache = tagCache;
+    }
+
+    public void setTranslationService(TranslationService translationService) {
+        this.translationService = translationService;
+    }
 }
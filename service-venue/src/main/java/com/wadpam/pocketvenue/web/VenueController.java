@@ -2,7 +2,6 @@ package com.wadpam.pocketvenue.web;
 
 import au.com.bytecode.opencsv.CSVReader;
 import com.google.appengine.api.blobstore.BlobKey;
-import com.google.appengine.api.blobstore.BlobstoreInputStream;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
 import com.google.appengine.api.datastore.Key;
@@ -11,8 +10,20 @@ import com.wadpam.docrest.domain.RestCode;
 import com.wadpam.docrest.domain.RestReturn;
 import com.wadpam.open.json.JCursorPage;
 import com.wadpam.open.json.JLocation;
+import com.wadpam.pocketvenue.domain.DImportJob;
+import com.wadpam.pocketvenue.domain.DIndexCheckJob;
+import com.wadpam.pocketvenue.domain.DIndexState;
+import com.wadpam.pocketvenue.domain.DReindexJob;
 import com.wadpam.pocketvenue.domain.DPlace;
+import com.wadpam.pocketvenue.json.JBulkItemResult;
+import com.wadpam.pocketvenue.json.JImportJob;
+import com.wadpam.pocketvenue.json.JIndexCheckJob;
+import com.wadpam.pocketvenue.json.JReindexJob;
 import com.wadpam.pocketvenue.json.JVenue;
+import com.wadpam.pocketvenue.json.JVenueDetail;
+import com.wadpam.pocketvenue.service.BulkItemResult;
+import com.wadpam.pocketvenue.service.ReindexChunk;
+import com.wadpam.pocketvenue.service.VenueDetail;
 import com.wadpam.pocketvenue.service.VenueService;
 import com.wadpam.server.exceptions.BadRequestException;
 import com.wadpam.server.exceptions.NotFoundException;
@@ -26,7 +37,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.servlet.view.RedirectView;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import javax.servlet.http.HttpServletRequest;
@@ -34,10 +45,16 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * The venue controller implements all REST methods related to venues.
@@ -53,12 +70,16 @@ public class VenueController extends AbstractRestController {
     private final int ERR_SERVER_ERROR = VenueService.ERR_VENUE_SERVICE + 203;
 
     private static final Converter CONVERTER = new Converter();
+
+    // Parts that can be included with a venue detail
+    private static final Set<String> EXPAND_VALUES = new HashSet<String>(Arrays.asList("tags", "parents", "i18n"));
     private BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
 
     private VenueService venueService;
 
     /**
      * Create a venue.
+     * Send "Prefer: return=representation" to get the created venue in the response instead of a redirect.
      * @param name the name of the venue
      * @param parent Optional. The id of the parent venue this venue belong to
      * @param shortDescription Optional. A short description of the venue
@@ -84,10 +105,11 @@ public class VenueController extends AbstractRestController {
      * @return the new venue
      */
     @RestReturn(value= JVenue.class, entity=JVenue.class, code={
+            @RestCode(code=201, message="OK", description="Venue created, return=representation preferred"),
             @RestCode(code=302, message="OK", description="Redirect to newly created venue")
     })
     @RequestMapping(value="", method= RequestMethod.POST)
-    public RedirectView addVenue(HttpServletRequest request,
+    public ResponseEntity<JVenue> addVenue(HttpServletRequest request,
                                  UriComponentsBuilder uriBuilder,
                                  @PathVariable String domain,
                                  @ModelAttribute("jVenue") JVenue jVenue,
@@ -112,14 +134,44 @@ public class VenueController extends AbstractRestController {
 
         if (null == body)
             throw new ServerErrorException(ERR_SERVER_ERROR, String.format("Failed to create new venue:%s", jVenue.getName()));
+        venueService.invalidateSearchCache();
 
         JVenue createdVenue = CONVERTER.convert(body);
-        return new RedirectView(uriBuilder.path("/{domain}/venue/{id}").
-                buildAndExpand(domain, createdVenue.getId()).toUriString());
+        URI location = uriBuilder.path("/{domain}/venue/{id}").buildAndExpand(domain, createdVenue.getId()).toUri();
+        return WriteResponses.created(request, location, createdVenue);
+    }
+
+    /**
+     * Create or update many venues in one request.
+     * The body is a json array of venues, venues with an id are updated and venues without are created.
+     * All venues are validated before the valid ones are written in batches, invalid venues are not written.
+     * Updated venues keep the parent of their id, a venue can not be moved to another parent.
+     * A batch failing in the datastore only fails its own venues.
+     * @param jVenues the venues to write
+     * @return one result per venue in request order, with the venue id and the http status it would have had
+     * as a single request, 200 updated, 201 created, 400 invalid, 404 not found or 500 not stored
+     */
+    @RestReturn(value=JBulkItemResult.class, entity=JBulkItemResult.class, code={
+            @RestCode(code=200, message="OK", description="Venues written, see the result of each venue"),
+            @RestCode(code=400, message="NOK", description="Too many venues")
+    })
+    @RequestMapping(value="bulk", method= RequestMethod.POST)
+    public ResponseEntity<Collection<JBulkItemResult>> bulkWriteVenues(HttpServletRequest request,
+                                                                       @PathVariable String domain,
+                                                                       @RequestBody JVenue[] jVenues) {
+
+        final List<BulkItemResult> results = venueService.bulkWritePlaces(Arrays.asList(jVenues));
+
+        Collection<JBulkItemResult> body = new ArrayList<JBulkItemResult>(results.size());
+        for (BulkItemResult result : results)
+            body.add(CONVERTER.convert(result));
+
+        return new ResponseEntity<Collection<JBulkItemResult>>(body, HttpStatus.OK);
     }
 
     /**
      * Update venue by id.
+     * Send "Prefer: return=representation" to get the updated venue in the response instead of a redirect.
      * @param id the id of the venue
      * @param name the name of the venue
      * @param parentId Optional. The id of the parent venue this venue belong to
@@ -145,10 +197,11 @@ public class VenueController extends AbstractRestController {
      * @return the updated venue
      */
     @RestReturn(value=JVenue.class, entity=JVenue.class, code={
+            @RestCode(code=200, message="OK", description="Venue updated, return=representation preferred"),
             @RestCode(code=302, message="OK", description="Redirect to newly updated venue")
     })
     @RequestMapping(value="{id}", method= RequestMethod.POST)
-    public RedirectView updateVenue(HttpServletRequest request,
+    public ResponseEntity<JVenue> updateVenue(HttpServletRequest request,
                                     @PathVariable String id,
                                     @ModelAttribute("jVenue") JVenue jVenue,
                                     @ModelAttribute("jLocation") JLocation jLocation,
@@ -172,13 +225,17 @@ public class VenueController extends AbstractRestController {
 
         if (null == body)
             throw new ServerErrorException(ERR_SERVER_ERROR, String.format("Failed to update venue with id:%s", jVenue.getId()));
+        venueService.invalidateSearchCache();
 
-        return new RedirectView(request.getRequestURI());
+        URI location = ServletUriComponentsBuilder.fromRequestUri(request).build().toUri();
+        return WriteResponses.updated(request, location, CONVERTER.convert(body));
     }
 
     /**
      * Get a venue by id.
      * @param id the id of the venue
+     * @param fields Optional. The venue fields to return, e.g. name,location. The id is always returned.
+     *               Default all fields.
      * @return the venue
      */
     @RestReturn(value=JVenue.class, entity=JVenue.class, code={
@@ -186,9 +243,12 @@ public class VenueController extends AbstractRestController {
             @RestCode(code=404, message="NOK", description="Venue not found")
     })
     @RequestMapping(value="{id}", method= RequestMethod.GET)
-    public ResponseEntity<JVenue> getVenue(HttpServletRequest request,
-                                           @PathVariable String domain,
-                                           @PathVariable String id) {
+    public ResponseEntity<Serializable> getVenue(HttpServletRequest request,
+                                                 @PathVariable String domain,
+                                                 @PathVariable String id,
+                                                 @RequestParam(required = false) String[] fields) {
+
+        final Set<String> selectedFields = parseFields(fields);
 
         Key key = KeyFactory.stringToKey(id);
         final DPlace body = venueService.getPlace(key);
@@ -196,7 +256,96 @@ public class VenueController extends AbstractRestController {
         if (null == body)
             throw new NotFoundException(ERR_NOT_FOUND, String.format("Place with id:%s not found", id));
 
-        return new ResponseEntity<JVenue>(CONVERTER.convert(body), HttpStatus.OK);
+        if (null != selectedFields)
+            return new ResponseEntity<Serializable>(new SparseVenue(body, selectedFields), HttpStatus.OK);
+        return new ResponseEntity<Serializable>(CONVERTER.convert(body), HttpStatus.OK);
+    }
+
+    /**
+     * Get a venue with the tags, parents and translations needed to render it in one request.
+     * The tags, parents and translations are read concurrently.
+     * @param id the id of the venue
+     * @param expand what to include with the venue, one or more of tags, parents and i18n
+     * @param locale the locale of the translations, required when expanding i18n.
+     *               Translations of the venue, its parents and its tags are included.
+     *               Falls back to the language of the locale, e.g. sv-SE to sv.
+     * @return the venue detail
+     */
+    @RestReturn(value=JVenueDetail.class, entity=JVenueDetail.class, code={
+            @RestCode(code=200, message="OK", description="Venue found"),
+            @RestCode(code=400, message="NOK", description="Unknown expand value or locale missing"),
+            @RestCode(code=404, message="NOK", description="Venue not found")
+    })
+    @RequestMapping(value="{id}", method= RequestMethod.GET, params="expand")
+    public ResponseEntity<JVenueDetail> getVenueDetail(HttpServletRequest request,
+                                                       @PathVariable String domain,
+                                                       @PathVariable String id,
+                                                       @RequestParam String[] expand,
+                                                       @RequestParam(required = false) String locale) {
+
+        Set<String> expanded = new HashSet<String>();
+        for (String part : expand) {
+            if (!EXPAND_VALUES.contains(part.trim()))
+                throw new BadRequestException(ERR_BAD_REQUEST, String.format("Unknown expand value:%s", part));
+            expanded.add(part.trim());
+        }
+        if (expanded.contains("i18n") && (null == locale || locale.isEmpty()))
+            throw new BadRequestException(ERR_BAD_REQUEST, "Client must provide a locale to expand i18n");
+
+        Key key = KeyFactory.stringToKey(id);
+        final VenueDetail body = venueService.getPlaceDetail(key, expanded.contains("parents"),
+                expanded.contains("tags"), expanded.contains("i18n") ? locale : null);
+
+        if (null == body)
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Place with id:%s not found", id));
+
+        return new ResponseEntity<JVenueDetail>(CONVERTER.convert(body), HttpStatus.OK);
+    }
+
+    /**
+     * Get many venues by id in one request.
+     * The venues are read in batches through the entity cache.
+     * @param ids the ids of the venues, max 100
+     * @param fields Optional. The venue fields to return, e.g. name,location. The id is always returned.
+     *               Default all fields.
+     * @return one item per id in request order. The venue if found, otherwise a result with the id,
+     * the index of the id and status 404.
+     */
+    @RestReturn(value=JVenue.class, entity=JVenue.class, code={
+            @RestCode(code=200, message="OK", description="Venues looked up, missing venues have status 404"),
+            @RestCode(code=400, message="NOK", description="Invalid venue id or too many ids")
+    })
+    @RequestMapping(value="", method= RequestMethod.GET, params="ids")
+    public ResponseEntity<Collection<Serializable>> getVenues(HttpServletRequest request,
+                                                              @PathVariable String domain,
+                                                              @RequestParam String[] ids,
+                                                              @RequestParam(required = false) String[] fields) {
+
+        final Set<String> selectedFields = parseFields(fields);
+
+        List<Key> keys = new ArrayList<Key>(ids.length);
+        for (String id : ids) {
+            try {
+                keys.add(KeyFactory.stringToKey(id.trim()));
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException(ERR_BAD_REQUEST, String.format("Not a venue id:%s", id));
+            }
+        }
+
+        final List<DPlace> dPlaces = venueService.getPlaces(keys);
+
+        Collection<Serializable> body = new ArrayList<Serializable>(dPlaces.size());
+        for (int i = 0; i < dPlaces.size(); i++) {
+            DPlace dPlace = dPlaces.get(i);
+            if (null == dPlace)
+                body.add(notFound(i, ids[i].trim()));
+            else if (null != selectedFields)
+                body.add(new SparseVenue(dPlace, selectedFields));
+            else
+                body.add(CONVERTER.convert(dPlace));
+        }
+
+        return new ResponseEntity<Collection<Serializable>>(body, HttpStatus.OK);
     }
 
     /**
@@ -215,6 +364,7 @@ public class VenueController extends AbstractRestController {
 
         Key key = KeyFactory.stringToKey(id);
         final DPlace result = venueService.deletePlace(key);
+        venueService.invalidateSearchCache();
 
         return new ResponseEntity<JVenue>(HttpStatus.OK);
     }
@@ -225,6 +375,8 @@ public class VenueController extends AbstractRestController {
      * @param cursor Optional. The current cursor position during pagination.
      *               The next page will be return from this position.
      *               If asking for the first page, not cursor should be provided.
+     * @param fields Optional. The venue fields to return, e.g. name,location. The id is always returned.
+     *               Default all fields.
      * @return a list of venues and a new cursor.
      */
     @RestReturn(value=JCursorPage.class, entity=JCursorPage.class, code={
@@ -232,18 +384,21 @@ public class VenueController extends AbstractRestController {
             @RestCode(code=404, message="NOK", description="No venues found")
     })
     @RequestMapping(value="", method= RequestMethod.GET)
-    public ResponseEntity<JCursorPage<JVenue>> getAllVenues(
+    public ResponseEntity<JCursorPage<Serializable>> getAllVenues(
             HttpServletRequest request,
             @PathVariable String domain,
             @RequestParam(defaultValue = "10") int pagesize,
-            @RequestParam(required = false) String cursor) {
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) String[] fields) {
+
+        final Set<String> selectedFields = parseFields(fields);
 
         final CursorPage<DPlace, Long> cursorPage = venueService.getAllPlaces(cursor, pagesize);
 
         if (null == cursorPage)
             throw new ServerErrorException(ERR_SERVER_ERROR, "Not possible to get all venues");
 
-        return new ResponseEntity<JCursorPage<JVenue>>((JCursorPage<JVenue>)CONVERTER.convertPage(cursorPage), HttpStatus.OK);
+        return new ResponseEntity<JCursorPage<Serializable>>(CONVERTER.wrapPage(cursorPage, selectedFields), HttpStatus.OK);
     }
 
     /**
@@ -253,6 +408,8 @@ public class VenueController extends AbstractRestController {
      * @param cursor Optional. The current cursor position during pagination.
      *               The next page will be return from this position.
      *               If asking for the first page, not cursor should be provided.
+     * @param fields Optional. The venue fields to return, e.g. name,location. The id is always returned.
+     *               Default all fields.
      * @return a list of venues and a new cursor.
      */
     @RestReturn(value=JCursorPage.class, entity=JCursorPage.class, code={
@@ -260,12 +417,15 @@ public class VenueController extends AbstractRestController {
             @RestCode(code=404, message="NOK", description="No venues found")
     })
     @RequestMapping(value="parent/{parent}", method= RequestMethod.GET)
-    public ResponseEntity<JCursorPage<JVenue>> getAllVenuesForParent(
+    public ResponseEntity<JCursorPage<Serializable>> getAllVenuesForParent(
             HttpServletRequest request,
             @PathVariable String domain,
             @RequestParam(defaultValue = "10") int pagesize,
             @RequestParam(required = false) String cursor,
-            @PathVariable String parent) {
+            @PathVariable String parent,
+            @RequestParam(required = false) String[] fields) {
+
+        final Set<String> selectedFields = parseFields(fields);
 
         Key parentKey = KeyFactory.stringToKey(parent);
         final CursorPage<DPlace, Long> cursorPage = venueService.getAllPlacesForParent(parentKey, cursor, pagesize);
@@ -273,7 +433,7 @@ public class VenueController extends AbstractRestController {
         if (null == cursorPage)
             throw new ServerErrorException(ERR_SERVER_ERROR , String.format("Not possible to get all venue for parent:%s", parent));
 
-        return new ResponseEntity<JCursorPage<JVenue>>((JCursorPage<JVenue>)CONVERTER.convertPage(cursorPage), HttpStatus.OK);
+        return new ResponseEntity<JCursorPage<Serializable>>(CONVERTER.wrapPage(cursorPage, selectedFields), HttpStatus.OK);
     }
 
     /**
@@ -282,6 +442,8 @@ public class VenueController extends AbstractRestController {
      * @param cursor Optional. The current cursor position during pagination.
      *               The next page will be return from this position.
      *               If asking for the first page, not cursor should be provided.
+     * @param fields Optional. The venue fields to return, e.g. name,location. The id is always returned.
+     *               Default all fields.
      * @return a list of venues and a new cursor.
      */
     @RestReturn(value=JCursorPage.class, entity=JCursorPage.class, code={
@@ -289,18 +451,21 @@ public class VenueController extends AbstractRestController {
             @RestCode(code=404, message="NOK", description="No venues found")
     })
     @RequestMapping(value="root", method= RequestMethod.GET)
-    public ResponseEntity<JCursorPage<JVenue>> getAllVenuesWithNoParent(
+    public ResponseEntity<JCursorPage<Serializable>> getAllVenuesWithNoParent(
             HttpServletRequest request,
             @PathVariable String domain,
             @RequestParam(defaultValue = "10") int pagesize,
-            @RequestParam(required = false) String cursor) {
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) String[] fields) {
+
+        final Set<String> selectedFields = parseFields(fields);
 
         final CursorPage<DPlace, Long> cursorPage = venueService.getAllPlacesWithNoParent(cursor, pagesize);
 
         if (null == cursorPage)
             throw new ServerErrorException(ERR_SERVER_ERROR , "Not possible to get venus with no parent");
 
-        return new ResponseEntity<JCursorPage<JVenue>>((JCursorPage<JVenue>)CONVERTER.convertPage(cursorPage), HttpStatus.OK);
+        return new ResponseEntity<JCursorPage<Serializable>>(CONVERTER.wrapPage(cursorPage, selectedFields), HttpStatus.OK);
     }
 
     /**
@@ -311,26 +476,34 @@ public class VenueController extends AbstractRestController {
      *               If asking for the first page, not cursor should be provided.
      * @param text the search text
      * @param tags Optional. Only venues containing the list of tag ids will be searched
+     * @param summary Optional. If true only id, parent, name, city, tags and location are returned, read from the
+     *                search index without accessing the datastore. Default false.
+     * @param fields Optional. The venue fields to return, e.g. name,location. The id is always returned.
+     *               Default all fields.
      * @return a list of venues matching the search text
      */
     @RestReturn(value=JCursorPage.class, entity=JCursorPage.class, code={
             @RestCode(code=200, message="OK", description="Venues found")
     })
     @RequestMapping(value="search", method= RequestMethod.GET)
-    public ResponseEntity<JCursorPage<JVenue>> searchForVenue(
+    public ResponseEntity<JCursorPage<Serializable>> searchForVenue(
             HttpServletRequest request,
             @PathVariable String domain,
             @RequestParam(required = true) String text,
             @RequestParam(required = false) String[] tags,
             @RequestParam(defaultValue = "10") int pagesize,
-            @RequestParam(required = false) String cursor) {
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "false") boolean summary,
+            @RequestParam(required = false) String[] fields) {
+
+        final Set<String> selectedFields = parseFields(fields);
 
-        final CursorPage<DPlace, Long> cursorPage = venueService.textSearchForPlaces(text, tags, cursor, pagesize);
+        final CursorPage<DPlace, Long> cursorPage = venueService.textSearchForPlaces(text, tags, cursor, pagesize, summary || isSummary(selectedFields));
 
         if (null == cursorPage)
             throw new ServerErrorException(ERR_SERVER_ERROR, String.format("Not possible to search with text:%s", text));
 
-        return new ResponseEntity<JCursorPage<JVenue>>((JCursorPage<JVenue>)CONVERTER.convertPage(cursorPage), HttpStatus.OK);
+        return new ResponseEntity<JCursorPage<Serializable>>(CONVERTER.wrapPage(cursorPage, selectedFields), HttpStatus.OK);
     }
 
 
@@ -341,29 +514,37 @@ public class VenueController extends AbstractRestController {
      *               The next page will be return from this position.
      *               If asking for the first page, not cursor should be provided.
      * @param tags optional. A list a tag ids. Only places with matching tags will be considered
+     * @param summary Optional. If true only id, parent, name, city, tags and location are returned, read from the
+     *                search index without accessing the datastore. Default false.
+     * @param fields Optional. The venue fields to return, e.g. name,location. The id is always returned.
+     *               Default all fields.
      * @return a list of venues and a new cursor.
      */
     @RestReturn(value=JCursorPage.class, entity=JCursorPage.class, code={
             @RestCode(code=200, message="OK", description="Venues found")
     })
     @RequestMapping(value="tags", method= RequestMethod.GET)
-    public ResponseEntity<JCursorPage<JVenue>> getAllVenuesForTags(
+    public ResponseEntity<JCursorPage<Serializable>> getAllVenuesForTags(
             HttpServletRequest request,
             @PathVariable String domain,
             @RequestParam(defaultValue = "10") int pagesize,
             @RequestParam(required = false) String cursor,
-            @RequestParam(required = true) String[] tags) {
+            @RequestParam(required = true) String[] tags,
+            @RequestParam(defaultValue = "false") boolean summary,
+            @RequestParam(required = false) String[] fields) {
+
+        final Set<String> selectedFields = parseFields(fields);
 
         // Check that we have at least one tag
         if (tags.length < 1)
             throw new BadRequestException(ERR_BAD_REQUEST, "At least one tag must be provided");
 
-        final CursorPage<DPlace, Long> cursorPage = venueService.getAllPlacesForTags(tags, cursor, pagesize);
+        final CursorPage<DPlace, Long> cursorPage = venueService.getAllPlacesForTags(tags, cursor, pagesize, summary || isSummary(selectedFields));
 
         if (null == cursorPage)
             throw new ServerErrorException(ERR_SERVER_ERROR, String.format("Not possible to search with tags:%s", tags));
 
-        return new ResponseEntity<JCursorPage<JVenue>>((JCursorPage<JVenue>)CONVERTER.convertPage(cursorPage), HttpStatus.OK);
+        return new ResponseEntity<JCursorPage<Serializable>>(CONVERTER.wrapPage(cursorPage, selectedFields), HttpStatus.OK);
     }
 
 
@@ -377,13 +558,18 @@ public class VenueController extends AbstractRestController {
      * @param longitude optional, the longitude to search around
      * @param radius optional, the radius i meter. Default 1500m
      * @param tags optional. A list a tag ids. Only places with matching tags will be considered
+     * @param summary Optional. If true only id, parent, name, city, tags and location are returned, read from the
+     *                search index without accessing the datastore. Default false.
+     * @param fields Optional. The venue fields to return, e.g. name,location. The id is always returned.
+     *               Default all fields.
      * @return a list of products
      */
     @RestReturn(value=JVenue.class, entity=JVenue.class, code={
-            @RestCode(code=200, message="OK", description="Venues found")
+            @RestCode(code=200, message="OK", description="Venues found"),
+            @RestCode(code=400, message="NOK", description="Not a valid cursor")
     })
     @RequestMapping(value="nearby", method= RequestMethod.GET)
-    public ResponseEntity<JCursorPage<JVenue>> getNearbyVenues(
+    public ResponseEntity<JCursorPage<Serializable>> getNearbyVenues(
             HttpServletRequest request,
             @PathVariable String domain,
             @RequestParam(defaultValue = "10") int pagesize,
@@ -391,14 +577,18 @@ public class VenueController extends AbstractRestController {
             @RequestParam(required = true) Float latitude,
             @RequestParam(required = true) Float longitude,
             @RequestParam(defaultValue = "3000") int radius,
-            @RequestParam(required = true) String[] tags) {
+            @RequestParam(required = true) String[] tags,
+            @RequestParam(defaultValue = "false") boolean summary,
+            @RequestParam(required = false) String[] fields) {
+
+        final Set<String> selectedFields = parseFields(fields);
 
-        final CursorPage<DPlace, Long> cursorPage = venueService.getNearbyPlaces(latitude, longitude, radius, tags, cursor, pagesize);
+        final CursorPage<DPlace, Long> cursorPage = venueService.getNearbyPlaces(latitude, longitude, radius, tags, cursor, pagesize, summary || isSummary(selectedFields));
 
         if (null == cursorPage)
             throw new ServerErrorException(ERR_SERVER_ERROR, String.format("Not possible to search nearby with lat:%s and lon:%s", latitude, longitude));
 
-        return new ResponseEntity<JCursorPage<JVenue>>((JCursorPage<JVenue>)CONVERTER.convertPage(cursorPage), HttpStatus.OK);
+        return new ResponseEntity<JCursorPage<Serializable>>(CONVERTER.wrapPage(cursorPage, selectedFields), HttpStatus.OK);
     }
 
 
@@ -426,16 +616,19 @@ public class VenueController extends AbstractRestController {
      * Expected format
      * name;shortDescription;description;openingHours;tags;street;cityArea;city;county;postalCode;country;latitude;longitude;phoneNumber;email;webUrl;facebookUrl;twitterUrl;logoUrl;imageUrls
      * In columns that contain a list of values, e.g. opening hours, individual elements will be separated by #
-     * First each row is checked for errors. If errors are found the operation in aborted (all rows
-     * must be validated before they are stored to the datastore).
-     * @return The number of venues that was created
+     * The file is imported by a background job. Valid rows are stored in batches, rows with errors
+     * are skipped and reported in the job progress.
+     * Note that the response changed when imports became background jobs, the number of created
+     * venues is no longer returned as "rows" but read from the job progress at the returned url.
+     * @param parent Optional. The id of the parent venue all created venues belong to
+     * @return the id of the import job and the url where the job progress can be read
      */
     @RestReturn(value=Map.class, entity=Map.class, code={
-            @RestCode(code=200, message="OK", description="Venue CSV file uploaded")
+            @RestCode(code=200, message="OK", description="Venue CSV file uploaded and import started")
     })
     @RequestMapping(value="csv", method= RequestMethod.POST)
     @ResponseBody
-    public Map<String, Integer> csvUploadCallback(
+    public Map<String, Object> csvUploadCallback(
             HttpServletRequest request,
             @RequestParam(required = false) String parent) throws IOException {
         LOG.debug("Venue CSV upload callback");
@@ -444,7 +637,6 @@ public class VenueController extends AbstractRestController {
 
         // Get the blobkey
         BlobKey blobKey = null;
-        Iterable<BlobKey> iterable = null;
         if (blobKeys.values().iterator().hasNext()) {
             blobKey = blobKeys.values().iterator().next().get(0);
         }
@@ -454,20 +646,404 @@ public class VenueController extends AbstractRestController {
             throw new ServerErrorException(ERR_SERVER_ERROR, "Not possible to get the blob key for the CSV file");
         }
 
-        Map<String, Integer> response = new HashMap<String, Integer>();
+        // The import tasks are handled below this url
+        String jobsUrl = request.getRequestURI();
+
+        DImportJob job;
         try {
-            InputStream inputStream = new BlobstoreInputStream(blobKey);
             Key parentKey = parent != null ? KeyFactory.stringToKey(parent) : null;
-            int rows = this.venueService.addVenueFromCSV(inputStream, parentKey);
-            response.put("rows", rows);
-        } finally {
-            // Make sure we always delete the blob
+            job = this.venueService.startCsvImport(blobKey, parentKey, jobsUrl);
+        } catch (RuntimeException e) {
+            // The blob is deleted by the job once it is started
             blobstoreService.delete(blobKey);
+            throw e;
         }
 
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("jobId", job.getId());
+        response.put("url", String.format("%s/%d", jobsUrl, job.getId()));
+
         return response;
     }
 
+    /**
+     * Get the progress of a CSV import job.
+     * @param jobId the id of the import job
+     * @return the job status, number of rows parsed, stored and failed and the throughput
+     */
+    @RestReturn(value=JImportJob.class, entity=JImportJob.class, code={
+            @RestCode(code=200, message="OK", description="Import job found"),
+            @RestCode(code=404, message="NOK", description="Import job not found")
+    })
+    @RequestMapping(value="csv/{jobId}", method= RequestMethod.GET)
+    public ResponseEntity<JImportJob> getCsvImportJob(HttpServletRequest request,
+                                                      @PathVariable String domain,
+                                                      @PathVariable Long jobId) {
+
+        final DImportJob body = venueService.getImportJob(jobId);
+
+        if (null == body)
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Import job with id:%s not found", jobId));
+
+        return new ResponseEntity<JImportJob>(CONVERTER.convert(body), HttpStatus.OK);
+    }
+
+    /**
+     * Process the next chunk of a CSV import job.
+     * Called by the task queue, a failing chunk is retried from the last checkpoint.
+     * @param jobId the id of the import job
+     * @param offset the byte offset in the CSV file the chunk starts at
+     * @return the job progress
+     */
+    @RestReturn(value=JImportJob.class, entity=JImportJob.class, code={
+            @RestCode(code=200, message="OK", description="Chunk processed"),
+            @RestCode(code=403, message="NOK", description="Not called by the task queue or an admin")
+    })
+    @RequestMapping(value="csv/{jobId}/chunk", method= RequestMethod.POST)
+    public ResponseEntity<JImportJob> processCsvImportChunk(
+            HttpServletRequest request,
+            @PathVariable String domain,
+            @PathVariable Long jobId,
+            @RequestParam(required = true) long offset,
+            @RequestHeader(value = "X-AppEngine-TaskRetryCount", defaultValue = "0") int retryCount) throws IOException {
+
+        if (!AdminRequests.isTaskOrAdmin(request))
+            return new ResponseEntity<JImportJob>(HttpStatus.FORBIDDEN);
+
+        final DImportJob body = venueService.processCsvImport(jobId, offset, retryCount);
+
+        return new ResponseEntity<JImportJob>(CONVERTER.convert(body), HttpStatus.OK);
+    }
+
+    /**
+     * Index the venues waiting in the write-behind index queue.
+     * Called by the task queue shortly after venues are written, only task queue and admin requests are accepted.
+     * @return the number of processed queue tasks
+     */
+    @RestReturn(value=Map.class, entity=Map.class, code={
+            @RestCode(code=200, message="OK", description="Index queue flushed"),
+            @RestCode(code=403, message="NOK", description="Not called by the task queue or an admin")
+    })
+    @RequestMapping(value="index/flush", method= RequestMethod.POST)
+    public ResponseEntity<Map<String, Object>> flushIndexQueue(HttpServletRequest request) {
+
+        if (!AdminRequests.isTaskOrAdmin(request))
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.FORBIDDEN);
+
+        int count = venueService.flushIndexQueue();
+
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("count", count);
+
+        return new ResponseEntity<Map<String, Object>>(response, HttpStatus.OK);
+    }
+
+    /**
+     * Build the snapshot of venue locations that instances load their in-process spatial index from.
+     * Called by the task queue when the snapshot is missing or old, only task queue and admin requests are accepted.
+     * @return the number of venues in the snapshot
+     */
+    @RestReturn(value=Map.class, entity=Map.class, code={
+            @RestCode(code=200, message="OK", description="Snapshot built"),
+            @RestCode(code=403, message="NOK", description="Not called by the task queue or an admin")
+    })
+    @RequestMapping(value="index/spatial", method= RequestMethod.POST)
+    public ResponseEntity<Map<String, Object>> buildSpatialSnapshot(HttpServletRequest request) throws IOException {
+
+        if (!AdminRequests.isTaskOrAdmin(request))
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.FORBIDDEN);
+
+        int count = venueService.buildSpatialSnapshot();
+
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("count", count);
+
+        return new ResponseEntity<Map<String, Object>>(response, HttpStatus.OK);
+    }
+
+    /**
+     * Rebuild the search index from the datastore.
+     * The venues are split in key ranges indexed in parallel by background tasks, throttled to a configured rate.
+     * @param shards Optional. The number of key ranges indexed in parallel
+     * @return the id of the reindex job and the url where the job progress can be read
+     */
+    @RestReturn(value=Map.class, entity=Map.class, code={
+            @RestCode(code=200, message="OK", description="Reindex started"),
+            @RestCode(code=403, message="NOK", description="Not called by the task queue or an admin")
+    })
+    @RequestMapping(value="reindex", method= RequestMethod.POST)
+    public ResponseEntity<Map<String, Object>> startReindex(HttpServletRequest request,
+                                                            @RequestParam(required = false) Integer shards) {
+
+        if (!AdminRequests.isTaskOrAdmin(request))
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.FORBIDDEN);
+
+        // The shard tasks are handled below this url
+        String jobsUrl = request.getRequestURI();
+
+        final DReindexJob job = venueService.startReindex(jobsUrl, shards);
+
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("jobId", job.getId());
+        response.put("url", String.format("%s/%d", jobsUrl, job.getId()));
+
+        return new ResponseEntity<Map<String, Object>>(response, HttpStatus.OK);
+    }
+
+    /**
+     * Get the progress of a reindex job.
+     * @param jobId the id of the reindex job
+     * @return the job status, number of shards done, venues indexed and the throughput
+     */
+    @RestReturn(value=JReindexJob.class, entity=JReindexJob.class, code={
+            @RestCode(code=200, message="OK", description="Reindex job found"),
+            @RestCode(code=404, message="NOK", description="Reindex job not found")
+    })
+    @RequestMapping(value="reindex/{jobId}", method= RequestMethod.GET)
+    public ResponseEntity<JReindexJob> getReindexJob(HttpServletRequest request,
+                                                     @PathVariable Long jobId) {
+
+        final DReindexJob body = venueService.getReindexJob(jobId);
+
+        if (null == body)
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Reindex job with id:%s not found", jobId));
+
+        return new ResponseEntity<JReindexJob>(CONVERTER.convert(body), HttpStatus.OK);
+    }
+
+    /**
+     * Index the next chunks of a key range.
+     * Called by the task queue. The shard progress is checkpointed when the chunks are done,
+     * a task not starting at the shard's last checkpoint continues the shard from there instead.
+     * @param jobId the id of the reindex job
+     * @param shard the shard number
+     * @param start the first key of the range, empty for no lower bound
+     * @param end the first key after the range, empty for no upper bound
+     * @param cursor the cursor the chunk starts at, empty to start from the beginning of the range
+     * @return the job
+     */
+    @RestReturn(value=JReindexJob.class, entity=JReindexJob.class, code={
+            @RestCode(code=200, message="OK", description="Shard chunk processed"),
+            @RestCode(code=403, message="NOK", description="Not called by the task queue or an admin")
+    })
+    @RequestMapping(value="reindex/{jobId}/shard", method= RequestMethod.POST)
+    public ResponseEntity<JReindexJob> processReindexShard(
+            HttpServletRequest request,
+            @PathVariable Long jobId,
+            @RequestParam(required = true) long shard,
+            @RequestParam(required = false) String start,
+            @RequestParam(required = false) String end,
+            @RequestParam(required = false) String cursor) {
+
+        if (!AdminRequests.isTaskOrAdmin(request))
+            return new ResponseEntity<JReindexJob>(HttpStatus.FORBIDDEN);
+
+        Key startKey = null != start && !start.isEmpty() ? KeyFactory.stringToKey(start) : null;
+        Key endKey = null != end && !end.isEmpty() ? KeyFactory.stringToKey(end) : null;
+        final ReindexChunk chunk = venueService.processReindexShard(jobId, shard, startKey, endKey, cursor);
+
+        DReindexJob body;
+        if (null != chunk) {
+            // The next task is added once the checkpoint is committed
+            body = venueService.updateReindexShard(jobId, chunk);
+            venueService.continueReindexShard(body, shard, startKey, endKey);
+        } else
+            body = venueService.getReindexJob(jobId);
+
+        // A backfilled index version is searched from now on, repeated calls switch to the same version
+        if (DReindexJob.STATUS_DONE.equals(body.getStatus()) && null != body.getIndexVersion()) {
+            venueService.updateIndexReadVersion(body);
+            venueService.refreshIndexState(true);
+        }
+
+        return new ResponseEntity<JReindexJob>(CONVERTER.convert(body), HttpStatus.OK);
+    }
+
+    /**
+     * Get the search index versions.
+     * @return the version searched and the versions written to
+     */
+    @RestReturn(value=Map.class, entity=Map.class, code={
+            @RestCode(code=200, message="OK", description="Index versions found")
+    })
+    @RequestMapping(value="index/version", method= RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> getIndexVersions(HttpServletRequest request) {
+
+        return convertIndexState(venueService.getIndexState());
+    }
+
+    /**
+     * Migrate to a new search index version without downtime.
+     * Venues are written to both the current and the new version while a reindex job backfills the new version.
+     * Searches switch to the new version when the job is done, the old version is written until retired.
+     * @param shards Optional. The number of key ranges indexed in parallel
+     * @return the new version, the id of the reindex job and the url where the job progress can be read
+     */
+    @RestReturn(value=Map.class, entity=Map.class, code={
+            @RestCode(code=200, message="OK", description="Index migration started"),
+            @RestCode(code=400, message="NOK", description="Index migration already in progress"),
+            @RestCode(code=403, message="NOK", description="Not called by the task queue or an admin")
+    })
+    @RequestMapping(value="index/version", method= RequestMethod.POST)
+    public ResponseEntity<Map<String, Object>> startIndexVersion(HttpServletRequest request,
+                                                                 @RequestParam(required = false) Integer shards) {
+
+        if (!AdminRequests.isTaskOrAdmin(request))
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.FORBIDDEN);
+
+        // The backfill is a reindex job, its tasks are handled below the reindex url
+        String jobsUrl = request.getRequestURI().replaceFirst("/index/version$", "/reindex");
+
+        // Start dual writes once the new version is committed
+        final Long version = venueService.addIndexVersion();
+        venueService.refreshIndexState(false);
+        final DReindexJob job = venueService.startIndexVersion(jobsUrl, shards, version);
+
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("version", job.getIndexVersion());
+        response.put("jobId", job.getId());
+        response.put("url", String.format("%s/%d", jobsUrl, job.getId()));
+
+        return new ResponseEntity<Map<String, Object>>(response, HttpStatus.OK);
+    }
+
+    /**
+     * Stop writing to an old search index version.
+     * @param version the version to retire
+     * @return the remaining index versions
+     */
+    @RestReturn(value=Map.class, entity=Map.class, code={
+            @RestCode(code=200, message="OK", description="Index version retired"),
+            @RestCode(code=400, message="NOK", description="Index version is searched"),
+            @RestCode(code=404, message="NOK", description="Index version not found"),
+            @RestCode(code=403, message="NOK", description="Not called by the task queue or an admin")
+    })
+    @RequestMapping(value="index/version/{version}", method= RequestMethod.DELETE)
+    public ResponseEntity<Map<String, Object>> retireIndexVersion(HttpServletRequest request,
+                                                                  @PathVariable Long version) {
+
+        if (!AdminRequests.isTaskOrAdmin(request))
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.FORBIDDEN);
+
+        final DIndexState body = venueService.deleteIndexVersion(version);
+        venueService.refreshIndexState(false);
+
+        return new ResponseEntity<Map<String, Object>>(convertIndexState(body), HttpStatus.OK);
+    }
+
+    /**
+     * Check the search index against the datastore and repair the drift.
+     * Index documents without a venue are removed, venues without a document or with an outdated one are re-indexed.
+     * Documents written before the parent field was indexed are counted as unknown and kept if no root venue has their id.
+     * @param repair Optional. true to repair the drift, default false to only count it
+     * @return the id of the check job and the url where the drift counts can be read
+     */
+    @RestReturn(value=Map.class, entity=Map.class, code={
+            @RestCode(code=200, message="OK", description="Index check started"),
+            @RestCode(code=403, message="NOK", description="Not called by the task queue or an admin")
+    })
+    @RequestMapping(value="index/check", method= RequestMethod.POST)
+    public ResponseEntity<Map<String, Object>> startIndexCheck(HttpServletRequest request,
+                                                               @RequestParam(defaultValue = "false") boolean repair) {
+
+        if (!AdminRequests.isTaskOrAdmin(request))
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.FORBIDDEN);
+
+        // The check tasks are handled below this url
+        String jobsUrl = request.getRequestURI();
+
+        final DIndexCheckJob job = venueService.startIndexCheck(jobsUrl, repair);
+
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("jobId", job.getId());
+        response.put("url", String.format("%s/%d", jobsUrl, job.getId()));
+
+        return new ResponseEntity<Map<String, Object>>(response, HttpStatus.OK);
+    }
+
+    /**
+     * Get the progress of an index check job.
+     * @param jobId the id of the index check job
+     * @return the job status, number of documents and venues checked and the orphaned, unknown, missing and stale counts
+     */
+    @RestReturn(value=JIndexCheckJob.class, entity=JIndexCheckJob.class, code={
+            @RestCode(code=200, message="OK", description="Index check job found"),
+            @RestCode(code=404, message="NOK", description="Index check job not found")
+    })
+    @RequestMapping(value="index/check/{jobId}", method= RequestMethod.GET)
+    public ResponseEntity<JIndexCheckJob> getIndexCheckJob(HttpServletRequest request,
+                                                           @PathVariable Long jobId) {
+
+        final DIndexCheckJob body = venueService.getIndexCheckJob(jobId);
+
+        if (null == body)
+            throw new NotFoundException(ERR_NOT_FOUND, String.format("Index check job with id:%s not found", jobId));
+
+        return new ResponseEntity<JIndexCheckJob>(CONVERTER.convert(body), HttpStatus.OK);
+    }
+
+    /**
+     * Check the next chunks of index documents or venues.
+     * Called by the task queue, a failing chunk is retried from the last checkpoint of the job.
+     * @param jobId the id of the index check job
+     * @param checkpoint the number of checkpoints the job had when the task was added
+     * @return the job progress
+     */
+    @RestReturn(value=JIndexCheckJob.class, entity=JIndexCheckJob.class, code={
+            @RestCode(code=200, message="OK", description="Chunk processed"),
+            @RestCode(code=403, message="NOK", description="Not called by the task queue or an admin")
+    })
+    @RequestMapping(value="index/check/{jobId}/chunk", method= RequestMethod.POST)
+    public ResponseEntity<JIndexCheckJob> processIndexCheckChunk(
+            HttpServletRequest request,
+            @PathVariable Long jobId,
+            @RequestParam(defaultValue = "0") long checkpoint) {
+
+        if (!AdminRequests.isTaskOrAdmin(request))
+            return new ResponseEntity<JIndexCheckJob>(HttpStatus.FORBIDDEN);
+
+        final DIndexCheckJob body = venueService.processIndexCheck(jobId, checkpoint);
+
+        return new ResponseEntity<JIndexCheckJob>(CONVERTER.convert(body), HttpStatus.OK);
+    }
+
+    // Parse the selected venue fields, null if all fields are selected
+    private Set<String> parseFields(String[] fields) {
+        if (null == fields || 0 == fields.length)
+            return null;
+
+        Set<String> selectedFields = new HashSet<String>();
+        selectedFields.add("id");
+        for (String field : fields) {
+            if (!Converter.VENUE_FIELDS.contains(field.trim()))
+                throw new BadRequestException(ERR_BAD_REQUEST, String.format("Unknown venue field:%s", field));
+            selectedFields.add(field.trim());
+        }
+        return selectedFields;
+    }
+
+    // Marks a venue not found in a lookup by ids
+    private static JBulkItemResult notFound(int index, String id) {
+        JBulkItemResult result = new JBulkItemResult();
+        result.setId(id);
+        result.setIndex(index);
+        result.setStatus(HttpStatus.NOT_FOUND.value());
+        result.setMessage(String.format("Place with id:%s not found", id));
+        return result;
+    }
+
+    // A search selecting only indexed fields is answered from the search index
+    private static boolean isSummary(Set<String> selectedFields) {
+        return null != selectedFields && Converter.SUMMARY_FIELDS.containsAll(selectedFields);
+    }
+
+    private static Map<String, Object> convertIndexState(DIndexState state) {
+        Map<String, Object> response = new HashMap<String, Object>();
+        response.put("readVersion", state.getReadVersion());
+        response.put("writeVersions", state.getWriteVersions());
+        return response;
+    }
 
 
     // Setters
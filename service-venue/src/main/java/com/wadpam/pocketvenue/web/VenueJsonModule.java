@@ -0,0 +1,19 @@
+package com.wadpam.pocketvenue.web;
+
+import com.wadpam.pocketvenue.domain.DPlace;
+import org.codehaus.jackson.Version;
+import org.codehaus.jackson.map.module.SimpleModule;
+
+/**
+ * Jackson module with the streaming serializers of the venue controllers.
+ * Register it on the object mapper used by the json message converter.
+ * @author mattiaslevin
+ */
+public class VenueJsonModule extends SimpleModule {
+
+    public VenueJsonModule() {
+        super("VenueJsonModule", new Version(1, 0, 0, null));
+        addSerializer(DPlace.class, new DPlaceSerializer());
+        addSerializer(SparseVenue.class, new SparseVenueSerializer());
+    }
+}
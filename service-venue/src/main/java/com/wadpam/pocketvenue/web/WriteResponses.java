@@ -0,0 +1,71 @@
+package com.wadpam.pocketvenue.web;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.URI;
+
+/**
+ * Responses to create and update requests.
+ * By default the client is redirected to the written entity. A client asking for the representation, with a
+ * "Prefer: return=representation" header or a return=representation parameter, gets the entity in the
+ * response body instead and saves the second request.
+ * @author mattiaslevin
+ */
+public class WriteResponses {
+
+    static final String PREFER_HEADER = "Prefer";
+    static final String RETURN_PARAMETER = "return";
+    static final String RETURN_REPRESENTATION = "return=representation";
+
+
+    /**
+     * Response to a create request.
+     * @param request the create request
+     * @param location the url of the created entity
+     * @param body the created entity
+     * @return 201 Created with the entity if the representation is preferred, otherwise 302 Found
+     */
+    public static <T> ResponseEntity<T> created(HttpServletRequest request, URI location, T body) {
+        return respond(request, location, body, HttpStatus.CREATED);
+    }
+
+    /**
+     * Response to an update request.
+     * @param request the update request
+     * @param location the url of the updated entity
+     * @param body the updated entity
+     * @return 200 OK with the entity if the representation is preferred, otherwise 302 Found
+     */
+    public static <T> ResponseEntity<T> updated(HttpServletRequest request, URI location, T body) {
+        return respond(request, location, body, HttpStatus.OK);
+    }
+
+    // True if the client asked for the entity in the response
+    public static boolean isRepresentationPreferred(HttpServletRequest request) {
+        String prefer = request.getHeader(PREFER_HEADER);
+        if (null != prefer) {
+            for (String preference : prefer.split(",")) {
+                if (RETURN_REPRESENTATION.equalsIgnoreCase(preference.trim()))
+                    return true;
+            }
+        }
+        return RETURN_REPRESENTATION.equalsIgnoreCase(RETURN_PARAMETER + "=" + request.getParameter(RETURN_PARAMETER));
+    }
+
+    private static <T> ResponseEntity<T> respond(HttpServletRequest request, URI location, T body, HttpStatus status) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setLocation(location);
+        // The response depends on the preference
+        headers.set("Vary", PREFER_HEADER);
+
+        if (isRepresentationPreferred(request)) {
+            headers.set("Preference-Applied", RETURN_REPRESENTATION);
+            return new ResponseEntity<T>(body, headers, status);
+        }
+
+        return new ResponseEntity<T>(headers, HttpStatus.FOUND);
+    }
+}
@@ -0,0 +1,50 @@
+package com.wadpam.pocketvenue;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal environment for creating keys and key strings in unit tests, no services are called.
+ * @author mattiaslevin
+ */
+public class TestEnvironment implements ApiProxy.Environment {
+
+    public String getAppId() {
+        return "test";
+    }
+
+    public String getVersionId() {
+        return "1.0";
+    }
+
+    public String getEmail() {
+        return null;
+    }
+
+    public boolean isLoggedIn() {
+        return false;
+    }
+
+    public boolean isAdmin() {
+        return false;
+    }
+
+    public String getAuthDomain() {
+        return null;
+    }
+
+    @SuppressWarnings("deprecation")
+    public String getRequestNamespace() {
+        return "";
+    }
+
+    public Map<String, Object> getAttributes() {
+        return new HashMap<String, Object>();
+    }
+
+    public long getRemainingMillis() {
+        return Long.MAX_VALUE;
+    }
+}
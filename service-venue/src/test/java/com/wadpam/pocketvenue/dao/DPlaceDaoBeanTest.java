@@ -0,0 +1,127 @@
+package com.wadpam.pocketvenue.dao;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.apphosting.api.ApiProxy;
+import com.wadpam.pocketvenue.TestEnvironment;
+import com.wadpam.pocketvenue.domain.DPlace;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Index queue payloads, index fingerprints and search documents of places.
+ * @author mattiaslevin
+ */
+public class DPlaceDaoBeanTest {
+
+    @Before
+    public void setUp() {
+        ApiProxy.setEnvironmentForCurrentThread(new TestEnvironment());
+    }
+
+    @After
+    public void tearDown() {
+        ApiProxy.clearEnvironmentForCurrentThread();
+    }
+
+    @Test
+    public void indexQueuePayload() {
+        // Places with the same id under different parents are different places
+        Key parent = KeyFactory.createKey("DPlace", 1L);
+        List<Key> keys = Arrays.asList(KeyFactory.createKey(parent, "DPlace", 10L),
+                KeyFactory.createKey("DPlace", 10L), KeyFactory.createKey("DPlace", 11L));
+
+        String payload = DPlaceDaoBean.indexQueuePayload(keys);
+        assertEquals("Full keys", keys, DPlaceDaoBean.parseIndexQueuePayload(payload.getBytes()));
+    }
+
+    @Test
+    public void legacyIndexQueuePayload() {
+        // Queued before keys were queued, ids of places without parent
+        assertEquals("Root keys", Arrays.asList(KeyFactory.createKey("DPlace", 12L), KeyFactory.createKey("DPlace", 13L)),
+                DPlaceDaoBean.parseIndexQueuePayload("12,13".getBytes()));
+    }
+
+    @Test
+    public void fingerprintOfIndexedFields() {
+        DPlace dPlace = place();
+        assertTrue("Never indexed", DPlaceDaoBean.updateIndexFingerprint(dPlace));
+        String fingerprint = dPlace.getIndexFingerprint();
+        assertFalse("Unchanged", DPlaceDaoBean.updateIndexFingerprint(dPlace));
+
+        // Fields not in the search document do not change the fingerprint
+        dPlace.setDescription("Changed description");
+        dPlace.setCityArea("Changed area");
+        assertFalse("Not indexed fields changed", DPlaceDaoBean.updateIndexFingerprint(dPlace));
+        assertEquals(fingerprint, dPlace.getIndexFingerprint());
+    }
+
+    @Test
+    public void fingerprintChangesWithIndexedFields() {
+        String fingerprint = DPlaceDaoBean.indexFingerprint(place());
+
+        DPlace dPlace = place();
+        dPlace.setName("Other name");
+        assertFalse("Name", fingerprint.equals(DPlaceDaoBean.indexFingerprint(dPlace)));
+        dPlace = place();
+        dPlace.setCity("Other city");
+        assertFalse("City", fingerprint.equals(DPlaceDaoBean.indexFingerprint(dPlace)));
+        dPlace = place();
+        dPlace.setTags(Arrays.asList("1", "3"));
+        assertFalse("Tags", fingerprint.equals(DPlaceDaoBean.indexFingerprint(dPlace)));
+        dPlace = place();
+        dPlace.setLocation(new GeoPt(59.4f, 18.0f));
+        assertFalse("Location", fingerprint.equals(DPlaceDaoBean.indexFingerprint(dPlace)));
+        dPlace = place();
+        dPlace.setParent(KeyFactory.createKey("DPlace", 2L));
+        assertFalse("Parent", fingerprint.equals(DPlaceDaoBean.indexFingerprint(dPlace)));
+    }
+
+    @Test
+    public void summaryFromDocument() {
+        DPlace summary = DPlaceDaoBean.buildSummary(DPlaceDaoBean.buildDocument(place()));
+
+        // The summary fields are served from the document, the rest is left out
+        assertEquals("Id", Long.valueOf(10L), summary.getId());
+        assertEquals("Parent", KeyFactory.createKey("DPlace", 1L), summary.getParent());
+        assertEquals("Name", "Venue1", summary.getName());
+        assertEquals("City", "Stockholm", summary.getCity());
+        assertEquals("Tags", Arrays.asList("1", "2"), summary.getTags());
+        assertEquals("Latitude", 59.3f, summary.getLocation().getLatitude(), 0.0001f);
+        assertEquals("Longitude", 18.0f, summary.getLocation().getLongitude(), 0.0001f);
+        assertNull("Not in summary", summary.getDescription());
+    }
+
+    @Test
+    public void summaryWithoutOptionalFields() {
+        DPlace dPlace = new DPlace();
+        dPlace.setId(11L);
+        dPlace.setName("Venue2");
+
+        DPlace summary = DPlaceDaoBean.buildSummary(DPlaceDaoBean.buildDocument(dPlace));
+        assertEquals("Name", "Venue2", summary.getName());
+        assertNull("No parent", summary.getParent());
+        assertNull("No tags", summary.getTags());
+        assertNull("No location", summary.getLocation());
+    }
+
+
+    private static DPlace place() {
+        DPlace dPlace = new DPlace();
+        dPlace.setId(10L);
+        dPlace.setParent(KeyFactory.createKey("DPlace", 1L));
+        dPlace.setName("Venue1");
+        dPlace.setDescription("Description");
+        dPlace.setCity("Stockholm");
+        dPlace.setTags(Arrays.asList("1", "2"));
+        dPlace.setLocation(new GeoPt(59.3f, 18.0f));
+        return dPlace;
+    }
+}
@@ -0,0 +1,180 @@
+package com.wadpam.pocketvenue.dao;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.apphosting.api.ApiProxy;
+import com.wadpam.pocketvenue.TestEnvironment;
+import net.sf.mardao.core.CursorPage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Nearby queries, cursors and cell selection of the grid spatial index.
+ * @author mattiaslevin
+ */
+public class GridSpatialIndexTest {
+
+    private static final double CELL_SIZE = 0.05;
+
+    private GridSpatialIndex index;
+
+    @Before
+    public void setUp() {
+        // Key strings in cursors hold the app id of the current environment
+        ApiProxy.setEnvironmentForCurrentThread(new TestEnvironment());
+        index = new GridSpatialIndex(CELL_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        ApiProxy.clearEnvironmentForCurrentThread();
+    }
+
+    @Test
+    public void pagesInDistanceOrder() {
+        // Five places north of the center, around 111m apart
+        for (int i = 5; i >= 1; i--)
+            index.put(key(i), 0.001f * i, 0.0f, null);
+        index.put(key(9), 1.0f, 0.0f, null);
+
+        List<Key> keys = new ArrayList<Key>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            CursorPage<Key, Long> page = index.queryNearby(cursor, 2, 0.0f, 0.0f, 1000, null);
+            keys.addAll(page.getItems());
+            cursor = page.getCursorKey();
+            pages++;
+        } while (null != cursor);
+
+        assertEquals("Pages", 3, pages);
+        assertEquals("Closest first, far place left out", Arrays.asList(key(1), key(2), key(3), key(4), key(5)), keys);
+    }
+
+    @Test
+    public void cursorFormat() {
+        for (int i = 1; i <= 3; i++)
+            index.put(key(i), 0.001f * i, 0.0f, null);
+
+        CursorPage<Key, Long> page = index.queryNearby(null, 2, 0.0f, 0.0f, 1000, null);
+        String cursor = page.getCursorKey();
+        assertTrue("Index cursor", index.isCursor(cursor));
+
+        // grid:<distance of the last item>:<key string of the last item>
+        String[] parts = cursor.split(":");
+        assertEquals("Cursor parts", 3, parts.length);
+        assertEquals("Prefix", "grid", parts[0]);
+        assertEquals("Distance", GridSpatialIndex.distance(0.0, 0.0, 0.002f, 0.0), Double.parseDouble(parts[1]), 0.000001);
+        assertEquals("Last key", key(2), KeyFactory.stringToKey(parts[2]));
+
+        // Search api cursors are not index cursors
+        assertFalse("Search api cursor", index.isCursor("false:CqgBCnAKBmI"));
+        assertFalse("No cursor", index.isCursor(null));
+    }
+
+    @Test
+    public void malformedCursor() {
+        for (String cursor : new String[] {"grid:", "grid:12.5", "grid:abc:" + KeyFactory.keyToString(key(1)),
+                "grid:12.5:notakey", "search:12.5"}) {
+            try {
+                index.queryNearby(cursor, 10, 0.0f, 0.0f, 1000, null);
+                fail("Cursor accepted:" + cursor);
+            } catch (IllegalArgumentException expected) {
+                // Rejected as a bad request by the service
+            }
+        }
+    }
+
+    @Test
+    public void antiMeridianWrap() {
+        // Around 1.1km on each side of the anti-meridian at the equator
+        index.put(key(1), 0.0f, 179.99f, null);
+        index.put(key(2), 0.0f, -179.99f, null);
+        index.put(key(3), 0.0f, -179.5f, null);
+
+        CursorPage<Key, Long> west = index.queryNearby(null, 10, 0.0f, 179.995f, 5000, null);
+        assertEquals("From the west", Arrays.asList(key(1), key(2)), west.getItems());
+
+        CursorPage<Key, Long> east = index.queryNearby(null, 10, 0.0f, -179.995f, 5000, null);
+        assertEquals("From the east", Arrays.asList(key(2), key(1)), east.getItems());
+    }
+
+    @Test
+    public void scanAboveMaxCells() {
+        // A 500km radius covers around 180 x 180 cells of 0.05 degrees, more than the 4096 cell limit
+        Map<Key, float[]> places = new HashMap<Key, float[]>();
+        places.put(key(1), new float[] {59.33f, 18.06f});
+        places.put(key(2), new float[] {59.91f, 10.75f});
+        places.put(key(3), new float[] {55.60f, 13.00f});
+        places.put(key(4), new float[] {60.17f, 24.94f});
+        for (Map.Entry<Key, float[]> place : places.entrySet())
+            index.put(place.getKey(), place.getValue()[0], place.getValue()[1], null);
+
+        CursorPage<Key, Long> page = index.queryNearby(null, 10, 59.33f, 18.06f, 500000, null);
+        assertEquals("Within 500km", expectedWithin(places, 59.33f, 18.06f, 500000), page.getItems());
+        assertEquals("Stockholm, Helsinki, Oslo", Arrays.asList(key(1), key(4), key(2)), page.getItems());
+
+        // Near the pole the box spans all columns, scanned as well
+        index.put(key(5), 89.99f, 0.0f, null);
+        index.put(key(6), 89.99f, 180.0f, null);
+        page = index.queryNearby(null, 10, 89.99f, 90.0f, 5000, null);
+        assertEquals("Across the pole", 2, page.getItems().size());
+    }
+
+    @Test
+    public void tagsAndRemove() {
+        index.put(key(1), 0.001f, 0.0f, Arrays.asList("1", "2"));
+        index.put(key(2), 0.002f, 0.0f, Arrays.asList("1"));
+        index.put(key(3), 0.003f, 0.0f, null);
+
+        assertEquals("All tags", Arrays.asList(key(1)),
+                index.queryNearby(null, 10, 0.0f, 0.0f, 1000, Arrays.asList("1", "2")).getItems());
+        assertEquals("One tag", Arrays.asList(key(1), key(2)),
+                index.queryNearby(null, 10, 0.0f, 0.0f, 1000, Collections.singleton("1")).getItems());
+
+        // A moved place leaves its old cell
+        index.put(key(1), 10.0f, 10.0f, null);
+        index.remove(key(2));
+        assertEquals("Size", 2, index.size());
+        assertEquals("After move and remove", Arrays.asList(key(3)),
+                index.queryNearby(null, 10, 0.0f, 0.0f, 1000, null).getItems());
+    }
+
+
+    // Keys with a parent, the full key identifies a place
+    private static Key key(long id) {
+        Key parent = KeyFactory.createKey("DPlace", 1000L + id % 2);
+        return KeyFactory.createKey(parent, "DPlace", id);
+    }
+
+    // The keys within a radius by brute force, closest first
+    private static List<Key> expectedWithin(Map<Key, float[]> places, final float latitude, final float longitude,
+                                            int radius) {
+        final Map<Key, Double> distances = new HashMap<Key, Double>();
+        for (Map.Entry<Key, float[]> place : places.entrySet()) {
+            double distance = GridSpatialIndex.distance(latitude, longitude, place.getValue()[0], place.getValue()[1]);
+            if (distance < radius)
+                distances.put(place.getKey(), distance);
+        }
+
+        List<Key> keys = new ArrayList<Key>(distances.keySet());
+        Collections.sort(keys, new Comparator<Key>() {
+            @Override
+            public int compare(Key o1, Key o2) {
+                return Double.compare(distances.get(o1), distances.get(o2));
+            }
+        });
+        return keys;
+    }
+}
@@ -0,0 +1,172 @@
+package com.wadpam.pocketvenue.service;
+
+import com.google.appengine.api.datastore.Key;
+import com.wadpam.pocketvenue.domain.DImportJob;
+import com.wadpam.pocketvenue.domain.DPlace;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Resume a CSV import from a checkpoint, as done when a chunk task is retried.
+ * The batch loop of the service runs against a datastore that is a map from place id to name,
+ * a put with an existing id overwrites.
+ * @author mattiaslevin
+ */
+public class CsvImportResumeTest {
+
+    private static final int BATCH_SIZE = 3;
+    private static final int ROWS = 10;
+    // A row without name, not stored
+    private static final int BAD_ROW = 4;
+
+    private TestVenueService venueService;
+    private byte[] csv;
+
+    @Before
+    public void setUp() {
+        venueService = new TestVenueService();
+        venueService.setCsvBatchSize(BATCH_SIZE);
+        csv = createCsv();
+    }
+
+    @Test
+    public void retryAfterWriteBeforeCheckpoint() throws IOException {
+
+        // The task fails saving the checkpoint of the second batch, after the batch was written
+        DImportJob job = venueService.startJob();
+        venueService.failAtSave = 3;
+        try {
+            importBatches(job, Long.MAX_VALUE);
+            fail("Checkpoint saved");
+        } catch (IllegalStateException expected) {
+            // The task is retried
+        }
+        assertEquals("Places stored before the failure", 2 * BATCH_SIZE - 1, venueService.datastore.size());
+
+        // The retry reads from the first checkpoint and finishes the file
+        job = venueService.savedJob();
+        assertEquals("Checkpoint of the first batch", 1L * BATCH_SIZE, (long) job.getParsed());
+        assertTrue("End of file", importBatches(job, Long.MAX_VALUE));
+        assertEquals("Every valid row stored once", ROWS - 1, venueService.datastore.size());
+        assertEquals("Every row parsed once", ROWS, (long) job.getParsed());
+        assertEquals("Every valid row counted once", ROWS - 1, (long) job.getPersisted());
+        assertEquals("Bad row", 1L, (long) job.getFailed());
+        assertEquals("Done", DImportJob.STATUS_DONE, venueService.savedJob().getStatus());
+
+        // Same places as an import without failure, the ids reserved after the retry differ
+        Map<Long, String> retried = venueService.datastore;
+        venueService = new TestVenueService();
+        venueService.setCsvBatchSize(BATCH_SIZE);
+        importBatches(venueService.startJob(), Long.MAX_VALUE);
+        assertEquals(new TreeSet<String>(venueService.datastore.values()), new TreeSet<String>(retried.values()));
+    }
+
+    @Test
+    public void resumeAtCheckpoint() throws IOException {
+
+        // The deadline has passed, the task continues in a new task after one batch
+        DImportJob job = venueService.startJob();
+        assertEquals("Continued", false, importBatches(job, 0L));
+        long checkpointOffset = venueService.savedJob().getOffset();
+        assertTrue("Checkpoint within the file", checkpointOffset > 0 && checkpointOffset < csv.length);
+        assertEquals("Running", DImportJob.STATUS_RUNNING, venueService.savedJob().getStatus());
+
+        assertTrue("End of file", importBatches(venueService.savedJob(), Long.MAX_VALUE));
+        assertEquals(ROWS - 1, venueService.datastore.size());
+        assertEquals(ROWS, (long) venueService.savedJob().getParsed());
+    }
+
+
+    // Run the batch loop from the checkpoint of the job, as a chunk task does
+    private boolean importBatches(DImportJob job, long deadline) throws IOException {
+        int offset = job.getOffset().intValue();
+        OffsetCsvReader csvReader = new OffsetCsvReader(
+                new ByteArrayInputStream(csv, offset, csv.length - offset), ';', job.getOffset());
+        return venueService.importCsvBatches(job, csvReader, new ParallelCsvParser(null, 1), null, deadline);
+    }
+
+    private static byte[] createCsv() {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < ROWS; i++) {
+            csv.append(i == BAD_ROW ? "" : "Venue " + i)
+                    .append(";;;;;;;Stockholm;;;;59.3;18.0;;;;;;;\n");
+        }
+        return csv.toString().getBytes();
+    }
+
+
+    // The datastore writes of the import, ids are allocated from a counter
+    private static class TestVenueService extends VenueService {
+
+        private final Map<Long, String> datastore = new HashMap<Long, String>();
+        private long nextId = 1000L;
+        // The job as last saved, a copy like the stored entity
+        private DImportJob saved;
+        private int saves;
+        // The save failing, 0 for none
+        private int failAtSave;
+
+        DImportJob startJob() {
+            DImportJob job = new DImportJob();
+            job.setStatus(DImportJob.STATUS_RUNNING);
+            job.setOffset(0L);
+            job.setParsed(0L);
+            job.setPersisted(0L);
+            job.setFailed(0L);
+            job.setErrors(new ArrayList<String>());
+            reserveBatchIds(job, null, BATCH_SIZE);
+            saveImportJob(job);
+            return job;
+        }
+
+        DImportJob savedJob() {
+            return copy(saved);
+        }
+
+        @Override
+        void reserveBatchIds(DImportJob job, Key parentKey, int count) {
+            job.setBatchFirstId(nextId);
+            job.setBatchIdCount((long) count);
+            nextId += count;
+        }
+
+        @Override
+        void persistBatch(Collection<DPlace> batch, CsvImportResult result) {
+            for (DPlace dPlace : batch)
+                datastore.put(dPlace.getId(), dPlace.getName());
+            result.addPersisted(batch.size());
+        }
+
+        @Override
+        void saveImportJob(DImportJob job) {
+            if (++saves == failAtSave)
+                throw new IllegalStateException("Save failed");
+            saved = copy(job);
+        }
+
+        private static DImportJob copy(DImportJob job) {
+            DImportJob copy = new DImportJob();
+            copy.setStatus(job.getStatus());
+            copy.setOffset(job.getOffset());
+            copy.setBatchFirstId(job.getBatchFirstId());
+            copy.setBatchIdCount(job.getBatchIdCount());
+            copy.setParsed(job.getParsed());
+            copy.setPersisted(job.getPersisted());
+            copy.setFailed(job.getFailed());
+            copy.setErrors(new ArrayList<String>(job.getErrors()));
+            return copy;
+        }
+    }
+}
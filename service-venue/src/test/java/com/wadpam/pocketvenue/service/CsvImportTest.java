@@ -0,0 +1,139 @@
+package com.wadpam.pocketvenue.service;
+
+import com.google.appengine.api.datastore.Key;
+import com.wadpam.pocketvenue.domain.DImportJob;
+import com.wadpam.pocketvenue.domain.DPlace;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Convert CSV rows to places and store them in batches, in a single pass over the file.
+ * @author mattiaslevin
+ */
+public class CsvImportTest {
+
+    private static final int BATCH_SIZE = 4;
+
+    private BatchRecordingVenueService venueService;
+
+    @Before
+    public void setUp() {
+        venueService = new BatchRecordingVenueService();
+        venueService.setCsvBatchSize(BATCH_SIZE);
+    }
+
+    @Test
+    public void convertAllColumns() {
+        String[] columns = ("Venue1;Short;Long;8-17#8-17#8-17#8-17#8-17#closed#closed;1#2;Street 1;Area;Stockholm;" +
+                "County;11122;Sweden;59.3;18.0;+46123;info@example.com;http://example.com;" +
+                "http://facebook.com/venue1;http://twitter.com/venue1;http://example.com/logo.png;" +
+                "http://example.com/1.png#http://example.com/2.png").split(";", -1);
+
+        DPlace dPlace = VenueService.createDPlaceFromCSV(columns, null);
+        assertEquals("Name", "Venue1", dPlace.getName());
+        assertEquals("Opening hours", 7, dPlace.getOpeningHours().size());
+        assertEquals("Tags", Arrays.asList("1", "2"), new ArrayList<String>(dPlace.getTags()));
+        assertEquals("City", "Stockholm", dPlace.getCity());
+        assertEquals("Latitude", 59.3f, dPlace.getLocation().getLatitude(), 0.0001f);
+        assertEquals("Longitude", 18.0f, dPlace.getLocation().getLongitude(), 0.0001f);
+        assertEquals("Email", "info@example.com", dPlace.getEmail().getEmail());
+        assertEquals("Image urls", 2, dPlace.getImageUrls().size());
+    }
+
+    @Test
+    public void rejectInvalidRows() {
+        String[] noName = row("").split(";", -1);
+        String[] tooShort = "Venue1;Short".split(";", -1);
+        String[] badLatitude = row("Venue1").replace("59.3", "north").split(";", -1);
+
+        for (String[] columns : Arrays.asList(noName, tooShort, badLatitude)) {
+            try {
+                VenueService.createDPlaceFromCSV(columns, null);
+                fail("Row accepted:" + Arrays.toString(columns));
+            } catch (IllegalArgumentException expected) {
+                // Reported in the import result
+            }
+        }
+    }
+
+    @Test
+    public void storeInBatches() throws IOException {
+        // Ten rows, the seventh without name
+        StringBuilder csv = new StringBuilder();
+        for (int i = 1; i <= 10; i++)
+            csv.append(row(7 == i ? "" : "Venue " + i)).append('\n');
+        byte[] data = csv.toString().getBytes("UTF-8");
+
+        DImportJob job = venueService.startJob();
+        OffsetCsvReader csvReader = new OffsetCsvReader(new ByteArrayInputStream(data), ';', 0L);
+        assertTrue("End of file", venueService.importCsvBatches(job, csvReader, new ParallelCsvParser(null, 1), null,
+                Long.MAX_VALUE));
+
+        // One put per batch, the failed row leaves a smaller batch
+        assertEquals("Batch sizes", Arrays.asList(4, 3, 2), venueService.batchSizes);
+        assertEquals("First stored", "Venue 1", venueService.names.get(0));
+        assertEquals("Stored in row order", "Venue 10", venueService.names.get(8));
+        assertEquals("Read in one pass", data.length, (long) job.getOffset());
+        assertEquals("Parsed", 10L, (long) job.getParsed());
+        assertEquals("Persisted", 9L, (long) job.getPersisted());
+        assertEquals("Failed", 1L, (long) job.getFailed());
+        assertTrue("Row number in error", job.getErrors().iterator().next().startsWith("Error in row:7 "));
+        assertEquals("Done", DImportJob.STATUS_DONE, job.getStatus());
+    }
+
+
+    private static String row(String name) {
+        return name + ";;;;;;;Stockholm;;;;59.3;18.0;;;;;;;";
+    }
+
+    // Records the batches written, ids are allocated from a counter
+    private static class BatchRecordingVenueService extends VenueService {
+
+        private final List<Integer> batchSizes = new ArrayList<Integer>();
+        private final List<String> names = new ArrayList<String>();
+        private long nextId = 1L;
+
+        DImportJob startJob() {
+            DImportJob job = new DImportJob();
+            job.setStatus(DImportJob.STATUS_RUNNING);
+            job.setOffset(0L);
+            job.setParsed(0L);
+            job.setPersisted(0L);
+            job.setFailed(0L);
+            job.setErrors(new ArrayList<String>());
+            reserveBatchIds(job, null, BATCH_SIZE);
+            return job;
+        }
+
+        @Override
+        void reserveBatchIds(DImportJob job, Key parentKey, int count) {
+            job.setBatchFirstId(nextId);
+            job.setBatchIdCount((long) count);
+            nextId += count;
+        }
+
+        @Override
+        void persistBatch(Collection<DPlace> batch, CsvImportResult result) {
+            if (batch.isEmpty())
+                return;
+            batchSizes.add(batch.size());
+            for (DPlace dPlace : batch)
+                names.add(dPlace.getName());
+            result.addPersisted(batch.size());
+        }
+
+        @Override
+        void saveImportJob(DImportJob job) {
+            // Checkpoints are covered by CsvImportResumeTest
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.wadpam.pocketvenue.service;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Benchmark CSV row conversion, sequential vs the parallel parser.
+ * Not part of the normal test run, run with mvn -Dtest=CsvParserBenchmark test
+ * @author mattiaslevin
+ */
+public class CsvParserBenchmark {
+    static final Logger LOG = LoggerFactory.getLogger(CsvParserBenchmark.class);
+
+    private static final int ROWS = 200000;
+    private static final int BLOCK_SIZE = 200;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    @Test
+    public void sequentialVsParallel() throws Exception {
+        List<String[]> rows = createRows(ROWS);
+
+        // Warm up the JIT
+        runSequential(rows);
+        runParallel(rows);
+
+        long start = System.nanoTime();
+        int sequentialCount = runSequential(rows);
+        double sequentialRate = ROWS / ((System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        int parallelCount = runParallel(rows);
+        double parallelRate = ROWS / ((System.nanoTime() - start) / 1e9);
+
+        assertEquals("Same number of places", sequentialCount, parallelCount);
+        LOG.info(String.format("Sequential: %.0f rows/s, parallel with %d threads: %.0f rows/s (x%.2f)",
+                sequentialRate, THREADS, parallelRate, parallelRate / sequentialRate));
+    }
+
+    // The current single threaded conversion
+    private int runSequential(List<String[]> rows) {
+        int count = 0;
+        for (String[] columns : rows) {
+            VenueService.createDPlaceFromCSV(columns, null);
+            count++;
+        }
+        return count;
+    }
+
+    // Convert block by block, as done by the import job
+    private int runParallel(List<String[]> rows) {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            ParallelCsvParser parser = new ParallelCsvParser(executor, THREADS);
+            int count = 0;
+            for (int from = 0; from < rows.size(); from += BLOCK_SIZE) {
+                List<String[]> block = rows.subList(from, Math.min(rows.size(), from + BLOCK_SIZE));
+                count += parser.parse(block, null, from + 1, new CsvImportResult()).size();
+            }
+            return count;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static List<String[]> createRows(int count) {
+        List<String[]> rows = new ArrayList<String[]>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(new String[] {
+                    "Venue " + i,
+                    "Short description " + i,
+                    "A longer description of venue " + i,
+                    "8-17#8-17#8-17#8-17#8-17#10-14#CLOSED",
+                    "tag1#tag2#tag" + (i % 50),
+                    "Street " + i,
+                    "City area",
+                    "City " + (i % 100),
+                    "County",
+                    "12345",
+                    "Country",
+                    Float.toString(11.5f + (i % 1000) * 0.0001f),
+                    Float.toString(104.9f + (i % 1000) * 0.0001f),
+                    "+855 12 345 678",
+                    "venue" + i + "@test.com",
+                    "http://www.venue" + i + ".com",
+                    "http://www.facebook.com/venue" + i,
+                    "http://www.twitter.com/venue" + i,
+                    "http://www.imageRepo.com/logo" + i,
+                    "http://www.imageRepo.com/image1#http://www.imageRepo.com/image2"
+            });
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,120 @@
+package com.wadpam.pocketvenue.service;
+
+import com.wadpam.open.exceptions.BadRequestException;
+import com.wadpam.open.exceptions.NotFoundException;
+import com.wadpam.pocketvenue.domain.DIndexState;
+import com.wadpam.pocketvenue.domain.DReindexJob;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Migrate to a new search index version, from dual writes to switching reads and retiring the old version.
+ * @author mattiaslevin
+ */
+public class IndexVersionTest {
+
+    private InMemoryIndexStateVenueService venueService;
+
+    @Before
+    public void setUp() {
+        venueService = new InMemoryIndexStateVenueService();
+    }
+
+    @Test
+    public void addVersion() {
+        assertEquals("Next version", Long.valueOf(2L), venueService.addIndexVersion());
+        assertEquals("Dual writes", Arrays.asList(1L, 2L), new ArrayList<Long>(venueService.state.getWriteVersions()));
+        assertEquals("Reads not switched", Long.valueOf(1L), venueService.state.getReadVersion());
+
+        try {
+            venueService.addIndexVersion();
+            fail("Second migration started");
+        } catch (BadRequestException expected) {
+            // One migration at a time
+        }
+    }
+
+    @Test
+    public void switchReadsWhenBackfilled() {
+        Long version = venueService.addIndexVersion();
+
+        // Not switched while shards are running
+        DReindexJob job = reindexJob(version, DReindexJob.STATUS_RUNNING, 0L);
+        assertEquals("Running", Long.valueOf(1L), venueService.updateIndexReadVersion(job).getReadVersion());
+        job = reindexJob(version, DReindexJob.STATUS_DONE, 0L);
+        assertEquals("Shard missing", Long.valueOf(1L), venueService.updateIndexReadVersion(job).getReadVersion());
+
+        job = reindexJob(version, DReindexJob.STATUS_DONE, 0L, 1L);
+        assertEquals("Switched", version, venueService.updateIndexReadVersion(job).getReadVersion());
+        assertEquals("Old version still written", Arrays.asList(1L, 2L),
+                new ArrayList<Long>(venueService.state.getWriteVersions()));
+    }
+
+    @Test
+    public void notSwitchedToUnwrittenVersion() {
+        DReindexJob job = reindexJob(3L, DReindexJob.STATUS_DONE, 0L, 1L);
+        assertEquals("Not written", Long.valueOf(1L), venueService.updateIndexReadVersion(job).getReadVersion());
+        assertEquals("Not saved", 0, venueService.saves);
+    }
+
+    @Test
+    public void retireVersion() {
+        Long version = venueService.addIndexVersion();
+
+        try {
+            venueService.deleteIndexVersion(1L);
+            fail("Searched version retired");
+        } catch (BadRequestException expected) {
+            // Reads must switch first
+        }
+        try {
+            venueService.deleteIndexVersion(5L);
+            fail("Unknown version retired");
+        } catch (NotFoundException expected) {
+            // Not written
+        }
+
+        venueService.updateIndexReadVersion(reindexJob(version, DReindexJob.STATUS_DONE, 0L, 1L));
+        DIndexState state = venueService.deleteIndexVersion(1L);
+        assertEquals("Only the new version", Arrays.asList(2L), new ArrayList<Long>(state.getWriteVersions()));
+        assertEquals("Searched", version, state.getReadVersion());
+    }
+
+
+    private static DReindexJob reindexJob(Long version, String status, Long... doneShards) {
+        DReindexJob job = new DReindexJob();
+        job.setIndexVersion(version);
+        job.setStatus(status);
+        job.setShards(2L);
+        job.setDoneShards(new ArrayList<Long>(Arrays.asList(doneShards)));
+        return job;
+    }
+
+    // The index state is kept in memory, saves are counted
+    private static class InMemoryIndexStateVenueService extends VenueService {
+
+        private final DIndexState state = new DIndexState();
+        private int saves;
+
+        InMemoryIndexStateVenueService() {
+            state.setId(DIndexState.STATE_ID);
+            state.setReadVersion(1L);
+            state.setWriteVersions(new ArrayList<Long>(Arrays.asList(1L)));
+        }
+
+        @Override
+        public DIndexState getIndexState() {
+            return state;
+        }
+
+        @Override
+        void saveIndexState(DIndexState state) {
+            saves++;
+        }
+    }
+}
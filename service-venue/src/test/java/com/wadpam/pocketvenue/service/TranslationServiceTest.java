@@ -0,0 +1,145 @@
+package com.wadpam.pocketvenue.service;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.apphosting.api.ApiProxy;
+import com.wadpam.pocketvenue.TestEnvironment;
+import com.wadpam.pocketvenue.dao.Di18nTranslationDaoBean;
+import com.wadpam.pocketvenue.domain.Di18nTranslation;
+import com.wadpam.server.exceptions.BadRequestException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Translation lookups for many parents, read with batch gets of translation keys,
+ * and the best translation of each parent from a list of locales.
+ * @author mattiaslevin
+ */
+public class TranslationServiceTest {
+
+    private InMemoryTranslationDao i18nDao;
+    private TranslationService translationService;
+
+    @Before
+    public void setUp() {
+        ApiProxy.setEnvironmentForCurrentThread(new TestEnvironment());
+        i18nDao = new InMemoryTranslationDao();
+        translationService = new TranslationService();
+        translationService.setI18nDao(i18nDao);
+    }
+
+    @After
+    public void tearDown() {
+        ApiProxy.clearEnvironmentForCurrentThread();
+    }
+
+    @Test
+    public void getTranslationsInOneBatch() {
+        Key first = tagKey(1);
+        Key second = tagKey(2);
+        Key untranslated = tagKey(3);
+        i18nDao.add(first, "sv", "Forsta");
+        i18nDao.add(first, "en", "First");
+        i18nDao.add(second, "sv", "Andra");
+
+        Map<Key, Di18nTranslation> translations =
+                translationService.getTranslations(Arrays.asList(first, second, untranslated), "sv");
+
+        assertEquals("One batch get", 1, i18nDao.batchGets.size());
+        assertEquals("One key per parent", 3, i18nDao.batchGets.get(0).size());
+        assertEquals("Mapped by parent", "Forsta", translations.get(first).getLocalizedString());
+        assertEquals("Mapped by parent", "Andra", translations.get(second).getLocalizedString());
+        assertFalse("No translation", translations.containsKey(untranslated));
+        assertEquals("Only the locale", 2, translations.size());
+    }
+
+    @Test
+    public void resolveLowestRankLocale() {
+        Key first = tagKey(1);
+        Key second = tagKey(2);
+        Key untranslated = tagKey(3);
+        i18nDao.add(first, "sv-SE", "Forsta SE");
+        i18nDao.add(first, "sv", "Forsta");
+        i18nDao.add(first, "en", "First");
+        i18nDao.add(second, "en", "Second");
+        i18nDao.add(untranslated, "de", "Dritte");
+
+        Map<Key, Di18nTranslation> translations = translationService.resolveTranslations(
+                Arrays.asList(first, second, untranslated), Arrays.asList("sv-SE", "sv", "en"));
+
+        assertEquals("One batch get", 1, i18nDao.batchGets.size());
+        assertEquals("One key per parent and locale", 9, i18nDao.batchGets.get(0).size());
+        assertEquals("First locale", "Forsta SE", translations.get(first).getLocalizedString());
+        assertEquals("Last locale", "Second", translations.get(second).getLocalizedString());
+        assertFalse("Not in any locale", translations.containsKey(untranslated));
+        assertNull("Not in any locale", translationService.resolveTranslation(untranslated, Arrays.asList("sv", "en")));
+    }
+
+    @Test
+    public void resolveTooManyLocales() {
+        translationService.setMaxResolveLocales(2);
+        try {
+            translationService.resolveTranslations(Arrays.asList(tagKey(1)), Arrays.asList("sv-SE", "sv", "en"));
+            fail("Locales resolved");
+        } catch (BadRequestException expected) {
+            // Every locale is a key per parent in the batch get
+        }
+        assertTrue("No batch get", i18nDao.batchGets.isEmpty());
+    }
+
+    @Test
+    public void localeFallbacks() {
+        assertEquals(Arrays.asList("sv-SE", "sv"), TranslationService.localeFallbacks("sv-SE"));
+        assertEquals(Arrays.asList("zh-Hant-TW", "zh-Hant", "zh"), TranslationService.localeFallbacks("zh-Hant-TW"));
+        assertEquals(Arrays.asList("en"), TranslationService.localeFallbacks("en"));
+    }
+
+    @Test
+    public void normalizeLocale() {
+        assertEquals("sv-SE", TranslationService.normalizeLocale("SV_se"));
+        assertEquals("zh-Hant-TW", TranslationService.normalizeLocale("zh_hant_tw"));
+        assertEquals("en", TranslationService.normalizeLocale(" EN "));
+        assertEquals("Not a locale", "", TranslationService.normalizeLocale("_"));
+    }
+
+
+    private static Key tagKey(long id) {
+        return KeyFactory.createKey("DTag", id);
+    }
+
+    // Translations stored in a map by key, batch gets are recorded
+    static class InMemoryTranslationDao extends Di18nTranslationDaoBean {
+
+        final Map<Key, Di18nTranslation> translations = new HashMap<Key, Di18nTranslation>();
+        final List<Collection<Key>> batchGets = new ArrayList<Collection<Key>>();
+
+        void add(Key parentKey, String locale, String string) {
+            Di18nTranslation di18n = new Di18nTranslation();
+            di18n.setParent(parentKey);
+            di18n.setLocale(locale);
+            di18n.setLocalizedString(string);
+            translations.put(createTranslationKey(parentKey, locale), di18n);
+        }
+
+        @Override
+        public Map<Key, Di18nTranslation> findByPrimaryKeys(Collection<Key> keys) {
+            batchGets.add(new ArrayList<Key>(keys));
+            Map<Key, Di18nTranslation> result = new HashMap<Key, Di18nTranslation>();
+            for (Key key : keys) {
+                if (translations.containsKey(key))
+                    result.put(key, translations.get(key));
+            }
+            return result;
+        }
+    }
+}
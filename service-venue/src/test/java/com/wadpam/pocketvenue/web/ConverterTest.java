@@ -0,0 +1,124 @@
+package com.wadpam.pocketvenue.web;
+
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Link;
+import com.google.apphosting.api.ApiProxy;
+import com.wadpam.pocketvenue.TestEnvironment;
+import com.wadpam.pocketvenue.domain.DPlace;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Venues written straight from the domain object, compared with the json of the converted JVenue,
+ * and venues written with only the selected fields.
+ * @author mattiaslevin
+ */
+public class ConverterTest {
+
+    private ObjectMapper objectMapper;
+    private Converter converter;
+
+    @Before
+    public void setUp() {
+        ApiProxy.setEnvironmentForCurrentThread(new TestEnvironment());
+
+        // Null fields are skipped, as by the object mapper of the dispatcher servlet
+        objectMapper = new ObjectMapper();
+        objectMapper.setSerializationInclusion(JsonSerialize.Inclusion.NON_NULL);
+        objectMapper.registerModule(new VenueJsonModule());
+        converter = new Converter();
+    }
+
+    @After
+    public void tearDown() {
+        ApiProxy.clearEnvironmentForCurrentThread();
+    }
+
+    @Test
+    public void writeAllFields() throws IOException {
+        DPlace dPlace = place();
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsString(converter.convert(dPlace))),
+                objectMapper.readTree(objectMapper.writeValueAsString(dPlace)));
+    }
+
+    @Test
+    public void writeWithoutOptionalFields() throws IOException {
+        DPlace dPlace = new DPlace();
+        dPlace.setId(11L);
+        dPlace.setName("Venue2");
+
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsString(converter.convert(dPlace))),
+                objectMapper.readTree(objectMapper.writeValueAsString(dPlace)));
+    }
+
+    @Test
+    public void writeSelectedFields() throws IOException {
+        SparseVenue venue = new SparseVenue(place(), new HashSet<String>(Arrays.asList("id", "name", "location")));
+        JsonNode json = objectMapper.readTree(objectMapper.writeValueAsString(venue));
+
+        assertEquals("Selected fields", Arrays.asList("id", "name", "location"), fieldNames(json));
+        assertEquals("Same values", objectMapper.readTree(objectMapper.writeValueAsString(place())).get("location"),
+                json.get("location"));
+    }
+
+    @Test
+    public void writeIdWithoutSelectedFields() throws IOException {
+        // The id is always written, selected fields without value are left out
+        DPlace dPlace = new DPlace();
+        dPlace.setId(11L);
+        dPlace.setName("Venue2");
+        SparseVenue venue = new SparseVenue(dPlace, new HashSet<String>(Arrays.asList("city", "imageUrls")));
+
+        JsonNode json = objectMapper.readTree(objectMapper.writeValueAsString(venue));
+        assertEquals("Only the id", Arrays.asList("id"), fieldNames(json));
+    }
+
+
+    private static List<String> fieldNames(JsonNode json) {
+        List<String> names = new ArrayList<String>();
+        for (Iterator<String> i = json.getFieldNames(); i.hasNext(); )
+            names.add(i.next());
+        return names;
+    }
+
+    private static DPlace place() {
+        DPlace dPlace = new DPlace();
+        dPlace.setId(10L);
+        dPlace.setParent(KeyFactory.createKey("DPlace", 1L));
+        dPlace.setName("Venue1");
+        dPlace.setShortDescription("Short");
+        dPlace.setDescription("Description");
+        dPlace.setOpeningHours(Arrays.asList("8-17", "8-17", "8-17", "8-17", "8-17", "closed", "closed"));
+        dPlace.setTags(Arrays.asList("1", "2"));
+        dPlace.setStreet("Street 1");
+        dPlace.setCityArea("Area");
+        dPlace.setCity("Stockholm");
+        dPlace.setCounty("County");
+        dPlace.setPostalCode("11122");
+        dPlace.setCountry("Sweden");
+        dPlace.setLocation(new GeoPt(59.3f, 18.0f));
+        dPlace.setPhoneNumber("+46123");
+        dPlace.setEmail(new Email("info@example.com"));
+        dPlace.setWebUrl(new Link("http://example.com"));
+        dPlace.setFacebookUrl(new Link("http://facebook.com/venue1"));
+        dPlace.setTwitterUrl(new Link("http://twitter.com/venue1"));
+        dPlace.setLogoUrl(new Link("http://example.com/logo.png"));
+        dPlace.setImageUrls(Arrays.asList(new Link("http://example.com/1.png"), new Link("http://example.com/2.png")));
+        return dPlace;
+    }
+}